@@ -131,10 +131,9 @@ public class MainActivity extends Activity implements MQTTConnectionConstants,
 			case PUBLISH:
 				MQTTMessage message = (MQTTMessage) msg.obj;
 
-				String topic = (String) message.variableHeader
-						.remove("topic_name");
+				String topic = message.topic;
 
-				byte[] payload = message.payload;
+				byte[] payload = message.getPayload();
 
 				Log.i(TAG, "recieved payload");
 
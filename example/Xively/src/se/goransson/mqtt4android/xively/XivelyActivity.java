@@ -34,6 +34,9 @@ public class XivelyActivity extends Activity implements
 
 	protected static final String TAG = "XivelyActivity";
 
+	/** The feed the accelerometer readings are published to */
+	private static final String FEED = "TBUu1rX3sHnDE6hNkRN5eGzHq4qzbhxCx8jUlnM4NmhRDkZd/v2/feeds/1145308537.json";
+
 	private MQTTService mqtt;
 
 	boolean isBound;
@@ -122,9 +125,7 @@ public class XivelyActivity extends Activity implements
 				request.put("version", "1.0.0");
 				request.put("datastreams", datastreams);
 				
-				mqtt.publish(
-						"TBUu1rX3sHnDE6hNkRN5eGzHq4qzbhxCx8jUlnM4NmhRDkZd/v2/feeds/1145308537.json",
-						request.toString());
+				mqtt.publish(FEED, request.toString());
 			} catch (JSONException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -150,6 +151,9 @@ public class XivelyActivity extends Activity implements
 			// Set a unique id for this client-broker combination
 			mqtt.setId(Build.SERIAL);
 
+			// Only the latest reading matters if the uplink falls behind
+			mqtt.setConflated(FEED, true);
+
 
 			// Open the connection to the MQTT server
 			mqtt.connect();
@@ -190,10 +194,9 @@ public class XivelyActivity extends Activity implements
 			case PUBLISH:
 				MQTTMessage message = (MQTTMessage) msg.obj;
 
-				String topic = (String) message.variableHeader
-						.remove("topic_name");
+				String topic = message.topic;
 
-				byte[] payload = message.payload;
+				byte[] payload = message.getPayload();
 
 				Log.i(TAG, "recieved payload");
 
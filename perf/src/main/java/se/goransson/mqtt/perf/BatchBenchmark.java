@@ -0,0 +1,129 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.goransson.mqtt.MQTTBatch;
+import se.goransson.mqtt.MQTTConstants;
+import se.goransson.mqtt.MQTTInFlightWindow;
+import se.goransson.mqtt.MQTTScheduler;
+
+/**
+ * Publishing a batch of messages through the in-flight window one by one,
+ * against publishing it with one call. Messages are handed to a queue the
+ * way the transports take them, and the queue is emptied after each batch
+ * as a writer would. Messages at QoS 1 are acknowledged after each batch,
+ * so the window never fills up.
+ *
+ * @author ksango
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark implements MQTTConstants {
+
+	@Param({ "16", "256" })
+	public int batchSize;
+
+	@Param({ "64", "1024" })
+	public int payloadSize;
+
+	@Param({ "0", "1" })
+	public int qos;
+
+	private final MQTTBatch batch = new MQTTBatch();
+
+	private MQTTInFlightWindow window;
+
+	private int[] ids;
+
+	/** Stands in for the queue of a transport */
+	private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+
+	@Setup
+	public void setup() {
+		window = new MQTTInFlightWindow(new MQTTInFlightWindow.Sender() {
+			@Override
+			public void send(byte[] message) {
+				queue.offer(message);
+			}
+		}, new MQTTScheduler() {
+			@Override
+			public Timeout schedule(Runnable task, long delayMillis) {
+				return new Timeout() {
+					@Override
+					public void cancel() {
+					}
+				};
+			}
+		});
+		window.setMaxInFlight(batchSize);
+		ids = new int[batchSize];
+
+		String[] topics = Topics.many(batchSize, 24);
+		byte[] payload = new byte[payloadSize];
+		for (int i = 0; i < batchSize; i++)
+			batch.add(topics[i], payload, qos, false);
+	}
+
+	@Benchmark
+	public long publishEach() throws IOException {
+		for (int i = 0; i < batchSize; i++)
+			ids[i] = window.publish(batch.getTopic(i), batch.getPayload(i),
+					qos, false);
+		for (int i = 0; i < batchSize; i++)
+			if (ids[i] > 0)
+				window.acknowledge(PUBACK, ids[i]);
+		return written();
+	}
+
+	@Benchmark
+	public long publishAll() {
+		int[] ids = window.publishAll(batch);
+		for (int i = 0; i < ids.length; i++)
+			if (ids[i] > 0)
+				window.acknowledge(PUBACK, ids[i]);
+		return written();
+	}
+
+	private long written() {
+		long bytes = 0;
+		byte[] message;
+		while ((message = queue.poll()) != null)
+			bytes += message.length;
+		return bytes;
+	}
+}
@@ -0,0 +1,167 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Counts latencies in buckets that keep about three significant digits over
+ * the whole range, in the manner of HdrHistogram.
+ *
+ * Values below 2048 have a bucket each. Above that every power of two is
+ * split into 1024 buckets, so a value is never off by more than about 0.1%.
+ * Recording is a few shifts and an increment, with no allocation. A
+ * histogram is meant to be written by one thread, histograms of several
+ * threads are combined with {@link #add(LatencyHistogram)} once they are
+ * done.
+ *
+ * @author ksango
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 11;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+
+	private final long highest;
+
+	private final long[] counts;
+
+	private long count;
+
+	private long sum;
+
+	private long min = Long.MAX_VALUE;
+
+	private long max;
+
+	/**
+	 * @param highest
+	 *            The largest value counted in a bucket of its own, larger
+	 *            values are counted as this value. {@link #getMax()} is
+	 *            exact regardless.
+	 */
+	public LatencyHistogram(long highest) {
+		this.highest = Math.max(highest, SUB_COUNT);
+		this.counts = new long[index(this.highest) + 1];
+	}
+
+	/**
+	 * Count a value.
+	 *
+	 * @param value
+	 *            The value, negative values are counted as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		counts[index(Math.min(value, highest))]++;
+		count++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Add the values of another histogram with the same range.
+	 */
+	public void add(LatencyHistogram other) {
+		if (other.counts.length != counts.length)
+			throw new IllegalArgumentException("Different ranges");
+
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * @return Number of values counted.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            Percentile, 0 to 100
+	 * @return The value that the given percentage of values are at or below,
+	 *         the highest value in its bucket.
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+
+		long target = (long) Math.ceil(percentile / 100 * count);
+		if (target < 1)
+			target = 1;
+
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return Math.min(highestIn(i), max);
+		}
+		return max;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+
+		// value >>> shift lies between HALF_COUNT and SUB_COUNT
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return SUB_COUNT + (shift - 1) * HALF_COUNT
+				+ (int) (value >>> shift) - HALF_COUNT;
+	}
+
+	private static long highestIn(int index) {
+		if (index < SUB_COUNT)
+			return index;
+
+		int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+		long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,327 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import se.goransson.mqtt.MQTT;
+import se.goransson.mqtt.MQTTConstants;
+import se.goransson.mqtt.MQTTEventLoop;
+import se.goransson.mqtt.MQTTFrameDecoder;
+import se.goransson.mqtt.MQTTInFlightWindow;
+import se.goransson.mqtt.MQTTMessage;
+import se.goransson.mqtt.MQTTNioTransport;
+import se.goransson.mqtt.MQTTPayloadCodecs;
+import se.goransson.mqtt.MQTTTopicCache;
+import se.goransson.mqtt.MQTTTransport;
+
+/**
+ * One simulated client of the load generator, made of the same transport,
+ * in-flight window, codec and topic cache that the service uses.
+ *
+ * Published payloads start with the time they were meant to be sent, from
+ * {@link System#nanoTime()}. Received payloads are timed against it, so
+ * publishers and subscribers must run in the same process.
+ *
+ * @author ksango
+ *
+ */
+public class LoadClient implements MQTTTransport.Callback, MQTTConstants {
+
+	/** Latencies are counted in microseconds, up to an hour */
+	public static final long HIGHEST_LATENCY = 3600L * 1000 * 1000;
+
+	private static final byte[] DISCONNECT_PACKET = {
+			(byte) (DISCONNECT << 4), 0 };
+
+	private final String identifier;
+
+	private final MQTTNioTransport transport;
+
+	private final MQTTInFlightWindow window;
+
+	private final MQTTPayloadCodecs codecs;
+
+	private final MQTTTopicCache topics = new MQTTTopicCache();
+
+	private final MQTTMessage message = new MQTTMessage();
+
+	private final LatencyHistogram latency = new LatencyHistogram(
+			HIGHEST_LATENCY);
+
+	private final CountDownLatch connack = new CountDownLatch(1);
+
+	private volatile CountDownLatch suback;
+
+	private volatile IOException failure;
+
+	/** Payloads meant to be sent before this are not counted */
+	private volatile long measureFrom = Long.MAX_VALUE;
+
+	// Only written by the event loop
+
+	private volatile long received;
+
+	private volatile long receivedBytes;
+
+	private volatile long written;
+
+	private volatile long writtenBytes;
+
+	/**
+	 * @param identifier
+	 *            Client identifier
+	 * @param loop
+	 *            The event loop that drives the connection
+	 * @param codecs
+	 *            Codecs for payloads, or null to send them as they are
+	 * @param maxInFlight
+	 *            Messages at QoS 1 and 2 sent without waiting for
+	 *            acknowledgements
+	 */
+	public LoadClient(String identifier, MQTTEventLoop loop,
+			MQTTPayloadCodecs codecs, int maxInFlight) {
+		this.identifier = identifier;
+		this.codecs = codecs;
+		this.transport = new MQTTNioTransport(loop,
+				MQTTFrameDecoder.DEFAULT_MAX_PACKET_SIZE, 65536, 0);
+		this.window = new MQTTInFlightWindow(new MQTTInFlightWindow.Sender() {
+			@Override
+			public void send(byte[] message) {
+				transport.send(message);
+			}
+		}, loop);
+		this.window.setMaxInFlight(maxInFlight);
+	}
+
+	/**
+	 * Connect and wait for the CONNACK.
+	 */
+	public void connect(String host, int port, int timeout) throws IOException {
+		transport.connect(host, port, timeout, this);
+		await(connack, timeout, "CONNACK");
+	}
+
+	/**
+	 * Subscribe and wait for the SUBACK.
+	 */
+	public void subscribe(String filter, int qos, int timeout)
+			throws IOException {
+		suback = new CountDownLatch(1);
+		transport.send(MQTT.subscribe(1, filter, qos));
+		await(suback, timeout, "SUBACK");
+	}
+
+	/**
+	 * Publish a payload, its first eight bytes are replaced by the time it
+	 * was meant to be sent.
+	 *
+	 * @param intended
+	 *            When the message should have been sent, from
+	 *            {@link System#nanoTime()}
+	 */
+	public void publish(String topic, byte[] payload, int qos, long intended)
+			throws IOException {
+		for (int i = 7; i >= 0; i--) {
+			payload[i] = (byte) intended;
+			intended >>>= 8;
+		}
+
+		byte[] message = codecs != null ? codecs.encode(topic, payload)
+				: payload;
+		window.publish(topic, message, qos, false);
+	}
+
+	/**
+	 * @return Number of publishes waiting for room in the window.
+	 */
+	public int waiting() {
+		return window.waitingCount();
+	}
+
+	/**
+	 * Only count payloads meant to be sent from now on.
+	 */
+	public void measureFrom(long nanoTime) {
+		measureFrom = nanoTime;
+	}
+
+	public void close() {
+		transport.send(DISCONNECT_PACKET);
+		transport.close();
+		window.clear();
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * @return Latencies of the counted payloads, in microseconds. Only to be
+	 *         read once the client is closed.
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return Number of counted payloads received.
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return Bytes of counted payloads received, as they were on the wire.
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	/**
+	 * @return Number of messages written to the socket.
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * @return Bytes written to the socket.
+	 */
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	 * @return Why the connection failed or was lost, or null.
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return The codecs of this client, or null.
+	 */
+	public MQTTPayloadCodecs getCodecs() {
+		return codecs;
+	}
+
+	@Override
+	public void onConnected() {
+		try {
+			transport.send(MQTT.connect(identifier, null, null, true, 0));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void onConnectFailed(IOException e) {
+		fail(e);
+	}
+
+	@Override
+	public void onConnectionLost(IOException e) {
+		fail(e);
+	}
+
+	@Override
+	public void onWrite(int messages, int bytes) {
+		written += messages;
+		writtenBytes += bytes;
+	}
+
+	@Override
+	public void onFrame(byte[] buffer, int offset, int length)
+			throws IOException {
+		MQTTMessage msg = MQTT.decode(buffer, offset, length, message, topics);
+
+		switch (msg.type) {
+		case CONNACK:
+			if (msg.returnCode != 0)
+				fail(new IOException("Connection refused: " + msg.returnCode));
+			connack.countDown();
+			break;
+
+		case SUBACK:
+			CountDownLatch latch = suback;
+			if (latch != null)
+				latch.countDown();
+			break;
+
+		case PUBLISH:
+			if (msg.QoS == AT_LEAST_ONCE)
+				transport.send(MQTT.ack(PUBACK, msg.messageId));
+			else if (msg.QoS == EXACTLY_ONCE)
+				transport.send(MQTT.ack(PUBREC, msg.messageId));
+			onPublish(msg);
+			break;
+
+		case PUBREL:
+			transport.send(MQTT.ack(PUBCOMP, msg.messageId));
+			break;
+
+		case PUBACK:
+		case PUBREC:
+		case PUBCOMP:
+			window.acknowledge(msg.type, msg.messageId);
+			break;
+		}
+	}
+
+	private void onPublish(MQTTMessage msg) throws IOException {
+		long now = System.nanoTime();
+		int wire = msg.payloadLength;
+
+		if (codecs != null)
+			codecs.decode(msg);
+		if (msg.payloadLength < 8)
+			return;
+
+		long sent = 0;
+		for (int i = 0; i < 8; i++)
+			sent = sent << 8 | (msg.data[msg.payloadOffset + i] & 0xFF);
+		if (sent < measureFrom)
+			return;
+
+		latency.record((now - sent) / 1000);
+		received++;
+		receivedBytes += wire;
+	}
+
+	private void fail(IOException e) {
+		failure = e;
+		connack.countDown();
+		CountDownLatch latch = suback;
+		if (latch != null)
+			latch.countDown();
+	}
+
+	private void await(CountDownLatch latch, int timeout, String what)
+			throws IOException {
+		try {
+			if (!latch.await(timeout, TimeUnit.MILLISECONDS))
+				throw new IOException(identifier + ": no " + what);
+		} catch (InterruptedException e) {
+			throw new IOException(identifier + ": interrupted");
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
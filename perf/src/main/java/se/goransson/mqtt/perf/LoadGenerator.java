@@ -0,0 +1,491 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import se.goransson.mqtt.MQTTDeflateCodec;
+import se.goransson.mqtt.MQTTEventLoop;
+import se.goransson.mqtt.MQTTInFlightWindow;
+import se.goransson.mqtt.MQTTPayloadCodecs;
+
+/**
+ * Puts load on a broker with many clients and measures end to end latency.
+ *
+ * Publishers send at a fixed rate each, every payload carrying the time it
+ * was meant to be sent. Subscribers time what they receive against that, so
+ * a publisher that falls behind shows up as latency instead of quietly
+ * sending less. Latencies go in a {@link LatencyHistogram}, and the results
+ * are printed and optionally written as CSV, one row per run, and JSON.
+ *
+ * Run without arguments to see the options.
+ *
+ * @author ksango
+ *
+ */
+public class LoadGenerator {
+
+	/** Publishes at QoS 1 and 2 waiting for the window before pacing stops */
+	private static final int MAX_WAITING = 1000;
+
+	private static final int TIMEOUT = 10000;
+
+	// Options
+
+	private String host = "127.0.0.1";
+
+	private int port = 1883;
+
+	private boolean embedded;
+
+	private int brokerThreads = 2;
+
+	private int publishers = 1;
+
+	private int subscribers = 1;
+
+	private double rate = 1000;
+
+	private int size = 256;
+
+	private int qos = 0;
+
+	private int duration = 10;
+
+	private int warmup = 2;
+
+	private int loops = Math.max(1,
+			Runtime.getRuntime().availableProcessors() / 2);
+
+	private int maxInFlight = MQTTInFlightWindow.DEFAULT_MAX_IN_FLIGHT;
+
+	private boolean compress;
+
+	private String topic = "load";
+
+	private String csv;
+
+	private String json;
+
+	// State of a run
+
+	private final ArrayList<LoadClient> publisherClients = new ArrayList<LoadClient>();
+
+	private final ArrayList<LoadClient> subscriberClients = new ArrayList<LoadClient>();
+
+	private volatile long measureFrom;
+
+	private volatile long measureUntil;
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		if (!generator.parse(args)) {
+			usage();
+			System.exit(1);
+		}
+		generator.run();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: LoadGenerator [options]\n"
+				+ "  --host <host>          broker host (127.0.0.1)\n"
+				+ "  --port <port>          broker port (1883)\n"
+				+ "  --embedded             start a loopback broker to test against\n"
+				+ "  --broker-threads <n>   selector threads of that broker (2)\n"
+				+ "  --publishers <n>       publishing clients (1)\n"
+				+ "  --subscribers <n>      subscribing clients (1)\n"
+				+ "  --rate <n>             messages per second per publisher (1000)\n"
+				+ "  --size <bytes>         payload size, at least 8 (256)\n"
+				+ "  --qos <0|1|2>          QoS of publishes and subscriptions (0)\n"
+				+ "  --duration <s>         measured seconds (10)\n"
+				+ "  --warmup <s>           seconds before measuring (2)\n"
+				+ "  --loops <n>            client event loops (cores / 2)\n"
+				+ "  --inflight <n>         QoS 1 and 2 window per publisher (32)\n"
+				+ "  --compress             deflate payloads\n"
+				+ "  --topic <prefix>       topic prefix (load)\n"
+				+ "  --csv <file>           append the results to a CSV file\n"
+				+ "  --json <file>          write the results to a JSON file");
+	}
+
+	private boolean parse(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--embedded"))
+					embedded = true;
+				else if (arg.equals("--compress"))
+					compress = true;
+				else if (i + 1 == args.length)
+					return false;
+				else if (arg.equals("--host"))
+					host = args[++i];
+				else if (arg.equals("--port"))
+					port = Integer.parseInt(args[++i]);
+				else if (arg.equals("--broker-threads"))
+					brokerThreads = Integer.parseInt(args[++i]);
+				else if (arg.equals("--publishers"))
+					publishers = Integer.parseInt(args[++i]);
+				else if (arg.equals("--subscribers"))
+					subscribers = Integer.parseInt(args[++i]);
+				else if (arg.equals("--rate"))
+					rate = Double.parseDouble(args[++i]);
+				else if (arg.equals("--size"))
+					size = Integer.parseInt(args[++i]);
+				else if (arg.equals("--qos"))
+					qos = Integer.parseInt(args[++i]);
+				else if (arg.equals("--duration"))
+					duration = Integer.parseInt(args[++i]);
+				else if (arg.equals("--warmup"))
+					warmup = Integer.parseInt(args[++i]);
+				else if (arg.equals("--loops"))
+					loops = Integer.parseInt(args[++i]);
+				else if (arg.equals("--inflight"))
+					maxInFlight = Integer.parseInt(args[++i]);
+				else if (arg.equals("--topic"))
+					topic = args[++i];
+				else if (arg.equals("--csv"))
+					csv = args[++i];
+				else if (arg.equals("--json"))
+					json = args[++i];
+				else
+					return false;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+
+		return rate > 0 && size >= 8 && qos >= 0 && qos <= 2
+				&& duration > 0 && loops > 0 && publishers >= 0
+				&& subscribers >= 0;
+	}
+
+	private void run() throws Exception {
+		MQTTBroker broker = null;
+		if (embedded) {
+			broker = new MQTTBroker(0, brokerThreads);
+			host = "127.0.0.1";
+			port = broker.start();
+		}
+
+		MQTTEventLoop[] eventLoops = new MQTTEventLoop[loops];
+		for (int i = 0; i < loops; i++) {
+			eventLoops[i] = new MQTTEventLoop();
+			eventLoops[i].setDaemon(true);
+			eventLoops[i].start();
+		}
+
+		try {
+			for (int i = 0; i < subscribers; i++) {
+				LoadClient client = new LoadClient("sub-" + i,
+						eventLoops[i % loops], codecs(), maxInFlight);
+				client.connect(host, port, TIMEOUT);
+				client.subscribe(topic + "/#", qos, TIMEOUT);
+				subscriberClients.add(client);
+			}
+			for (int i = 0; i < publishers; i++) {
+				LoadClient client = new LoadClient("pub-" + i,
+						eventLoops[(subscribers + i) % loops], codecs(),
+						maxInFlight);
+				client.connect(host, port, TIMEOUT);
+				publisherClients.add(client);
+			}
+
+			long start = System.nanoTime();
+			measureFrom = start + warmup * 1000000000L;
+			measureUntil = measureFrom + duration * 1000000000L;
+			for (int i = 0; i < subscriberClients.size(); i++)
+				subscriberClients.get(i).measureFrom(measureFrom);
+
+			long sent = publish(start);
+			drain(sent * subscribers);
+
+			report(sent);
+		} finally {
+			for (int i = 0; i < publisherClients.size(); i++)
+				publisherClients.get(i).close();
+			for (int i = 0; i < subscriberClients.size(); i++)
+				subscriberClients.get(i).close();
+
+			// Let the closes run before the loops stop
+			Thread.sleep(100);
+			for (int i = 0; i < loops; i++)
+				eventLoops[i].shutdown();
+			if (broker != null)
+				broker.stop();
+		}
+	}
+
+	private MQTTPayloadCodecs codecs() {
+		if (!compress)
+			return null;
+
+		MQTTPayloadCodecs codecs = new MQTTPayloadCodecs();
+		codecs.setDefault(new MQTTDeflateCodec());
+		return codecs;
+	}
+
+	/**
+	 * Publish until the end of the measurement, from one thread per event
+	 * loop.
+	 *
+	 * @return Number of messages published in the measured period.
+	 */
+	private long publish(long start) throws InterruptedException {
+		Pacer[] pacers = new Pacer[Math.min(loops, publishers)];
+		for (int i = 0; i < pacers.length; i++)
+			pacers[i] = new Pacer(i);
+		for (int i = 0; i < publishers; i++)
+			pacers[i % pacers.length].add(new Publisher(
+					publisherClients.get(i), topic + "/" + i, start
+							+ (long) (i * 1e9 / rate / publishers)));
+
+		for (int i = 0; i < pacers.length; i++)
+			pacers[i].start();
+
+		long sent = 0;
+		for (int i = 0; i < pacers.length; i++) {
+			pacers[i].join();
+			if (pacers[i].failure != null)
+				throw new IllegalStateException(pacers[i].failure);
+			sent += pacers[i].sent;
+		}
+		return sent;
+	}
+
+	/**
+	 * Wait for the subscribers to receive what was published, or for them to
+	 * stop receiving.
+	 */
+	private void drain(long expected) throws InterruptedException {
+		long last = -1;
+		long idleSince = System.currentTimeMillis();
+		while (true) {
+			long received = 0;
+			for (int i = 0; i < subscriberClients.size(); i++)
+				received += subscriberClients.get(i).getReceived();
+			if (received >= expected)
+				return;
+
+			long now = System.currentTimeMillis();
+			if (received != last) {
+				last = received;
+				idleSince = now;
+			} else if (now - idleSince > 2000) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private void report(long sent) throws IOException {
+		LatencyHistogram latency = new LatencyHistogram(
+				LoadClient.HIGHEST_LATENCY);
+		long received = 0;
+		long receivedBytes = 0;
+		for (int i = 0; i < subscriberClients.size(); i++) {
+			LoadClient client = subscriberClients.get(i);
+			if (client.getFailure() != null)
+				System.err.println(client.getIdentifier() + ": "
+						+ client.getFailure());
+			latency.add(client.getLatency());
+			received += client.getReceived();
+			receivedBytes += client.getReceivedBytes();
+		}
+
+		double ratio = 1;
+		if (compress && !publisherClients.isEmpty()) {
+			double sum = 0;
+			for (int i = 0; i < publisherClients.size(); i++)
+				sum += publisherClients.get(i).getCodecs().getRatio();
+			ratio = sum / publisherClients.size();
+		}
+
+		LinkedHashMap<String, Object> results = new LinkedHashMap<String, Object>();
+		results.put("publishers", publishers);
+		results.put("subscribers", subscribers);
+		results.put("qos", qos);
+		results.put("size", size);
+		results.put("rate", rate * publishers);
+		results.put("compress", compress);
+		results.put("duration", duration);
+		results.put("sent", sent);
+		results.put("received", received);
+		results.put("expected", sent * subscribers);
+		results.put("sent_per_second", sent / (double) duration);
+		results.put("received_per_second", received / (double) duration);
+		results.put("received_bytes_per_second", receivedBytes
+				/ (double) duration);
+		results.put("compression_ratio", ratio);
+		results.put("latency_min_us", latency.getMin());
+		results.put("latency_mean_us", latency.getMean());
+		results.put("latency_p50_us", latency.getPercentile(50));
+		results.put("latency_p90_us", latency.getPercentile(90));
+		results.put("latency_p99_us", latency.getPercentile(99));
+		results.put("latency_p999_us", latency.getPercentile(99.9));
+		results.put("latency_max_us", latency.getMax());
+
+		for (Map.Entry<String, Object> e : results.entrySet())
+			System.out.println(String.format(Locale.US, "%-26s %s",
+					e.getKey(), format(e.getValue())));
+
+		if (csv != null)
+			writeCsv(results);
+		if (json != null)
+			writeJson(results);
+	}
+
+	private void writeCsv(Map<String, Object> results) throws IOException {
+		File file = new File(csv);
+		boolean header = !file.exists() || file.length() == 0;
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(file, true),
+				"UTF-8");
+		try {
+			StringBuilder line = new StringBuilder();
+			if (header) {
+				for (String key : results.keySet())
+					line.append(line.length() == 0 ? "" : ",").append(key);
+				line.append('\n');
+			}
+			boolean first = true;
+			for (Object value : results.values()) {
+				line.append(first ? "" : ",").append(format(value));
+				first = false;
+			}
+			out.write(line.append('\n').toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeJson(Map<String, Object> results) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(json),
+				"UTF-8");
+		try {
+			StringBuilder text = new StringBuilder("{\n");
+			boolean first = true;
+			for (Map.Entry<String, Object> e : results.entrySet()) {
+				text.append(first ? "" : ",\n").append("  \"")
+						.append(e.getKey()).append("\": ")
+						.append(format(e.getValue()));
+				first = false;
+			}
+			out.write(text.append("\n}\n").toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String format(Object value) {
+		if (value instanceof Double)
+			return String.format(Locale.US, "%.3f", value);
+		return String.valueOf(value);
+	}
+
+	/**
+	 * A publishing client and when its next message is due.
+	 */
+	private static final class Publisher {
+		final LoadClient client;
+		final String topic;
+		long next;
+
+		Publisher(LoadClient client, String topic, long next) {
+			this.client = client;
+			this.topic = topic;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Sends the messages of some publishers as they fall due.
+	 */
+	private final class Pacer extends Thread {
+
+		final ArrayList<Publisher> publishers = new ArrayList<Publisher>();
+
+		final byte[] payload = LoadGenerator.payload(size);
+
+		final long interval = (long) (1e9 / rate);
+
+		long sent;
+
+		Exception failure;
+
+		Pacer(int index) {
+			super("LoadGenerator-" + index);
+			setDaemon(true);
+		}
+
+		void add(Publisher publisher) {
+			publishers.add(publisher);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					long now = System.nanoTime();
+					if (now >= measureUntil)
+						return;
+
+					long wake = now + 1000000;
+					for (int i = 0; i < publishers.size(); i++) {
+						Publisher p = publishers.get(i);
+						while (p.next <= now && p.next < measureUntil) {
+							// Behind, the delay shows in the latency
+							if (qos > 0 && p.client.waiting() > MAX_WAITING)
+								break;
+
+							p.client.publish(p.topic, payload, qos, p.next);
+							if (p.next >= measureFrom)
+								sent++;
+							p.next += interval;
+						}
+						// Waits a little while the window is full
+						wake = Math.min(wake, Math.max(p.next, now + 50000));
+					}
+
+					long sleep = wake - System.nanoTime();
+					if (sleep > 0)
+						LockSupport.parkNanos(sleep);
+				}
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * @return A payload that compresses about as well as JSON readings.
+	 */
+	static byte[] payload(int size) {
+		byte[] payload = Topics.payload(size);
+		for (int i = 0; i < 8; i++)
+			payload[i] = 0;
+		return payload;
+	}
+}
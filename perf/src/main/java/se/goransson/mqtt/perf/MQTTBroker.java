@@ -0,0 +1,804 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.goransson.mqtt.MQTT;
+import se.goransson.mqtt.MQTTConstants;
+import se.goransson.mqtt.MQTTDispatcher;
+import se.goransson.mqtt.MQTTEncoder;
+import se.goransson.mqtt.MQTTFrameDecoder;
+import se.goransson.mqtt.MQTTIntMap;
+import se.goransson.mqtt.MQTTMessage;
+import se.goransson.mqtt.MQTTTopicCache;
+
+/**
+ * A small MQTT 3.1 broker for load testing on the loopback interface.
+ *
+ * It handles CONNECT, SUBSCRIBE and UNSUBSCRIBE with wildcards, PUBLISH at
+ * all three QoS levels, retained messages and PINGREQ. It is meant to never
+ * be the bottleneck: connections are spread over a few selector threads,
+ * frames are read with the library's {@link MQTTFrameDecoder} straight out
+ * of one read buffer per thread, a publish at QoS 0 is encoded once however
+ * many subscribers get it, and everything queued for a connection is
+ * written with one gathering write.
+ *
+ * What a load test doesn't need is left out. There is no authentication,
+ * no persistent session, no will message and no keep alive timeout, and
+ * messages to subscribers at QoS 1 and 2 are never sent again. A slow
+ * subscriber loses QoS 0 messages once {@link #DEFAULT_MAX_QUEUED} bytes are
+ * waiting for it.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTBroker implements MQTTConstants {
+
+	/** Bytes waiting for a connection above which QoS 0 messages are dropped */
+	public static final int DEFAULT_MAX_QUEUED = 64 * 1024 * 1024;
+
+	private static final int READ_BUFFER = 64 * 1024;
+
+	private static final byte[] CONNACK_ACCEPTED = { (byte) (CONNACK << 4), 2,
+			0, 0 };
+
+	private static final byte[] PINGRESP_PACKET = { (byte) (PINGRESP << 4), 0 };
+
+	private final int port;
+
+	private final IoLoop[] loops;
+
+	private final MQTTDispatcher subscriptions = new MQTTDispatcher();
+
+	private final ConcurrentHashMap<String, Retained> retained = new ConcurrentHashMap<String, Retained>();
+
+	private final AtomicInteger connections = new AtomicInteger();
+
+	private ServerSocketChannel server;
+
+	private Thread acceptor;
+
+	private volatile boolean running;
+
+	/**
+	 * A broker on a free port, with one selector thread for every two
+	 * processors.
+	 */
+	public MQTTBroker() {
+		this(0, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * @param port
+	 *            Port to listen on, 0 for any free port
+	 * @param threads
+	 *            Number of selector threads
+	 */
+	public MQTTBroker(int port, int threads) {
+		this.port = port;
+		this.loops = new IoLoop[threads];
+	}
+
+	/**
+	 * Start listening on the loopback interface.
+	 *
+	 * @return The port the broker listens on.
+	 */
+	public synchronized int start() throws IOException {
+		if (running)
+			return getPort();
+
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				port), 1024);
+
+		running = true;
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new IoLoop();
+			loops[i].thread = new Thread(loops[i], "MQTTBroker-" + i);
+			loops[i].thread.setDaemon(true);
+			loops[i].thread.start();
+		}
+
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "MQTTBroker-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		return getPort();
+	}
+
+	/**
+	 * Close every connection and stop listening.
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+
+		try {
+			server.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		for (int i = 0; i < loops.length; i++)
+			loops[i].selector.wakeup();
+
+		try {
+			acceptor.join(1000);
+			for (int i = 0; i < loops.length; i++)
+				loops[i].thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		retained.clear();
+	}
+
+	/**
+	 * @return The port the broker listens on.
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * @return Number of open connections.
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * @return Number of messages received from clients.
+	 */
+	public long getReceived() {
+		long sum = 0;
+		for (int i = 0; i < loops.length; i++)
+			sum += loops[i].received;
+		return sum;
+	}
+
+	/**
+	 * @return Number of PUBLISH messages sent to subscribers.
+	 */
+	public long getDelivered() {
+		long sum = 0;
+		for (int i = 0; i < loops.length; i++)
+			sum += loops[i].delivered;
+		return sum;
+	}
+
+	/**
+	 * @return Number of PUBLISH messages dropped for slow subscribers.
+	 */
+	public long getDropped() {
+		long sum = 0;
+		for (int i = 0; i < loops.length; i++)
+			sum += loops[i].dropped;
+		return sum;
+	}
+
+	private void accept() {
+		int next = 0;
+		while (running) {
+			try {
+				SocketChannel channel = server.accept();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				loops[next++ % loops.length].register(channel);
+			} catch (IOException e) {
+				// Closed by stop()
+			}
+		}
+	}
+
+	/**
+	 * Send a publish to every subscription that matches its topic.
+	 */
+	private void route(IoLoop loop, String topic, byte[] data, int offset,
+			int length, int qos) {
+		ArrayList<MQTTDispatcher.Listener> matched = loop.matched;
+		matched.clear();
+		if (!subscriptions.match(topic, matched))
+			return;
+
+		// Encoded once for everyone at QoS 0
+		byte[] shared = null;
+		for (int i = 0; i < matched.size(); i++) {
+			Subscription s = (Subscription) matched.get(i);
+			int q = Math.min(qos, s.qos);
+
+			byte[] packet;
+			if (q == AT_MOST_ONCE) {
+				if (shared == null)
+					shared = publish(topic, data, offset, length,
+							AT_MOST_ONCE, false, 0);
+				packet = shared;
+			} else {
+				packet = publish(topic, data, offset, length, q, false,
+						s.connection.nextMessageId());
+			}
+
+			if (s.connection.send(packet, q == AT_MOST_ONCE))
+				loop.delivered++;
+			else
+				loop.dropped++;
+		}
+		matched.clear();
+	}
+
+	private static byte[] publish(String topic, byte[] data, int offset,
+			int length, int qos, boolean retain, int message_id) {
+		ByteBuffer buffer = ByteBuffer.allocate(MQTTEncoder.publishLength(
+				topic, length, qos));
+		MQTTEncoder.publish(buffer, topic, data, offset, length, qos, retain,
+				false, message_id);
+		return buffer.array();
+	}
+
+	/**
+	 * Does a topic filter match a topic, used for retained messages.
+	 */
+	static boolean matches(String filter, String topic) {
+		if (topic.startsWith("$")
+				&& (filter.startsWith("+") || filter.startsWith("#")))
+			return false;
+
+		int f = 0;
+		int t = 0;
+		while (f < filter.length()) {
+			int fEnd = levelEnd(filter, f);
+			String level = filter.substring(f, fEnd);
+			if (level.equals("#"))
+				return true;
+			if (t > topic.length())
+				return false;
+
+			int tEnd = levelEnd(topic, t);
+			if (!level.equals("+")
+					&& !level.equals(topic.substring(t, tEnd)))
+				return false;
+
+			f = fEnd + 1;
+			t = tEnd + 1;
+		}
+		return t > topic.length();
+	}
+
+	private static int levelEnd(String topic, int start) {
+		int end = topic.indexOf('/', start);
+		return end < 0 ? topic.length() : end;
+	}
+
+	private static int readShort(byte[] data, int offset) {
+		return (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+	}
+
+	private static String readString(byte[] data, int offset, int length)
+			throws UnsupportedEncodingException {
+		return new String(data, offset, length, "UTF-8");
+	}
+
+	/**
+	 * One selector thread and the connections it serves.
+	 */
+	private final class IoLoop implements Runnable {
+
+		final Selector selector;
+
+		Thread thread;
+
+		/** New channels, and connections with messages from other threads */
+		final ConcurrentLinkedQueue<Object> tasks = new ConcurrentLinkedQueue<Object>();
+
+		final AtomicBoolean awake = new AtomicBoolean();
+
+		/** Connections with messages from this thread */
+		final ArrayList<Connection> dirty = new ArrayList<Connection>();
+
+		final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+
+		final MQTTMessage message = new MQTTMessage();
+
+		final MQTTTopicCache topics = new MQTTTopicCache(1024);
+
+		final ArrayList<MQTTDispatcher.Listener> matched = new ArrayList<MQTTDispatcher.Listener>();
+
+		// Counters, only written by this thread
+
+		volatile long received;
+
+		volatile long delivered;
+
+		volatile long dropped;
+
+		IoLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(SocketChannel channel) {
+			tasks.add(channel);
+			wakeup();
+		}
+
+		/**
+		 * Have a connection written, right after the current batch of reads
+		 * if called from this thread.
+		 */
+		void schedule(Connection connection) {
+			if (Thread.currentThread() == thread) {
+				dirty.add(connection);
+			} else {
+				tasks.add(connection);
+				wakeup();
+			}
+		}
+
+		void wakeup() {
+			if (awake.compareAndSet(false, true))
+				selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					break;
+				}
+				awake.set(false);
+
+				runTasks();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					Connection connection = (Connection) key.attachment();
+					if (key.isValid() && key.isReadable())
+						connection.read();
+					if (key.isValid() && key.isWritable())
+						connection.flush();
+				}
+
+				for (int i = 0; i < dirty.size(); i++)
+					dirty.get(i).flush();
+				dirty.clear();
+			}
+
+			for (SelectionKey key : selector.keys())
+				((Connection) key.attachment()).close();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Stopping anyway
+			}
+		}
+
+		private void runTasks() {
+			Object task;
+			while ((task = tasks.poll()) != null) {
+				if (task instanceof Connection) {
+					((Connection) task).flush();
+					continue;
+				}
+
+				SocketChannel channel = (SocketChannel) task;
+				Connection connection = new Connection(this, channel);
+				try {
+					connection.key = channel.register(selector,
+							SelectionKey.OP_READ, connection);
+					connections.incrementAndGet();
+				} catch (ClosedChannelException e) {
+					// Gone before it was registered
+				}
+			}
+		}
+	}
+
+	/**
+	 * One client.
+	 */
+	private final class Connection implements MQTTFrameDecoder.Listener {
+
+		final IoLoop loop;
+
+		final SocketChannel channel;
+
+		SelectionKey key;
+
+		final MQTTFrameDecoder decoder = new MQTTFrameDecoder(4096,
+				MQTTFrameDecoder.DEFAULT_MAX_PACKET_SIZE);
+
+		boolean connected;
+
+		volatile boolean closed;
+
+		/** Topic filters of this client, by filter */
+		final HashMap<String, Subscription> filters = new HashMap<String, Subscription>();
+
+		/** Incoming QoS 2 message ids waiting for PUBREL */
+		final MQTTIntMap<Object> received = new MQTTIntMap<Object>();
+
+		final AtomicInteger messageId = new AtomicInteger();
+
+		// Guarded by this
+
+		final ArrayList<ByteBuffer> queue = new ArrayList<ByteBuffer>();
+
+		long queued;
+
+		/** Waiting to be written, or waiting for the socket to take more */
+		boolean scheduled;
+
+		Connection(IoLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		int nextMessageId() {
+			int id = messageId.incrementAndGet() & 0xFFFF;
+			return id == 0 ? nextMessageId() : id;
+		}
+
+		/**
+		 * Queue a message, from any thread.
+		 *
+		 * @param droppable
+		 *            True if the message may be dropped when too much is
+		 *            queued
+		 * @return False if it was dropped.
+		 */
+		boolean send(byte[] packet, boolean droppable) {
+			synchronized (this) {
+				if (closed || (droppable && queued > DEFAULT_MAX_QUEUED))
+					return false;
+
+				queue.add(ByteBuffer.wrap(packet));
+				queued += packet.length;
+				if (scheduled)
+					return true;
+				scheduled = true;
+			}
+			loop.schedule(this);
+			return true;
+		}
+
+		void read() {
+			ByteBuffer in = loop.in;
+			in.clear();
+			try {
+				int n = channel.read(in);
+				if (n < 0) {
+					close();
+					return;
+				}
+				decoder.feed(in.array(), 0, n, this);
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Write as much as the socket takes, on the thread of the loop.
+		 */
+		void flush() {
+			if (closed)
+				return;
+
+			try {
+				while (true) {
+					ByteBuffer[] batch;
+					synchronized (this) {
+						if (queue.isEmpty()) {
+							scheduled = false;
+							interest(SelectionKey.OP_READ);
+							return;
+						}
+						batch = queue.toArray(new ByteBuffer[queue.size()]);
+					}
+
+					long written = channel.write(batch);
+
+					int done = 0;
+					while (done < batch.length && !batch[done].hasRemaining())
+						done++;
+					synchronized (this) {
+						queue.subList(0, done).clear();
+						queued -= written;
+					}
+
+					if (done < batch.length) {
+						// The socket is full, continue once it has room
+						interest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void interest(int ops) {
+			if (key.isValid() && key.interestOps() != ops)
+				key.interestOps(ops);
+		}
+
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+
+			for (Map.Entry<String, Subscription> e : filters.entrySet())
+				subscriptions.remove(e.getKey(), e.getValue());
+			filters.clear();
+
+			if (key != null) {
+				key.cancel();
+				connections.decrementAndGet();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+
+		@Override
+		public void onFrame(byte[] buffer, int offset, int length)
+				throws IOException {
+			if (closed)
+				return;
+
+			loop.received++;
+			MQTTMessage msg = MQTT.decode(buffer, offset, length,
+					loop.message, loop.topics);
+
+			if (!connected && msg.type != CONNECT) {
+				close();
+				return;
+			}
+
+			switch (msg.type) {
+			case CONNECT:
+				connected = true;
+				send(CONNACK_ACCEPTED, false);
+				break;
+
+			case PUBLISH:
+				onPublish(msg);
+				break;
+
+			case PUBREL:
+				received.remove(msg.messageId);
+				send(MQTT.ack(PUBCOMP, msg.messageId), false);
+				break;
+
+			case PUBREC:
+				send(MQTT.ack(PUBREL, msg.messageId), false);
+				break;
+
+			case PUBACK:
+			case PUBCOMP:
+				// Nothing is sent again, so nothing to forget
+				break;
+
+			case SUBSCRIBE:
+				onSubscribe(msg);
+				break;
+
+			case UNSUBSCRIBE:
+				onUnsubscribe(msg);
+				break;
+
+			case PINGREQ:
+				send(PINGRESP_PACKET, false);
+				break;
+
+			case DISCONNECT:
+				close();
+				break;
+			}
+		}
+
+		private void onPublish(MQTTMessage msg) {
+			if (msg.QoS == AT_LEAST_ONCE) {
+				send(MQTT.ack(PUBACK, msg.messageId), false);
+			} else if (msg.QoS == EXACTLY_ONCE) {
+				send(MQTT.ack(PUBREC, msg.messageId), false);
+
+				// Sent again before PUBREL, already routed
+				if (received.containsKey(msg.messageId))
+					return;
+				received.put(msg.messageId, Boolean.TRUE);
+			}
+
+			if (msg.retain) {
+				if (msg.payloadLength == 0) {
+					retained.remove(msg.topic);
+				} else {
+					byte[] payload = new byte[msg.payloadLength];
+					System.arraycopy(msg.data, msg.payloadOffset, payload, 0,
+							msg.payloadLength);
+					retained.put(msg.topic, new Retained(payload, msg.QoS));
+				}
+			}
+
+			route(loop, msg.topic, msg.data, msg.payloadOffset,
+					msg.payloadLength, msg.QoS);
+		}
+
+		private void onSubscribe(MQTTMessage msg) throws IOException {
+			byte[] data = msg.data;
+			int i = msg.payloadOffset;
+			int end = i + msg.payloadLength;
+			int id = readShort(data, i);
+			i += 2;
+
+			ArrayList<String> added = new ArrayList<String>();
+			ByteBuffer granted = ByteBuffer.allocate(msg.payloadLength);
+			while (i < end) {
+				int length = readShort(data, i);
+				String filter = readString(data, i + 2, length);
+				int qos = Math.min(data[i + 2 + length] & 0x03, EXACTLY_ONCE);
+				i += 3 + length;
+
+				Subscription s = filters.get(filter);
+				if (s != null) {
+					s.qos = qos;
+				} else {
+					s = new Subscription(this, qos);
+					try {
+						subscriptions.add(filter, s);
+					} catch (IllegalArgumentException e) {
+						throw new IOException(e.getMessage());
+					}
+					filters.put(filter, s);
+				}
+				granted.put((byte) qos);
+				added.add(filter);
+			}
+
+			ByteBuffer suback = ByteBuffer.allocate(MQTTEncoder
+					.packetLength(2 + granted.position()));
+			suback.put(MQTTEncoder.fixedHeader(SUBACK, false, AT_MOST_ONCE,
+					false));
+			MQTTEncoder.writeRemainingLength(suback, 2 + granted.position());
+			MQTTEncoder.writeShort(suback, id);
+			suback.put(granted.array(), 0, granted.position());
+			send(suback.array(), false);
+
+			for (int f = 0; f < added.size(); f++)
+				sendRetained(added.get(f));
+		}
+
+		private void sendRetained(String filter) {
+			if (retained.isEmpty())
+				return;
+
+			int max = filters.get(filter).qos;
+			for (Map.Entry<String, Retained> e : retained.entrySet()) {
+				if (!matches(filter, e.getKey()))
+					continue;
+
+				Retained r = e.getValue();
+				int qos = Math.min(max, r.qos);
+				send(publish(e.getKey(), r.payload, 0, r.payload.length, qos,
+						true, qos == AT_MOST_ONCE ? 0 : nextMessageId()),
+						false);
+			}
+		}
+
+		private void onUnsubscribe(MQTTMessage msg) throws IOException {
+			byte[] data = msg.data;
+			int i = msg.payloadOffset;
+			int end = i + msg.payloadLength;
+			int id = readShort(data, i);
+			i += 2;
+
+			while (i < end) {
+				int length = readShort(data, i);
+				String filter = readString(data, i + 2, length);
+				i += 2 + length;
+
+				Subscription s = filters.remove(filter);
+				if (s != null)
+					subscriptions.remove(filter, s);
+			}
+			send(MQTT.ack(UNSUBACK, id), false);
+		}
+	}
+
+	/**
+	 * A topic filter of one connection.
+	 */
+	private static final class Subscription implements MQTTDispatcher.Listener {
+
+		final Connection connection;
+
+		volatile int qos;
+
+		Subscription(Connection connection, int qos) {
+			this.connection = connection;
+			this.qos = qos;
+		}
+
+		@Override
+		public void onMessage(MQTTMessage message) {
+			// Routed by the broker, see route()
+		}
+	}
+
+	private static final class Retained {
+		final byte[] payload;
+		final int qos;
+
+		Retained(byte[] payload, int qos) {
+			this.payload = payload;
+			this.qos = qos;
+		}
+	}
+
+	/**
+	 * Run a broker until the process is stopped.
+	 *
+	 * @param args
+	 *            Optional port, 1883 by default, and number of threads
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 1883;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(
+				1, Runtime.getRuntime().availableProcessors() / 2);
+
+		MQTTBroker broker = new MQTTBroker(port, threads);
+		System.out.println("Listening on 127.0.0.1:" + broker.start());
+
+		while (true) {
+			Thread.sleep(10000);
+			System.out.println(broker.getConnections() + " connections, "
+					+ broker.getReceived() + " received, "
+					+ broker.getDelivered() + " delivered, "
+					+ broker.getDropped() + " dropped");
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.goransson.mqtt.MQTT;
+import se.goransson.mqtt.MQTTConstants;
+import se.goransson.mqtt.MQTTEncoder;
+import se.goransson.mqtt.MQTTMessage;
+
+/**
+ * Encoding every other packet type, and decoding the ones a client
+ * receives. SUBSCRIBE and UNSUBSCRIBE are measured over the number of
+ * topics in one message.
+ *
+ * @author ksango
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark implements MQTTConstants {
+
+	@Param({ "1", "8", "64" })
+	public int topicCount;
+
+	private String[] topics;
+
+	private byte[] qoss;
+
+	private ByteBuffer buffer;
+
+	private byte[] connack;
+
+	private byte[] puback;
+
+	private byte[] suback;
+
+	private byte[] pingresp;
+
+	private final MQTTMessage message = new MQTTMessage();
+
+	@Setup
+	public void setup() {
+		topics = Topics.many(topicCount, 24);
+		qoss = Topics.qos(topicCount, AT_LEAST_ONCE);
+		buffer = ByteBuffer.allocate(MQTTEncoder.subscribeLength(topics, 0,
+				topicCount) + 1024);
+
+		connack = new byte[] { (byte) (CONNACK << 4), 2, 0, 0 };
+		puback = MQTT.ack(PUBACK, 1);
+		suback = new byte[4 + topicCount];
+		suback[0] = (byte) (SUBACK << 4);
+		suback[1] = (byte) (2 + topicCount);
+		suback[3] = 1;
+		pingresp = new byte[] { (byte) (PINGRESP << 4), 0 };
+	}
+
+	@Benchmark
+	public byte[] connect() throws IOException {
+		return MQTT.connect("benchmark-client", null, null, true, 60);
+	}
+
+	@Benchmark
+	public byte[] connectWithLogin() throws IOException {
+		return MQTT.connect("benchmark-client", "user", "secret", true, 60);
+	}
+
+	@Benchmark
+	public byte[] subscribe() throws IOException {
+		return MQTT.subscribe(1, topics, qoss);
+	}
+
+	@Benchmark
+	public ByteBuffer writeSubscribe() {
+		buffer.clear();
+		MQTTEncoder.subscribe(buffer, 1, topics, qoss, 0, topicCount);
+		return buffer;
+	}
+
+	@Benchmark
+	public ByteBuffer writeUnsubscribe() {
+		buffer.clear();
+		MQTTEncoder.unsubscribe(buffer, 1, topics, 0, topicCount);
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] unsubscribe() throws IOException {
+		return MQTT.unsubscribe(1, topics[0]);
+	}
+
+	@Benchmark
+	public byte[] puback() {
+		return MQTT.ack(PUBACK, 1);
+	}
+
+	@Benchmark
+	public byte[] pubrec() {
+		return MQTT.ack(PUBREC, 1);
+	}
+
+	@Benchmark
+	public byte[] pubrel() {
+		return MQTT.ack(PUBREL, 1);
+	}
+
+	@Benchmark
+	public byte[] pubcomp() {
+		return MQTT.ack(PUBCOMP, 1);
+	}
+
+	@Benchmark
+	public byte[] ping() throws IOException {
+		return MQTT.ping();
+	}
+
+	@Benchmark
+	public ByteBuffer writeDisconnect() {
+		buffer.clear();
+		MQTTEncoder.disconnect(buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public MQTTMessage decodeConnack() {
+		return MQTT.decode(connack, 0, connack.length, message);
+	}
+
+	@Benchmark
+	public MQTTMessage decodePuback() {
+		return MQTT.decode(puback, 0, puback.length, message);
+	}
+
+	@Benchmark
+	public MQTTMessage decodeSuback() {
+		return MQTT.decode(suback, 0, suback.length, message);
+	}
+
+	@Benchmark
+	public MQTTMessage decodePingresp() {
+		return MQTT.decode(pingresp, 0, pingresp.length, message);
+	}
+}
@@ -0,0 +1,113 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.goransson.mqtt.MQTT;
+import se.goransson.mqtt.MQTTConstants;
+import se.goransson.mqtt.MQTTEncoder;
+import se.goransson.mqtt.MQTTMessage;
+import se.goransson.mqtt.MQTTTopicCache;
+
+/**
+ * Encoding and decoding PUBLISH messages, over payload sizes from nothing
+ * to 1 MB and over topic lengths.
+ *
+ * The <code>encode</code> benchmarks create a new array for every message
+ * the way {@link MQTT} does, the <code>write</code> ones use
+ * {@link MQTTEncoder} with a reused buffer. Decoding reuses one message
+ * object, with and without a topic cache.
+ *
+ * @author ksango
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishBenchmark implements MQTTConstants {
+
+	@Param({ "0", "16", "256", "4096", "65536", "1048576" })
+	public int payloadSize;
+
+	@Param({ "8", "64", "512" })
+	public int topicLength;
+
+	@Param({ "0", "1" })
+	public int qos;
+
+	private String topic;
+
+	private byte[] payload;
+
+	private ByteBuffer buffer;
+
+	private byte[] packet;
+
+	private final MQTTMessage message = new MQTTMessage();
+
+	private final MQTTTopicCache topics = new MQTTTopicCache();
+
+	@Setup
+	public void setup() throws IOException {
+		topic = Topics.of(topicLength);
+		payload = Topics.payload(payloadSize);
+		buffer = ByteBuffer.allocate(MQTTEncoder.publishLength(topic,
+				payloadSize, qos));
+		packet = MQTT.publish(topic, payload, qos, false, 1);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return MQTT.publish(topic, payload, qos, false, 1);
+	}
+
+	@Benchmark
+	public ByteBuffer write() {
+		buffer.clear();
+		MQTTEncoder.publish(buffer, topic, payload, 0, payload.length, qos,
+				false, false, 1);
+		return buffer;
+	}
+
+	@Benchmark
+	public MQTTMessage decode() {
+		return MQTT.decode(packet, 0, packet.length, message);
+	}
+
+	@Benchmark
+	public MQTTMessage decodeCached() {
+		return MQTT.decode(packet, 0, packet.length, message, topics);
+	}
+}
@@ -0,0 +1,103 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.goransson.mqtt.MQTT;
+import se.goransson.mqtt.MQTTConstants;
+import se.goransson.mqtt.MQTTEncoder;
+import se.goransson.mqtt.MQTTMessage;
+
+/**
+ * The remaining length field on both sides of each point where it needs
+ * another byte. A PUBLISH with a one character topic is sized so that its
+ * remaining length is exactly the value measured.
+ *
+ * @author ksango
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RemainingLengthBenchmark implements MQTTConstants {
+
+	@Param({ "127", "128", "16383", "16384", "2097151", "2097152" })
+	public int remainingLength;
+
+	private byte[] payload;
+
+	private ByteBuffer buffer;
+
+	private ByteBuffer header;
+
+	private byte[] packet;
+
+	private final MQTTMessage message = new MQTTMessage();
+
+	@Setup
+	public void setup() throws IOException {
+		// Topic length, topic and the payload make up the remaining length
+		payload = new byte[remainingLength - 3];
+		buffer = ByteBuffer.allocate(MQTTEncoder.publishLength("t",
+				payload.length, AT_MOST_ONCE));
+		header = ByteBuffer.allocate(4);
+		packet = MQTT.publish("t", payload, AT_MOST_ONCE, false, 0);
+	}
+
+	@Benchmark
+	public ByteBuffer writeLength() {
+		header.clear();
+		MQTTEncoder.writeRemainingLength(header, remainingLength);
+		return header;
+	}
+
+	@Benchmark
+	public int lengthSize() {
+		return MQTTEncoder.remainingLengthSize(remainingLength);
+	}
+
+	@Benchmark
+	public ByteBuffer writePublish() {
+		buffer.clear();
+		MQTTEncoder.publish(buffer, "t", payload, 0, payload.length,
+				AT_MOST_ONCE, false, false, 0);
+		return buffer;
+	}
+
+	@Benchmark
+	public MQTTMessage decodePublish() {
+		return MQTT.decode(packet, 0, packet.length, message);
+	}
+}
@@ -0,0 +1,244 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import se.goransson.mqtt.MQTT;
+import se.goransson.mqtt.MQTTConstants;
+import se.goransson.mqtt.MQTTFrameDecoder;
+import se.goransson.mqtt.MQTTTlsTransport;
+import se.goransson.mqtt.MQTTTransport;
+
+/**
+ * Connects over TLS again and again, the way a client on a flaky network
+ * reconnects, and reports how long the TCP connections, the handshakes and
+ * the CONNECTs took.
+ *
+ * Without --port a loopback broker is started behind a {@link TlsTerminator}
+ * with a self-signed certificate, so nothing else is needed.
+ *
+ * @author ksango
+ *
+ */
+public class TlsReconnect {
+
+	private String host = "127.0.0.1";
+
+	private int port;
+
+	private String keystore;
+
+	private String password = "changeit";
+
+	private int connects = 20;
+
+	private String[] cipherSuites;
+
+	private String protocol = "TLS";
+
+	private boolean resume = true;
+
+	public static void main(String[] args) throws Exception {
+		TlsReconnect tool = new TlsReconnect();
+		if (!tool.parse(args)) {
+			usage();
+			System.exit(1);
+		}
+		tool.run();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: TlsReconnect [options]\n"
+				+ "  --host <host>          TLS broker host (127.0.0.1)\n"
+				+ "  --port <port>          TLS broker port, none for a loopback one\n"
+				+ "  --keystore <file>      PKCS12 store with the server certificate\n"
+				+ "                         (a self-signed one is made if not given)\n"
+				+ "  --password <password>  password of the store (changeit)\n"
+				+ "  --connects <n>         connections to make (20)\n"
+				+ "  --ciphers <a,b,...>    cipher suites to enable\n"
+				+ "  --protocol <name>      TLS version of the client, e.g. TLSv1.2 (TLS)\n"
+				+ "  --no-resume            new TLS context for every connection");
+	}
+
+	private boolean parse(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--no-resume"))
+					resume = false;
+				else if (i + 1 == args.length)
+					return false;
+				else if (arg.equals("--host"))
+					host = args[++i];
+				else if (arg.equals("--port"))
+					port = Integer.parseInt(args[++i]);
+				else if (arg.equals("--keystore"))
+					keystore = args[++i];
+				else if (arg.equals("--password"))
+					password = args[++i];
+				else if (arg.equals("--connects"))
+					connects = Integer.parseInt(args[++i]);
+				else if (arg.equals("--ciphers"))
+					cipherSuites = args[++i].split(",");
+				else if (arg.equals("--protocol"))
+					protocol = args[++i];
+				else
+					return false;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+
+		return connects > 0 && (port == 0 || keystore != null);
+	}
+
+	private void run() throws Exception {
+		File file;
+		if (keystore != null) {
+			file = new File(keystore);
+		} else {
+			file = File.createTempFile("mqtt", ".p12");
+			file.delete();
+			file.deleteOnExit();
+			TlsTerminator.createSelfSigned(file, password);
+		}
+		KeyStore store = TlsTerminator.load(file, password);
+
+		MQTTBroker broker = null;
+		TlsTerminator terminator = null;
+		if (port == 0) {
+			broker = new MQTTBroker();
+			terminator = new TlsTerminator(TlsTerminator.serverContext(store,
+					password), broker.start());
+			port = terminator.start();
+		}
+
+		try {
+			SSLContext context = TlsTerminator.clientContext(store, protocol);
+			LatencyHistogram tcp = new LatencyHistogram(
+					LoadClient.HIGHEST_LATENCY);
+			LatencyHistogram full = new LatencyHistogram(
+					LoadClient.HIGHEST_LATENCY);
+			LatencyHistogram resumed = new LatencyHistogram(
+					LoadClient.HIGHEST_LATENCY);
+			LatencyHistogram connack = new LatencyHistogram(
+					LoadClient.HIGHEST_LATENCY);
+
+			for (int i = 0; i < connects; i++) {
+				if (!resume)
+					context = TlsTerminator.clientContext(store, protocol);
+
+				// Certificates are trusted by the store, host names aren't
+				// checked as the JDK has no verifier outside HTTPS
+				MQTTTlsTransport transport = new MQTTTlsTransport(
+						context.getSocketFactory(), cipherSuites, null,
+						MQTTFrameDecoder.DEFAULT_MAX_PACKET_SIZE, 8192, 0);
+
+				long took = connect(transport, "tls-" + i);
+				tcp.record(transport.getConnectNanos() / 1000);
+				(transport.isResumed() ? resumed : full).record(transport
+						.getHandshakeNanos() / 1000);
+				connack.record(took / 1000);
+			}
+
+			System.out.println(connects + " connections to " + host + ":"
+					+ port + ", microseconds:");
+			print("tcp connect", tcp);
+			print("full handshake", full);
+			print("resumed handshake", resumed);
+			print("until CONNACK", connack);
+		} finally {
+			if (terminator != null)
+				terminator.stop();
+			if (broker != null)
+				broker.stop();
+		}
+	}
+
+	/**
+	 * Connect, send a CONNECT, wait for the CONNACK and disconnect.
+	 *
+	 * @return The whole time it took (ns).
+	 */
+	private long connect(MQTTTransport transport, final String identifier)
+			throws IOException, InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final IOException[] failure = new IOException[1];
+		final MQTTTransport connection = transport;
+
+		long start = System.nanoTime();
+		transport.connect(host, port, 5000, new MQTTTransport.Callback() {
+			@Override
+			public void onConnected() {
+				try {
+					connection.send(MQTT.connect(identifier, null, null,
+							true, 60));
+				} catch (IOException e) {
+					onConnectFailed(e);
+				}
+			}
+
+			@Override
+			public void onConnectFailed(IOException e) {
+				// The broker closes on the DISCONNECT, which may be seen
+				// before the transport is closed
+				if (done.getCount() > 0)
+					failure[0] = e;
+				done.countDown();
+			}
+
+			@Override
+			public void onConnectionLost(IOException e) {
+				onConnectFailed(e);
+			}
+
+			@Override
+			public void onWrite(int messages, int bytes) {
+			}
+
+			@Override
+			public void onFrame(byte[] buffer, int offset, int length) {
+				if ((buffer[offset] >> 4 & 0x0F) == MQTTConstants.CONNACK)
+					done.countDown();
+			}
+		});
+
+		if (!done.await(10, TimeUnit.SECONDS))
+			failure[0] = new IOException(identifier + ": no CONNACK");
+		long took = System.nanoTime() - start;
+
+		transport.send(new byte[] { (byte) (MQTTConstants.DISCONNECT << 4), 0 });
+		transport.close();
+
+		if (failure[0] != null)
+			throw failure[0];
+		return took;
+	}
+
+	private static void print(String name, LatencyHistogram histogram) {
+		System.out.printf("  %-18s n=%-4d p50=%-8d p99=%-8d max=%d%n", name,
+				histogram.getCount(), histogram.getPercentile(50),
+				histogram.getPercentile(99), histogram.getMax());
+	}
+}
@@ -0,0 +1,240 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Accepts TLS connections on 127.0.0.1 and passes the decrypted bytes on to
+ * a plain TCP port, so that {@link MQTTBroker} can be reached over TLS.
+ *
+ * Every connection gets two threads, one for each direction. That is plenty
+ * for testing handshakes and reconnects, not for load.
+ *
+ * @author ksango
+ *
+ */
+public class TlsTerminator {
+
+	private final SSLContext context;
+
+	private final int target;
+
+	private final ArrayList<Socket> sockets = new ArrayList<Socket>();
+
+	private SSLServerSocket server;
+
+	private volatile boolean stopped;
+
+	/**
+	 * @param context
+	 *            Context with the key of the server
+	 * @param target
+	 *            Port on 127.0.0.1 that connections are passed on to
+	 */
+	public TlsTerminator(SSLContext context, int target) {
+		this.context = context;
+		this.target = target;
+	}
+
+	/**
+	 * Start accepting connections.
+	 *
+	 * @return The port that is listened on.
+	 */
+	public int start() throws IOException {
+		server = (SSLServerSocket) context.getServerSocketFactory()
+				.createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		Thread acceptor = new Thread("TlsTerminator") {
+			@Override
+			public void run() {
+				while (!stopped) {
+					try {
+						accepted(server.accept());
+					} catch (IOException e) {
+						// Closed by stop(), or a failed handshake
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		return server.getLocalPort();
+	}
+
+	public synchronized void stop() {
+		stopped = true;
+		close(server);
+		for (Socket socket : sockets)
+			close(socket);
+		sockets.clear();
+	}
+
+	private synchronized void accepted(Socket client) throws IOException {
+		if (stopped) {
+			close(client);
+			return;
+		}
+
+		Socket broker = new Socket("127.0.0.1", target);
+		client.setTcpNoDelay(true);
+		broker.setTcpNoDelay(true);
+		sockets.add(client);
+		sockets.add(broker);
+
+		pump(client, broker);
+		pump(broker, client);
+	}
+
+	private void pump(final Socket from, final Socket to) throws IOException {
+		final InputStream in = from.getInputStream();
+		final OutputStream out = to.getOutputStream();
+
+		Thread thread = new Thread("TlsTerminator pump") {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[16384];
+				try {
+					int read;
+					while ((read = in.read(buffer)) >= 0)
+						out.write(buffer, 0, read);
+				} catch (IOException e) {
+					// One side went away
+				}
+				synchronized (TlsTerminator.this) {
+					close(from);
+					close(to);
+					sockets.remove(from);
+					sockets.remove(to);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void close(Closeable closeable) {
+		try {
+			if (closeable != null)
+				closeable.close();
+		} catch (IOException e) {
+			// Nothing left to do
+		}
+	}
+
+	/**
+	 * Create a key store with a self-signed certificate for localhost and
+	 * 127.0.0.1, using the keytool of the running JDK.
+	 *
+	 * @param file
+	 *            Where the key store is written, it must not exist
+	 * @param password
+	 *            Password of the store and the key
+	 */
+	public static void createSelfSigned(File file, String password)
+			throws IOException, InterruptedException {
+		String keytool = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "keytool";
+
+		Process process = new ProcessBuilder(keytool, "-genkeypair",
+				"-alias", "mqtt", "-keyalg", "EC", "-groupname", "secp256r1",
+				"-dname", "CN=localhost", "-ext",
+				"san=dns:localhost,ip:127.0.0.1", "-validity", "365",
+				"-storetype", "PKCS12", "-keystore", file.getPath(),
+				"-storepass", password, "-keypass", password)
+				.redirectErrorStream(true).start();
+
+		InputStream output = process.getInputStream();
+		while (output.read() >= 0)
+			;
+		if (process.waitFor() != 0)
+			throw new IOException("keytool failed");
+	}
+
+	/**
+	 * Load a key store that holds the key and certificate of a server.
+	 */
+	public static KeyStore load(File file, String password)
+			throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		FileInputStream in = new FileInputStream(file);
+		try {
+			store.load(in, password.toCharArray());
+		} finally {
+			in.close();
+		}
+		return store;
+	}
+
+	/**
+	 * @return A context that uses the key of the store, for servers.
+	 */
+	public static SSLContext serverContext(KeyStore store, String password)
+			throws GeneralSecurityException {
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory
+				.getDefaultAlgorithm());
+		keys.init(store, password.toCharArray());
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), null, null);
+		return context;
+	}
+
+	/**
+	 * @return A context that trusts the certificates of the store, for
+	 *         clients.
+	 */
+	public static SSLContext clientContext(KeyStore store)
+			throws GeneralSecurityException {
+		return clientContext(store, "TLS");
+	}
+
+	/**
+	 * @param protocol
+	 *            Protocol of the context, for example "TLSv1.2" to not use
+	 *            any later version
+	 * @return A context that trusts the certificates of the store, for
+	 *         clients.
+	 */
+	public static SSLContext clientContext(KeyStore store, String protocol)
+			throws GeneralSecurityException {
+		TrustManagerFactory trust = TrustManagerFactory
+				.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(store);
+
+		SSLContext context = SSLContext.getInstance(protocol);
+		context.init(null, trust.getTrustManagers(), null);
+		return context;
+	}
+}
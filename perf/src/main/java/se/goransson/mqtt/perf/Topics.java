@@ -0,0 +1,70 @@
+package se.goransson.mqtt.perf;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Test data shared by the benchmarks.
+ *
+ * @author ksango
+ *
+ */
+final class Topics {
+
+	private Topics() {
+	}
+
+	/**
+	 * @return A topic of the given length, split into levels of eight
+	 *         characters.
+	 */
+	static String of(int length) {
+		StringBuilder topic = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			topic.append(i % 8 == 7 ? '/' : (char) ('a' + i % 26));
+		return topic.toString();
+	}
+
+	/**
+	 * @return Distinct topics for a multi-topic subscription.
+	 */
+	static String[] many(int count, int length) {
+		String[] topics = new String[count];
+		String base = of(length);
+		for (int i = 0; i < count; i++)
+			topics[i] = base + "/" + i;
+		return topics;
+	}
+
+	/**
+	 * @return A payload of the given size, text like a JSON reading.
+	 */
+	static byte[] payload(int size) {
+		byte[] payload = new byte[size];
+		byte[] pattern = "{\"sensor\":\"t1\",\"value\":21.5},".getBytes();
+		for (int i = 0; i < size; i++)
+			payload[i] = pattern[i % pattern.length];
+		return payload;
+	}
+
+	static byte[] qos(int count, int qos) {
+		byte[] qoss = new byte[count];
+		Arrays.fill(qoss, (byte) qos);
+		return qoss;
+	}
+}
@@ -19,28 +19,53 @@ package se.goransson.mqtt;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-
-import android.util.Log;
+import java.nio.ByteBuffer;
 
 /**
  * Main interface for creating byte representations of MQTT messages.
  * 
+ * The methods here return a new array for every message, see
+ * {@link MQTTEncoder} for writing messages into a reusable buffer.
+ * 
  * @author ksango
  * 
  */
 public class MQTT implements MQTTConstants, MQTTVersion {
 
 	/**
+	 * Create an UNSUBSCRIBE message, it has a QoS of {@link #AT_LEAST_ONCE}.
 	 * 
 	 * @param message_id
+	 *            The message id of the unsubscribe, handled by the client.
 	 * @param topic
-	 * @return
+	 *            The topic to unsubscribe from.
+	 * @return The MQTT package.
 	 * @throws IOException
 	 */
 	public static byte[] unsubscribe(int message_id, String topic)
 			throws IOException {
-		return encode(UNSUBSCRIBE, false, AT_LEAST_ONCE, false,
-				topic.getBytes(), Integer.toString(message_id));
+		String[] topics = { topic };
+		ByteBuffer buffer = ByteBuffer.allocate(MQTTEncoder.unsubscribeLength(
+				topics, 0, 1));
+		MQTTEncoder.unsubscribe(buffer, message_id, topics, 0, 1);
+		return buffer.array();
+	}
+
+	/**
+	 * Create one of the acknowledgement messages that only carry a message
+	 * id.
+	 * 
+	 * @param type
+	 *            Message type, can be {@link #PUBACK}, {@link #PUBREC},
+	 *            {@link #PUBREL} or {@link #PUBCOMP}
+	 * @param message_id
+	 *            The message id that is acknowledged
+	 * @return The MQTT package.
+	 */
+	public static byte[] ack(int type, int message_id) {
+		ByteBuffer buffer = ByteBuffer.allocate(MQTTEncoder.ACK_LENGTH);
+		MQTTEncoder.ack(buffer, type, message_id);
+		return buffer.array();
 	}
 
 	/**
@@ -51,22 +76,31 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 	 * @throws IOException
 	 */
 	public static byte[] ping() throws IOException {
-		return encode(PINGREQ, false, 0, false, new byte[0]);
+		ByteBuffer buffer = ByteBuffer.allocate(MQTTEncoder.EMPTY_LENGTH);
+		MQTTEncoder.ping(buffer);
+		return buffer.array();
 	}
 
+	/**
+	 * Create a SUBSCRIBE message for several topics, it has a QoS of
+	 * {@link #AT_LEAST_ONCE}.
+	 * 
+	 * @param message_id
+	 *            The message id of the subscribe, handled by the client.
+	 * @param subscribe_topics
+	 *            The topics to which the client wants to subscribe.
+	 * @param subscribed_qos
+	 *            The wanted QoS for each subscription.
+	 * @return The MQTT package.
+	 * @throws IOException
+	 */
 	public static byte[] subscribe(int message_id, String[] subscribe_topics,
 			byte[] subscribed_qos) throws IOException {
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
-
-		for (int i = 0; i < subscribed_qos.length; i++) {
-			payload.write((byte) ((subscribe_topics[i].length() >> 8) & 0xFF));
-			payload.write((byte) (subscribe_topics[i].length() & 0xFF));
-			payload.write(subscribe_topics[i].getBytes("UTF-8"));
-			payload.write(subscribed_qos[i]);
-		}
-
-		return encode(SUBSCRIBE, false, AT_LEAST_ONCE, false,
-				payload.toByteArray(), Integer.toString(message_id));
+		ByteBuffer buffer = ByteBuffer.allocate(MQTTEncoder.subscribeLength(
+				subscribe_topics, 0, subscribed_qos.length));
+		MQTTEncoder.subscribe(buffer, message_id, subscribe_topics,
+				subscribed_qos, 0, subscribed_qos.length);
+		return buffer.array();
 	}
 
 	/**
@@ -85,15 +119,8 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 	 */
 	public static byte[] subscribe(int message_id, String subscribe_topic,
 			int subscribed_qos) throws IOException {
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
-
-		payload.write((byte) ((subscribe_topic.length() >> 8) & 0xFF));
-		payload.write((byte) (subscribe_topic.length() & 0xFF));
-		payload.write(subscribe_topic.getBytes("UTF-8"));
-		payload.write(subscribed_qos);
-
-		return encode(SUBSCRIBE, false, AT_LEAST_ONCE, false,
-				payload.toByteArray(), Integer.toString(message_id));
+		return subscribe(message_id, new String[] { subscribe_topic },
+				new byte[] { (byte) subscribed_qos });
 	}
 
 	/**
@@ -106,8 +133,7 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 	 */
 	public static byte[] publishRetain(String topic, byte[] message)
 			throws IOException {
-		return encode(PUBLISH, true, AT_MOST_ONCE, false, message,
-				Integer.toString(0), topic);
+		return publish(topic, message, AT_MOST_ONCE, true, 0);
 	}
 
 	/**
@@ -124,8 +150,7 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 	}
 
 	/**
-	 * Create a PUBLISH MQTT message with QoS {@link #AT_MOST_ONCE} and message
-	 * ID 0.
+	 * Create a PUBLISH MQTT message with message ID 0.
 	 * 
 	 * @param topic
 	 *            Which topic to subscribe to.
@@ -140,8 +165,35 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 	 */
 	public static byte[] publish(String topic, byte[] message, byte QoS)
 			throws IOException {
-		return encode(PUBLISH, false, QoS, false, message, Integer.toString(0),
-				topic);
+		return publish(topic, message, QoS, false, 0);
+	}
+
+	/**
+	 * Create a PUBLISH MQTT message.
+	 * 
+	 * @param topic
+	 *            Which topic to publish to.
+	 * @param message
+	 *            The message to send.
+	 * @param QoS
+	 *            The quality of service for this message, can be
+	 *            {@link #AT_MOST_ONCE}, {@link #AT_LEAST_ONCE}, or
+	 *            {@link #EXACTLY_ONCE}
+	 * @param retain
+	 *            Should the server retain the message?
+	 * @param message_id
+	 *            The message id, only used for QoS above
+	 *            {@link #AT_MOST_ONCE}
+	 * @return The resulting MQTT package.
+	 * @throws IOException
+	 */
+	public static byte[] publish(String topic, byte[] message, int QoS,
+			boolean retain, int message_id) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(MQTTEncoder.publishLength(
+				topic, message.length, QoS));
+		MQTTEncoder.publish(buffer, topic, message, 0, message.length, QoS,
+				retain, false, message_id);
+		return buffer.array();
 	}
 
 	/**
@@ -153,24 +205,38 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 	 */
 	public static byte[] connect(String identifier, boolean clean_session)
 			throws UnsupportedEncodingException, IOException {
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
-		payload.write(0);
-		payload.write(identifier.length());
-		payload.write(identifier.getBytes("UTF-8"));
-		return encode(CONNECT, false, 0, false, payload.toByteArray(), "false",
-				"false", "false", "false", Boolean.toString(clean_session));
+		return connect(identifier, null, null, clean_session, 10);
 	}
 	
 	public static byte[] connect(String identifier, String username,
 			String password) throws IOException {
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
-		payload.write(0);
-		payload.write(identifier.length());
-		payload.write(identifier.getBytes("UTF-8"));
-		payload.write(username.getBytes("UTF-8"));
-		payload.write(password.getBytes("UTF-8"));
-		return encode(CONNECT, false, 0, false, payload.toByteArray(), "true",
-				"false", "false", "false", "true");
+		return connect(identifier, username, password, true, 10);
+	}
+
+	/**
+	 * Create a CONNECT MQTT message.
+	 * 
+	 * @param identifier
+	 *            Client identifier
+	 * @param username
+	 *            User name, or null
+	 * @param password
+	 *            Password, or null
+	 * @param clean_session
+	 *            Should the server discard any previous session?
+	 * @param keep_alive
+	 *            Keep alive timer in seconds
+	 * @return The resulting MQTT package.
+	 * @throws IOException
+	 */
+	public static byte[] connect(String identifier, String username,
+			String password, boolean clean_session, int keep_alive)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(MQTTEncoder.connectLength(
+				identifier, username, password));
+		MQTTEncoder.connect(buffer, identifier, username, password,
+				clean_session, keep_alive);
+		return buffer.array();
 	}
 
 	/**
@@ -198,7 +264,10 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 	 *            The parameters for the Variable Header.
 	 * @return The MQTT message as a byte array.
 	 * @throws IOException
+	 * @deprecated Use the typed methods in {@link MQTTEncoder}, they write
+	 *             straight into a reusable buffer.
 	 */
+	@Deprecated
 	protected static byte[] encode(int type, boolean retain, int qos,
 			boolean dup, byte[] payload, String... params) throws IOException {
 		ByteArrayOutputStream mqtt = new ByteArrayOutputStream();
@@ -227,8 +296,11 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 					| (will ? 1 : 0) << 2 | (qos) << 3
 					| (will_retain ? 1 : 0) << 5 | (password ? 1 : 0) << 6
 					| (username ? 1 : 0) << 7);
-			variableHeader.write(0x00); // Keep Alive MSB
-			variableHeader.write(0x0A); // Keep Alive LSB (10 seconds)
+			// Keep alive in seconds, 10 unless given after the flags
+			int keep_alive = params.length > 5 ? Integer.parseInt(params[5])
+					: 10;
+			variableHeader.write((keep_alive >> 8) & 0xFF); // Keep Alive MSB
+			variableHeader.write(keep_alive & 0xFF); // Keep Alive LSB
 			break;
 
 		case PUBLISH:
@@ -278,8 +350,65 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 	}
 
 	protected static MQTTMessage decode(byte[] message) {
-		int i = 0;
-		MQTTMessage mqtt = new MQTTMessage();
+		return decode(message, 0, message.length);
+	}
+
+	/**
+	 * Decode one complete MQTT message.
+	 * 
+	 * @param message
+	 *            Array holding the message
+	 * @param offset
+	 *            Start of the fixed header
+	 * @param length
+	 *            Length of the whole message
+	 * @return The decoded message, it does not refer to the array.
+	 */
+	protected static MQTTMessage decode(byte[] message, int offset, int length) {
+		MQTTMessage mqtt = decode(message, offset, length, new MQTTMessage());
+		mqtt.fillLegacyFields();
+		return mqtt;
+	}
+
+	/**
+	 * Decode one complete MQTT message into an existing message object,
+	 * without copying the payload.
+	 * 
+	 * @param message
+	 *            Array holding the message
+	 * @param offset
+	 *            Start of the fixed header
+	 * @param length
+	 *            Length of the whole message
+	 * @param mqtt
+	 *            The message to fill in
+	 * @return The message, its payload refers to the array.
+	 */
+	public static MQTTMessage decode(byte[] message, int offset, int length,
+			MQTTMessage mqtt) {
+		return decode(message, offset, length, mqtt, null);
+	}
+
+	/**
+	 * Decode one complete MQTT message into an existing message object,
+	 * without copying the payload.
+	 * 
+	 * @param message
+	 *            Array holding the message
+	 * @param offset
+	 *            Start of the fixed header
+	 * @param length
+	 *            Length of the whole message
+	 * @param mqtt
+	 *            The message to fill in
+	 * @param topics
+	 *            Cache to take the topic of a PUBLISH from, or null to always
+	 *            decode it
+	 * @return The message, its payload refers to the array.
+	 */
+	public static MQTTMessage decode(byte[] message, int offset, int length,
+			MQTTMessage mqtt, MQTTTopicCache topics) {
+		int i = offset;
 		mqtt.type = (message[i] >> 4) & 0x0F;
 		mqtt.DUP = ((message[i] >> 3) & 0x01) == 0 ? false : true;
 		mqtt.QoS = (message[i] >> 1) & 0x03;
@@ -288,57 +417,69 @@ public class MQTT implements MQTTConstants, MQTTVersion {
 		int multiplier = 1;
 		int len = 0;
 		byte digit = 0;
-		int headerOffset = 1;
 		do {
-			headerOffset++;
-			
 			digit = message[i++];
 			len += (digit & 127) * multiplier;
 			multiplier *= 128;
 		} while ((digit & 128) != 0);
 		mqtt.remainingLength = len;
 
+		int end = i + len;
 
 		switch (mqtt.type) {
-		case CONNECT:
-			// Not needed...
-			break;
-
 		case CONNACK:
 			// Reserved byte - not used
-			byte reserved = message[i++];
-			mqtt.variableHeader.put("return_code", message[i++]);
-
+			i++;
+			mqtt.returnCode = message[i++] & 0xFF;
 			break;
 
 		case PUBLISH:
-			int topic_name_len = (message[i++] * 256 + message[i++]);
-			String topic_name = new String(message, i, topic_name_len);
-			mqtt.variableHeader.put("topic_name", topic_name);			
+			int topic_name_len = readShort(message, i);
+			i += 2;
+			mqtt.topic = topics != null ? topics.intern(message, i,
+					topic_name_len) : readUTF8(message, i, topic_name_len);
 			i += topic_name_len;
 
-			if( mqtt.QoS > AT_MOST_ONCE ){
-				int message_id = (message[i++] << 8 & 0xFF00 | message[i++] & 0xFF);
-				mqtt.variableHeader.put("message_id", Integer.toString(message_id));
+			if (mqtt.QoS > AT_MOST_ONCE) {
+				mqtt.messageId = readShort(message, i);
+				i += 2;
 			}
 			break;
 
-		case SUBSCRIBE:
-			// Not needed...
-			break;
-
-		case PINGREQ:
-			// Not needed...
+		case PUBACK:
+		case PUBREC:
+		case PUBREL:
+		case PUBCOMP:
+		case SUBACK:
+		case UNSUBACK:
+			mqtt.messageId = readShort(message, i);
+			i += 2;
 			break;
 		}
 
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
-		for (int b = i; b < headerOffset + mqtt.remainingLength; b++){
-			payload.write(message[b]);
-		}
-		
-		mqtt.payload = payload.toByteArray();
+		mqtt.data = message;
+		mqtt.payloadOffset = i;
+		mqtt.payloadLength = end - i;
 
 		return mqtt;
 	}
+
+	/**
+	 * Read a 16 bit value, MSB first.
+	 */
+	static int readShort(byte[] message, int offset) {
+		return (message[offset] & 0xFF) << 8 | message[offset + 1] & 0xFF;
+	}
+
+	/**
+	 * Decode UTF-8 bytes into a string.
+	 */
+	static String readUTF8(byte[] message, int offset, int length) {
+		try {
+			return new String(message, offset, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// Every platform supports UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
 }
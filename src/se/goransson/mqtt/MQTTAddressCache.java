@@ -0,0 +1,139 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+
+/**
+ * Remembers the addresses of server host names for a while, so that
+ * reconnecting doesn't wait for a DNS lookup every time.
+ *
+ * When a host has several addresses the first is used until a connection
+ * to it fails, then the next one. Once all of them have failed, or the
+ * entry is older than the time to live, the host is looked up again.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTAddressCache {
+
+	/** How long addresses are kept by default (ms) */
+	public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+	private static MQTTAddressCache sDefault;
+
+	/**
+	 * @return The cache shared by all transports.
+	 */
+	public static synchronized MQTTAddressCache getDefault() {
+		if (sDefault == null)
+			sDefault = new MQTTAddressCache();
+		return sDefault;
+	}
+
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	private long ttl = DEFAULT_TTL;
+
+	/**
+	 * @param milliseconds
+	 *            How long addresses are kept, 0 to look hosts up every time
+	 */
+	public synchronized void setTtl(long milliseconds) {
+		ttl = milliseconds;
+		entries.clear();
+	}
+
+	/**
+	 * Get the address to connect to if it is known, without blocking.
+	 *
+	 * @param host
+	 *            Host name or address of the server
+	 * @param port
+	 *            Port of the server
+	 * @return A resolved address, or null if the host has to be looked up.
+	 */
+	public synchronized InetSocketAddress cached(String host, int port) {
+		Entry entry = entries.get(host);
+		if (entry != null && System.currentTimeMillis() < entry.expires)
+			return new InetSocketAddress(entry.addresses[entry.next], port);
+		return null;
+	}
+
+	/**
+	 * Get the address to connect to, looking the host up if it isn't known.
+	 * This may block, it must not be called on the main thread.
+	 *
+	 * @param host
+	 *            Host name or address of the server
+	 * @param port
+	 *            Port of the server
+	 * @return A resolved address.
+	 * @throws UnknownHostException
+	 *             If the host has no address
+	 */
+	public InetSocketAddress resolve(String host, int port)
+			throws UnknownHostException {
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			Entry entry = entries.get(host);
+			if (entry != null && now < entry.expires)
+				return new InetSocketAddress(entry.addresses[entry.next], port);
+		}
+
+		// Looked up outside the lock, so other hosts don't wait for it
+		InetAddress[] addresses = InetAddress.getAllByName(host);
+
+		synchronized (this) {
+			if (ttl > 0)
+				entries.put(host, new Entry(addresses, now + ttl));
+		}
+		return new InetSocketAddress(addresses[0], port);
+	}
+
+	/**
+	 * A connection to the last address given for the host failed, the next
+	 * one is given from now on.
+	 */
+	public synchronized void failed(String host) {
+		Entry entry = entries.get(host);
+		if (entry != null && ++entry.next >= entry.addresses.length)
+			entries.remove(host);
+	}
+
+	/**
+	 * Forget every address, for example when the network changes.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	private static final class Entry {
+		final InetAddress[] addresses;
+		final long expires;
+		int next;
+
+		Entry(InetAddress[] addresses, long expires) {
+			this.addresses = addresses;
+			this.expires = expires;
+		}
+	}
+}
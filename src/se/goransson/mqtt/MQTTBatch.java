@@ -0,0 +1,138 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Messages to publish together, see
+ * {@link MQTTService#publishAll(MQTTBatch)}.
+ *
+ * A batch can be cleared and filled again, so that publishing batches over
+ * and over doesn't allocate more than the messages themselves.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTBatch {
+
+	private String[] topics;
+
+	private byte[][] payloads;
+
+	private int[] qos;
+
+	private boolean[] retain;
+
+	private int size;
+
+	public MQTTBatch() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity
+	 *            Number of messages the batch has room for before it grows
+	 */
+	public MQTTBatch(int capacity) {
+		capacity = Math.max(capacity, 1);
+		topics = new String[capacity];
+		payloads = new byte[capacity][];
+		qos = new int[capacity];
+		retain = new boolean[capacity];
+	}
+
+	/**
+	 * Add a message to the batch.
+	 *
+	 * @param topic
+	 *            Topic to publish to
+	 * @param payload
+	 *            Message to publish, it must not be changed until the batch
+	 *            is published
+	 * @param qos
+	 *            Quality of service, can be {@link MQTTConstants#AT_MOST_ONCE},
+	 *            {@link MQTTConstants#AT_LEAST_ONCE}, or
+	 *            {@link MQTTConstants#EXACTLY_ONCE}
+	 * @param retain
+	 *            Should the message be retained on server?
+	 * @return This batch.
+	 */
+	public MQTTBatch add(String topic, byte[] payload, int qos, boolean retain) {
+		if (size == topics.length)
+			grow();
+
+		this.topics[size] = topic;
+		this.payloads[size] = payload;
+		this.qos[size] = qos;
+		this.retain[size] = retain;
+		size++;
+		return this;
+	}
+
+	/**
+	 * Remove every message, keeping the room for them.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			topics[i] = null;
+			payloads[i] = null;
+		}
+		size = 0;
+	}
+
+	/**
+	 * @return Number of messages in the batch.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String getTopic(int index) {
+		return topics[index];
+	}
+
+	public byte[] getPayload(int index) {
+		return payloads[index];
+	}
+
+	public int getQoS(int index) {
+		return qos[index];
+	}
+
+	public boolean isRetain(int index) {
+		return retain[index];
+	}
+
+	private void grow() {
+		int capacity = topics.length * 2;
+
+		String[] topics = new String[capacity];
+		System.arraycopy(this.topics, 0, topics, 0, size);
+		this.topics = topics;
+
+		byte[][] payloads = new byte[capacity][];
+		System.arraycopy(this.payloads, 0, payloads, 0, size);
+		this.payloads = payloads;
+
+		int[] qos = new int[capacity];
+		System.arraycopy(this.qos, 0, qos, 0, size);
+		this.qos = qos;
+
+		boolean[] retain = new boolean[capacity];
+		System.arraycopy(this.retain, 0, retain, 0, size);
+		this.retain = retain;
+	}
+}
@@ -0,0 +1,208 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Holds back publishes on conflated topics while the connection is behind,
+ * keeping only the latest payload of each topic.
+ *
+ * The conflator is told about every message given to the transport and every
+ * batch the transport has written, so it knows how many bytes are waiting to
+ * be written. Publishes on conflated topics are only passed on while that
+ * backlog is small. Otherwise they wait, and a newer publish on the same
+ * topic takes the place of the one that is waiting. Once the transport
+ * catches up, the waiting publishes are sent in the order their topics were
+ * first held back. What is held back is bounded by the number of conflated
+ * topics, however fast they are published. Everything is held back while
+ * the conflator is paused, which it is until the first connection is made.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTConflator {
+
+	/** Sends a publish that is no longer held back */
+	public interface Publisher {
+		void publish(String topic, byte[] payload, int qos, boolean retain);
+	}
+
+	/** Default backlog below which conflated publishes are passed on */
+	public static final int DEFAULT_MAX_BACKLOG = 8192;
+
+	private final Publisher publisher;
+
+	private final int maxBacklog;
+
+	private final HashSet<String> topics = new HashSet<String>();
+
+	/** Publishes held back, by topic, oldest topic first */
+	private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+
+	/** Bytes given to the transport and not written yet */
+	private long backlog;
+
+	private long conflated;
+
+	private boolean paused = true;
+
+	/**
+	 * @param publisher
+	 *            Sends the publishes that are passed on
+	 * @param maxBacklog
+	 *            Bytes waiting in the transport below which conflated
+	 *            publishes are passed on
+	 */
+	public MQTTConflator(Publisher publisher, int maxBacklog) {
+		this.publisher = publisher;
+		this.maxBacklog = maxBacklog;
+	}
+
+	/**
+	 * Mark a topic as conflated or not.
+	 */
+	public synchronized void setConflated(String topic, boolean conflate) {
+		if (conflate)
+			topics.add(topic);
+		else
+			topics.remove(topic);
+	}
+
+	public synchronized boolean isConflated(String topic) {
+		return !topics.isEmpty() && topics.contains(topic);
+	}
+
+	/**
+	 * Publish on a conflated topic, or hold it back if the transport is
+	 * behind.
+	 */
+	public void publish(String topic, byte[] payload, int qos, boolean retain) {
+		synchronized (this) {
+			Pending p = pending.get(topic);
+			if (p != null) {
+				// Replaced in place, keeps its turn
+				p.payload = payload;
+				p.qos = qos;
+				p.retain = retain;
+				conflated++;
+				return;
+			}
+
+			if (paused || backlog >= maxBacklog) {
+				pending.put(topic, new Pending(topic, payload, qos, retain));
+				return;
+			}
+		}
+
+		publisher.publish(topic, payload, qos, retain);
+	}
+
+	/**
+	 * A message was given to the transport.
+	 */
+	public synchronized void sent(int bytes) {
+		backlog += bytes;
+	}
+
+	/**
+	 * The transport wrote some messages, send what was held back if it has
+	 * caught up.
+	 */
+	public void written(int bytes) {
+		synchronized (this) {
+			backlog = Math.max(0, backlog - bytes);
+		}
+		flush();
+	}
+
+	/**
+	 * Hold back every publish, while there is no connection.
+	 */
+	public synchronized void pause() {
+		paused = true;
+	}
+
+	/**
+	 * Start over with an empty backlog, when a new connection is made, and
+	 * send what was held back.
+	 */
+	public void resume() {
+		synchronized (this) {
+			paused = false;
+			backlog = 0;
+		}
+		flush();
+	}
+
+	/**
+	 * @return Number of publishes held back.
+	 */
+	public synchronized int pending() {
+		return pending.size();
+	}
+
+	/**
+	 * @return Number of publishes that were replaced by newer ones before
+	 *         they were sent.
+	 */
+	public synchronized long conflated() {
+		return conflated;
+	}
+
+	private void flush() {
+		ArrayList<Pending> ready;
+		synchronized (this) {
+			long room = maxBacklog - backlog;
+			if (pending.isEmpty() || paused || room <= 0)
+				return;
+
+			// Only about as much as there is room for
+			ready = new ArrayList<Pending>();
+			Iterator<Pending> it = pending.values().iterator();
+			while (it.hasNext() && room > 0) {
+				Pending p = it.next();
+				it.remove();
+				ready.add(p);
+				room -= p.payload.length;
+			}
+		}
+
+		// Without the lock, the publisher reports back with sent()
+		for (int i = 0; i < ready.size(); i++) {
+			Pending p = ready.get(i);
+			publisher.publish(p.topic, p.payload, p.qos, p.retain);
+		}
+	}
+
+	private static class Pending {
+		final String topic;
+		byte[] payload;
+		int qos;
+		boolean retain;
+
+		Pending(String topic, byte[] payload, int qos, boolean retain) {
+			this.topic = topic;
+			this.payload = payload;
+			this.qos = qos;
+			this.retain = retain;
+		}
+	}
+}
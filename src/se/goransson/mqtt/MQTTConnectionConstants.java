@@ -1,7 +1,5 @@
 package se.goransson.mqtt;
 
-import se.goransson.mqtt.R;
-
 /*
  * Copyright (C) 2012 Andreas Gransson, David Cuartielles
  *
@@ -58,4 +56,52 @@ public interface MQTTConnectionConstants {
 
 	/** Raw byte-array when a message has been read (any message on the stream) */
 	public static final int MQTT_RAW_READ = CONSTANTS_BASE + 11;
+
+	/** All messages received during one batch interval, as a list */
+	public static final int MQTT_BATCH = CONSTANTS_BASE + 12;
+
+	/** A {@link MQTTMetrics.Snapshot}, sent periodically once enabled */
+	public static final int MQTT_METRICS = CONSTANTS_BASE + 13;
+
+	/*
+	 * Transports
+	 */
+	/** Blocking sockets, with threads of their own for reading and writing */
+	public static final int TRANSPORT_BLOCKING = CONSTANTS_BASE + 20;
+
+	/** Non-blocking sockets, driven by an event loop shared by connections */
+	public static final int TRANSPORT_NIO = CONSTANTS_BASE + 21;
+
+	/** Blocking TLS sockets, sessions are resumed when reconnecting */
+	public static final int TRANSPORT_TLS = CONSTANTS_BASE + 22;
+
+	/*
+	 * Delivery of incoming messages
+	 */
+	/** One Handler message for every incoming message */
+	public static final int DELIVERY_HANDLER = CONSTANTS_BASE + 30;
+
+	/** Listeners are called on the thread that received the message */
+	public static final int DELIVERY_DIRECT = CONSTANTS_BASE + 31;
+
+	/** Listeners are called from an Executor */
+	public static final int DELIVERY_EXECUTOR = CONSTANTS_BASE + 32;
+
+	/** Listeners are called on the main thread, a batch at a time */
+	public static final int DELIVERY_BATCHED = CONSTANTS_BASE + 33;
+
+	/*
+	 * What to do when the inbound buffer is full
+	 */
+	/** Wait for room, the socket is not read meanwhile */
+	public static final int OVERFLOW_BLOCK = CONSTANTS_BASE + 40;
+
+	/** Drop the oldest buffered message */
+	public static final int OVERFLOW_DROP_OLDEST = CONSTANTS_BASE + 41;
+
+	/** Drop the new message */
+	public static final int OVERFLOW_DROP_NEWEST = CONSTANTS_BASE + 42;
+
+	/** Keep only the latest buffered message on each topic */
+	public static final int OVERFLOW_CONFLATE = CONSTANTS_BASE + 43;
 }
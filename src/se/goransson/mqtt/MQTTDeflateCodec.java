@@ -0,0 +1,130 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses payloads with deflate.
+ *
+ * One {@link Deflater} and one {@link Inflater} are reused for every
+ * payload, along with a work buffer that grows to the largest payload seen,
+ * so the only allocation per payload is the result. The original length is
+ * stored in front of the compressed data, so decoding allocates the result
+ * once at the right size, after checking it against the largest accepted.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTDeflateCodec implements MQTTPayloadCodec {
+
+	/** The id of this codec */
+	public static final int ID = 1;
+
+	private final Deflater deflater;
+
+	private final Inflater inflater = new Inflater(true);
+
+	private byte[] buffer = new byte[4096];
+
+	public MQTTDeflateCodec() {
+		this(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param level
+	 *            Compression level, 1 (fastest) to 9 (smallest)
+	 */
+	public MQTTDeflateCodec(int level) {
+		// Raw deflate, the marker and length make the zlib header redundant
+		deflater = new Deflater(level, true);
+	}
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public synchronized byte[] encode(byte[] payload, int offset, int length,
+			int headroom) {
+		deflater.reset();
+		deflater.setInput(payload, offset, length);
+		deflater.finish();
+
+		if (buffer.length < headroom + 5)
+			buffer = new byte[headroom + 4096];
+
+		int count = headroom + 4;
+		while (!deflater.finished()) {
+			if (count == buffer.length) {
+				byte[] larger = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, larger, 0, count);
+				buffer = larger;
+			}
+			count += deflater.deflate(buffer, count, buffer.length - count);
+		}
+
+		buffer[headroom] = (byte) (length >>> 24);
+		buffer[headroom + 1] = (byte) (length >>> 16);
+		buffer[headroom + 2] = (byte) (length >>> 8);
+		buffer[headroom + 3] = (byte) length;
+
+		byte[] encoded = new byte[count];
+		System.arraycopy(buffer, 0, encoded, 0, count);
+		return encoded;
+	}
+
+	@Override
+	public synchronized byte[] decode(byte[] payload, int offset, int length,
+			int maxLength) throws IOException {
+		if (length < 4)
+			throw new IOException("Truncated payload");
+
+		int size = (payload[offset] & 0xFF) << 24
+				| (payload[offset + 1] & 0xFF) << 16
+				| (payload[offset + 2] & 0xFF) << 8 | payload[offset + 3] & 0xFF;
+		if (size < 0)
+			throw new IOException("Corrupt payload");
+		if (size > maxLength)
+			throw new IOException("Payload of " + size
+					+ " bytes exceeds maximum " + maxLength);
+
+		byte[] decoded = new byte[size];
+
+		inflater.reset();
+		inflater.setInput(payload, offset + 4, length - 4);
+		try {
+			int count = 0;
+			while (count < size) {
+				int n = inflater.inflate(decoded, count, size - count);
+				if (n == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+				count += n;
+			}
+
+			if (count != size)
+				throw new IOException("Corrupt payload");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt payload: " + e.getMessage());
+		}
+		return decoded;
+	}
+}
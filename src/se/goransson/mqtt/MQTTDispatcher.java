@@ -0,0 +1,284 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Hands incoming PUBLISH messages to the listeners whose topic filters
+ * match the topic.
+ *
+ * Filters are kept in a tree with one level per topic level, where
+ * <code>+</code> matches any single level and <code>#</code> matches any
+ * number of levels at the end. Finding the listeners for a topic takes time
+ * in proportion to the number of levels in it, not to the number of
+ * listeners. Topics that start with <code>$</code> are not matched by
+ * wildcards at the first level.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTDispatcher {
+
+	/** Receives the messages that match a topic filter */
+	public interface Listener {
+		/**
+		 * Called on the thread that received the message. The payload is
+		 * only valid during the call, use {@link MQTTMessage#getPayload()}
+		 * or {@link MQTTMessage#detach()} to keep it.
+		 */
+		void onMessage(MQTTMessage message);
+	}
+
+	private final Node root = new Node();
+
+	private int size;
+
+	/**
+	 * Add a listener for a topic filter.
+	 *
+	 * @param filter
+	 *            A topic, or a filter with <code>+</code> and <code>#</code>
+	 *            wildcards
+	 * @param listener
+	 *            Called for every message that matches
+	 * @throws IllegalArgumentException
+	 *             If the filter is malformed
+	 */
+	public synchronized void add(String filter, Listener listener) {
+		validate(filter);
+
+		Node node = root;
+		int start = 0;
+		while (true) {
+			int end = levelEnd(filter, start);
+			String level = filter.substring(start, end);
+
+			Node child;
+			if (level.equals("+")) {
+				if (node.plus == null)
+					node.plus = new Node();
+				child = node.plus;
+			} else if (level.equals("#")) {
+				if (node.hash == null)
+					node.hash = new Node();
+				child = node.hash;
+			} else {
+				if (node.children == null)
+					node.children = new HashMap<String, Node>();
+				child = node.children.get(level);
+				if (child == null) {
+					child = new Node();
+					node.children.put(level, child);
+				}
+			}
+			node = child;
+
+			if (end == filter.length())
+				break;
+			start = end + 1;
+		}
+
+		node.listeners.add(listener);
+		size++;
+	}
+
+	/**
+	 * Remove a listener from a topic filter.
+	 *
+	 * @return False if the listener wasn't added for the filter.
+	 */
+	public synchronized boolean remove(String filter, Listener listener) {
+		if (!remove(root, filter, 0, listener))
+			return false;
+
+		size--;
+		return true;
+	}
+
+	/**
+	 * @return Number of listeners over all filters.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return True if some listener would receive a message on the topic.
+	 */
+	public synchronized boolean matches(String topic) {
+		return match(root, topic, 0, null, true);
+	}
+
+	/**
+	 * Find the listeners for a topic.
+	 *
+	 * @param topic
+	 *            The topic of a message
+	 * @param into
+	 *            List the listeners are added to
+	 * @return True if any listener was found.
+	 */
+	public synchronized boolean match(String topic, ArrayList<Listener> into) {
+		return match(root, topic, 0, into, true);
+	}
+
+	/**
+	 * Give a message to every listener whose filter matches its topic.
+	 *
+	 * @return False if no listener matched.
+	 */
+	public boolean dispatch(MQTTMessage message) {
+		ArrayList<Listener> matched = new ArrayList<Listener>(4);
+		if (message.topic == null || !match(message.topic, matched))
+			return false;
+
+		// Called without holding the lock, listeners may add or remove
+		for (int i = 0; i < matched.size(); i++)
+			matched.get(i).onMessage(message);
+		return true;
+	}
+
+	private boolean match(Node node, String topic, int start,
+			ArrayList<Listener> into, boolean first) {
+		boolean found = false;
+		boolean wildcards = !(first && topic.startsWith("$"));
+
+		// "a/#" matches everything below "a"
+		if (node.hash != null && wildcards) {
+			if (into == null)
+				return true;
+			found |= collect(node.hash, into);
+		}
+
+		int end = levelEnd(topic, start);
+
+		if (node.children != null) {
+			Node child = node.children.get(topic.substring(start, end));
+			if (child != null && matchChild(child, topic, end, into)) {
+				if (into == null)
+					return true;
+				found = true;
+			}
+		}
+
+		if (node.plus != null && wildcards
+				&& matchChild(node.plus, topic, end, into))
+			found = true;
+
+		return found;
+	}
+
+	private boolean matchChild(Node child, String topic, int end,
+			ArrayList<Listener> into) {
+		if (end < topic.length())
+			return match(child, topic, end + 1, into, false);
+
+		// The last level, "a/#" matches "a" itself too
+		boolean found = !child.listeners.isEmpty()
+				|| (child.hash != null && !child.hash.listeners.isEmpty());
+		if (into != null) {
+			collect(child, into);
+			if (child.hash != null)
+				collect(child.hash, into);
+		}
+		return found;
+	}
+
+	private static boolean collect(Node node, ArrayList<Listener> into) {
+		if (into == null || node.listeners.isEmpty())
+			return false;
+		into.addAll(node.listeners);
+		return true;
+	}
+
+	private boolean remove(Node node, String filter, int start,
+			Listener listener) {
+		int end = levelEnd(filter, start);
+		String level = filter.substring(start, end);
+
+		Node child;
+		if (level.equals("+"))
+			child = node.plus;
+		else if (level.equals("#"))
+			child = node.hash;
+		else
+			child = node.children == null ? null : node.children.get(level);
+
+		if (child == null)
+			return false;
+
+		boolean removed;
+		if (end == filter.length())
+			removed = child.listeners.remove(listener);
+		else
+			removed = remove(child, filter, end + 1, listener);
+
+		// Prune branches that no longer lead to any listener
+		if (removed && child.isEmpty()) {
+			if (child == node.plus)
+				node.plus = null;
+			else if (child == node.hash)
+				node.hash = null;
+			else
+				node.children.remove(level);
+		}
+		return removed;
+	}
+
+	private static int levelEnd(String topic, int start) {
+		int end = topic.indexOf('/', start);
+		return end < 0 ? topic.length() : end;
+	}
+
+	private static void validate(String filter) {
+		if (filter == null || filter.length() == 0)
+			throw new IllegalArgumentException("Empty topic filter");
+
+		int start = 0;
+		while (true) {
+			int end = levelEnd(filter, start);
+			for (int i = start; i < end; i++) {
+				char c = filter.charAt(i);
+				if ((c == '+' || c == '#') && end - start != 1)
+					throw new IllegalArgumentException(
+							"Wildcards must take up a whole level: " + filter);
+			}
+			if (end - start == 1 && filter.charAt(start) == '#'
+					&& end != filter.length())
+				throw new IllegalArgumentException(
+						"# must be the last level: " + filter);
+
+			if (end == filter.length())
+				return;
+			start = end + 1;
+		}
+	}
+
+	private static class Node {
+		HashMap<String, Node> children;
+		Node plus;
+		Node hash;
+		final ArrayList<Listener> listeners = new ArrayList<Listener>(1);
+
+		boolean isEmpty() {
+			return listeners.isEmpty() && plus == null && hash == null
+					&& (children == null || children.isEmpty());
+		}
+	}
+}
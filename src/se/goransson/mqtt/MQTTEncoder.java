@@ -0,0 +1,486 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Typed, allocation free encoding of MQTT messages.
+ *
+ * Every packet is written in full at the current position of a caller
+ * supplied {@link ByteBuffer}, so a single buffer can be cleared and reused
+ * for every packet on a connection. Use the matching <code>*Length</code>
+ * method to find out how many bytes a packet needs before writing it.
+ *
+ * Strings are written as UTF-8 directly from their characters, no temporary
+ * byte arrays are created.
+ *
+ * @author ksango
+ *
+ */
+public final class MQTTEncoder implements MQTTConstants, MQTTVersion {
+
+	/** The largest value the remaining length field can represent */
+	public static final int MAX_REMAINING_LENGTH = 268435455;
+
+	/** The largest number of bytes in a length prefixed string */
+	public static final int MAX_STRING_LENGTH = 65535;
+
+	private MQTTEncoder() {
+	}
+
+	/**
+	 * Calculate the size of a CONNECT message.
+	 *
+	 * @param identifier
+	 *            Client identifier
+	 * @param username
+	 *            User name, or null
+	 * @param password
+	 *            Password, or null. Ignored if username is null.
+	 * @return Number of bytes needed for the whole package.
+	 */
+	public static int connectLength(String identifier, String username,
+			String password) {
+		return packetLength(connectRemainingLength(identifier, username,
+				password));
+	}
+
+	/**
+	 * Write a CONNECT message.
+	 *
+	 * @param buffer
+	 *            Destination buffer
+	 * @param identifier
+	 *            Client identifier
+	 * @param username
+	 *            User name, or null
+	 * @param password
+	 *            Password, or null. Ignored if username is null.
+	 * @param clean_session
+	 *            Should the server discard any previous session?
+	 * @param keep_alive
+	 *            Keep alive timer in seconds, 0 - 65535
+	 */
+	public static void connect(ByteBuffer buffer, String identifier,
+			String username, String password, boolean clean_session,
+			int keep_alive) {
+		boolean has_password = username != null && password != null;
+
+		buffer.put((byte) (CONNECT << 4));
+		writeRemainingLength(buffer, connectRemainingLength(identifier,
+				username, password));
+
+		// Variable header
+		writeString(buffer, NAME);
+		buffer.put(VERSION);
+		buffer.put((byte) ((clean_session ? 1 : 0) << 1
+				| (has_password ? 1 : 0) << 6 | (username != null ? 1 : 0) << 7));
+		writeShort(buffer, keep_alive);
+
+		// Payload
+		writeString(buffer, identifier);
+		if (username != null) {
+			writeString(buffer, username);
+			if (has_password)
+				writeString(buffer, password);
+		}
+	}
+
+	/**
+	 * Calculate the size of a PUBLISH message.
+	 *
+	 * @param topic
+	 *            Topic name
+	 * @param length
+	 *            Payload length
+	 * @param qos
+	 *            Quality of service, a message id is only included for
+	 *            {@link #AT_LEAST_ONCE} and {@link #EXACTLY_ONCE}
+	 * @return Number of bytes needed for the whole package.
+	 */
+	public static int publishLength(String topic, int length, int qos) {
+		return packetLength(2 + utf8Length(topic) + (qos > AT_MOST_ONCE ? 2 : 0)
+				+ length);
+	}
+
+	/**
+	 * Write a PUBLISH message.
+	 *
+	 * @param buffer
+	 *            Destination buffer
+	 * @param topic
+	 *            Topic name
+	 * @param payload
+	 *            Array holding the payload
+	 * @param offset
+	 *            Start of the payload in the array
+	 * @param length
+	 *            Payload length
+	 * @param qos
+	 *            Quality of service, can be {@link #AT_MOST_ONCE},
+	 *            {@link #AT_LEAST_ONCE}, or {@link #EXACTLY_ONCE}
+	 * @param retain
+	 *            Should the server retain the message?
+	 * @param dup
+	 *            Is this a re-delivery?
+	 * @param message_id
+	 *            Message id, ignored for {@link #AT_MOST_ONCE}
+	 */
+	public static void publish(ByteBuffer buffer, String topic,
+			byte[] payload, int offset, int length, int qos, boolean retain,
+			boolean dup, int message_id) {
+		publishHeader(buffer, topic, length, qos, retain, dup, message_id);
+
+		// Payload
+		buffer.put(payload, offset, length);
+	}
+
+	/**
+	 * Calculate the size of a PUBLISH message without its payload.
+	 *
+	 * @param topic
+	 *            Topic name
+	 * @param length
+	 *            Payload length
+	 * @param qos
+	 *            Quality of service, a message id is only included for
+	 *            {@link #AT_LEAST_ONCE} and {@link #EXACTLY_ONCE}
+	 * @return Number of bytes that come before the payload.
+	 */
+	public static int publishHeaderLength(String topic, int length, int qos) {
+		return publishLength(topic, length, qos) - length;
+	}
+
+	/**
+	 * Write a PUBLISH message up to its payload, for payloads that are
+	 * written separately.
+	 *
+	 * @param buffer
+	 *            Destination buffer
+	 * @param topic
+	 *            Topic name
+	 * @param length
+	 *            Payload length
+	 * @param qos
+	 *            Quality of service, can be {@link #AT_MOST_ONCE},
+	 *            {@link #AT_LEAST_ONCE}, or {@link #EXACTLY_ONCE}
+	 * @param retain
+	 *            Should the server retain the message?
+	 * @param dup
+	 *            Is this a re-delivery?
+	 * @param message_id
+	 *            Message id, ignored for {@link #AT_MOST_ONCE}
+	 */
+	public static void publishHeader(ByteBuffer buffer, String topic,
+			int length, int qos, boolean retain, boolean dup, int message_id) {
+		int topic_length = checkStringLength(utf8Length(topic));
+
+		buffer.put(fixedHeader(PUBLISH, retain, qos, dup));
+		writeRemainingLength(buffer, 2 + topic_length
+				+ (qos > AT_MOST_ONCE ? 2 : 0) + length);
+
+		// Variable header
+		writeShort(buffer, topic_length);
+		writeUTF8(buffer, topic);
+		if (qos > AT_MOST_ONCE)
+			writeShort(buffer, message_id);
+	}
+
+	/**
+	 * Calculate the size of a SUBSCRIBE message.
+	 *
+	 * @param topics
+	 *            Topic filters
+	 * @param offset
+	 *            Index of the first topic to include
+	 * @param count
+	 *            Number of topics to include
+	 * @return Number of bytes needed for the whole package.
+	 */
+	public static int subscribeLength(String[] topics, int offset, int count) {
+		return packetLength(2 + topicsLength(topics, offset, count) + count);
+	}
+
+	/**
+	 * Write a SUBSCRIBE message, it has a QoS of {@link #AT_LEAST_ONCE}.
+	 *
+	 * @param buffer
+	 *            Destination buffer
+	 * @param message_id
+	 *            Message id
+	 * @param topics
+	 *            Topic filters
+	 * @param qoss
+	 *            Requested QoS for each topic filter
+	 * @param offset
+	 *            Index of the first topic to include
+	 * @param count
+	 *            Number of topics to include
+	 */
+	public static void subscribe(ByteBuffer buffer, int message_id,
+			String[] topics, byte[] qoss, int offset, int count) {
+		buffer.put(fixedHeader(SUBSCRIBE, false, AT_LEAST_ONCE, false));
+		writeRemainingLength(buffer, 2 + topicsLength(topics, offset, count)
+				+ count);
+
+		writeShort(buffer, message_id);
+		for (int i = offset; i < offset + count; i++) {
+			writeString(buffer, topics[i]);
+			buffer.put(qoss[i]);
+		}
+	}
+
+	/**
+	 * Calculate the size of an UNSUBSCRIBE message.
+	 *
+	 * @param topics
+	 *            Topic filters
+	 * @param offset
+	 *            Index of the first topic to include
+	 * @param count
+	 *            Number of topics to include
+	 * @return Number of bytes needed for the whole package.
+	 */
+	public static int unsubscribeLength(String[] topics, int offset, int count) {
+		return packetLength(2 + topicsLength(topics, offset, count));
+	}
+
+	/**
+	 * Write an UNSUBSCRIBE message, it has a QoS of {@link #AT_LEAST_ONCE}.
+	 *
+	 * @param buffer
+	 *            Destination buffer
+	 * @param message_id
+	 *            Message id
+	 * @param topics
+	 *            Topic filters
+	 * @param offset
+	 *            Index of the first topic to include
+	 * @param count
+	 *            Number of topics to include
+	 */
+	public static void unsubscribe(ByteBuffer buffer, int message_id,
+			String[] topics, int offset, int count) {
+		buffer.put(fixedHeader(UNSUBSCRIBE, false, AT_LEAST_ONCE, false));
+		writeRemainingLength(buffer, 2 + topicsLength(topics, offset, count));
+
+		writeShort(buffer, message_id);
+		for (int i = offset; i < offset + count; i++)
+			writeString(buffer, topics[i]);
+	}
+
+	/** Size of PUBACK, PUBREC, PUBREL, PUBCOMP and UNSUBACK messages */
+	public static final int ACK_LENGTH = 4;
+
+	/**
+	 * Write one of the acknowledgement messages that only carry a message
+	 * id.
+	 *
+	 * @param buffer
+	 *            Destination buffer
+	 * @param type
+	 *            Message type, can be {@link #PUBACK}, {@link #PUBREC},
+	 *            {@link #PUBREL}, {@link #PUBCOMP} or {@link #UNSUBACK}
+	 * @param message_id
+	 *            The message id that is acknowledged
+	 */
+	public static void ack(ByteBuffer buffer, int type, int message_id) {
+		// PUBREL is part of the QoS 2 flow and is itself sent at QoS 1
+		buffer.put(fixedHeader(type, false, type == PUBREL ? AT_LEAST_ONCE
+				: AT_MOST_ONCE, false));
+		buffer.put((byte) 2);
+		writeShort(buffer, message_id);
+	}
+
+	/** Size of PINGREQ, PINGRESP and DISCONNECT messages */
+	public static final int EMPTY_LENGTH = 2;
+
+	/**
+	 * Write a PINGREQ message.
+	 *
+	 * @param buffer
+	 *            Destination buffer
+	 */
+	public static void ping(ByteBuffer buffer) {
+		empty(buffer, PINGREQ);
+	}
+
+	/**
+	 * Write a DISCONNECT message.
+	 *
+	 * @param buffer
+	 *            Destination buffer
+	 */
+	public static void disconnect(ByteBuffer buffer) {
+		empty(buffer, DISCONNECT);
+	}
+
+	/**
+	 * Write a message that consists of nothing but the fixed header.
+	 *
+	 * @param buffer
+	 *            Destination buffer
+	 * @param type
+	 *            Message type, can be {@link #PINGREQ}, {@link #PINGRESP} or
+	 *            {@link #DISCONNECT}
+	 */
+	public static void empty(ByteBuffer buffer, int type) {
+		buffer.put(fixedHeader(type, false, AT_MOST_ONCE, false));
+		buffer.put((byte) 0);
+	}
+
+	/**
+	 * Build the first byte of the fixed header.
+	 */
+	public static byte fixedHeader(int type, boolean retain, int qos,
+			boolean dup) {
+		return (byte) ((retain ? 1 : 0) | qos << 1 | (dup ? 1 : 0) << 3 | type << 4);
+	}
+
+	/**
+	 * Calculate the size of a whole package from its remaining length.
+	 */
+	public static int packetLength(int remaining_length) {
+		return 1 + remainingLengthSize(remaining_length) + remaining_length;
+	}
+
+	/**
+	 * Number of bytes needed to encode a remaining length.
+	 */
+	public static int remainingLengthSize(int remaining_length) {
+		if (remaining_length < 0 || remaining_length > MAX_REMAINING_LENGTH)
+			throw new IllegalArgumentException("Remaining length out of range: "
+					+ remaining_length);
+		if (remaining_length < 128)
+			return 1;
+		if (remaining_length < 16384)
+			return 2;
+		if (remaining_length < 2097152)
+			return 3;
+		return 4;
+	}
+
+	/**
+	 * Write the variable length encoded remaining length.
+	 */
+	public static void writeRemainingLength(ByteBuffer buffer, int length) {
+		if (length < 0 || length > MAX_REMAINING_LENGTH)
+			throw new IllegalArgumentException("Remaining length out of range: "
+					+ length);
+		do {
+			byte digit = (byte) (length % 128);
+			length /= 128;
+			if (length > 0)
+				digit = (byte) (digit | 0x80);
+			buffer.put(digit);
+		} while (length > 0);
+	}
+
+	/**
+	 * Write a 16 bit value, MSB first.
+	 */
+	public static void writeShort(ByteBuffer buffer, int value) {
+		buffer.put((byte) ((value >> 8) & 0xFF));
+		buffer.put((byte) (value & 0xFF));
+	}
+
+	/**
+	 * Write a length prefixed UTF-8 string.
+	 */
+	public static void writeString(ByteBuffer buffer, String s) {
+		writeShort(buffer, checkStringLength(utf8Length(s)));
+		writeUTF8(buffer, s);
+	}
+
+	/**
+	 * Write the characters of a string as UTF-8, without length prefix.
+	 */
+	public static void writeUTF8(ByteBuffer buffer, String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | c >> 6));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer.put((byte) (0xF0 | cp >> 18));
+				buffer.put((byte) (0x80 | cp >> 12 & 0x3F));
+				buffer.put((byte) (0x80 | cp >> 6 & 0x3F));
+				buffer.put((byte) (0x80 | cp & 0x3F));
+			} else {
+				buffer.put((byte) (0xE0 | c >> 12));
+				buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Number of bytes the string occupies when encoded as UTF-8.
+	 */
+	public static int utf8Length(String s) {
+		int length = s.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					bytes += 1;
+				} else if (Character.isHighSurrogate(c) && i + 1 < length
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					// Two chars become four bytes
+					bytes += 2;
+					i++;
+				} else {
+					bytes += 2;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	private static int connectRemainingLength(String identifier,
+			String username, String password) {
+		// Protocol name, version, flags and keep alive
+		int length = 2 + NAME.length() + 1 + 1 + 2;
+		length += 2 + checkStringLength(utf8Length(identifier));
+		if (username != null) {
+			length += 2 + checkStringLength(utf8Length(username));
+			if (password != null)
+				length += 2 + checkStringLength(utf8Length(password));
+		}
+		return length;
+	}
+
+	private static int topicsLength(String[] topics, int offset, int count) {
+		int length = 0;
+		for (int i = offset; i < offset + count; i++)
+			length += 2 + checkStringLength(utf8Length(topics[i]));
+		return length;
+	}
+
+	private static int checkStringLength(int length) {
+		if (length > MAX_STRING_LENGTH)
+			throw new IllegalArgumentException("String too long: " + length);
+		return length;
+	}
+}
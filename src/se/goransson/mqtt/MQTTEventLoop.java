@@ -0,0 +1,201 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that drives any number of non-blocking connections.
+ *
+ * Channels are registered with a {@link Listener} that is called whenever
+ * the channel is ready. Other threads hand work to the loop with
+ * {@link #execute(Runnable)}, and timed work is run with
+ * {@link #schedule(Runnable, long)} from a {@link MQTTTimer} that the loop
+ * drives itself, with a resolution of {@link #TICK} ms. Everything runs on
+ * the loop thread, so the listeners need no locking of their own.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTEventLoop extends Thread implements MQTTScheduler {
+
+	/** Called on the loop thread when a registered channel is ready */
+	public interface Listener {
+		void onReady(SelectionKey key);
+	}
+
+	/** Resolution of scheduled tasks (ms) */
+	public static final long TICK = 10;
+
+	private static MQTTEventLoop sDefault;
+
+	/**
+	 * @return The event loop shared by all connections that don't use one of
+	 *         their own, started on first use.
+	 */
+	public static synchronized MQTTEventLoop getDefault() {
+		if (sDefault == null || !sDefault.isAlive()) {
+			try {
+				sDefault = new MQTTEventLoop();
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to open selector", e);
+			}
+			sDefault.setDaemon(true);
+			sDefault.start();
+		}
+		return sDefault;
+	}
+
+	private final Selector selector;
+
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private final MQTTTimer timer = new MQTTTimer(TICK, 1024);
+
+	private volatile boolean shutdown;
+
+	public MQTTEventLoop() throws IOException {
+		super("MQTTEventLoop");
+		selector = Selector.open();
+
+		timer.setWakeup(new Runnable() {
+			@Override
+			public void run() {
+				if (!inEventLoop())
+					selector.wakeup();
+			}
+		});
+	}
+
+	/**
+	 * @return True if called from the loop thread.
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * Run a task on the loop thread, as soon as possible.
+	 */
+	public void execute(Runnable task) {
+		tasks.offer(task);
+
+		if (!inEventLoop())
+			selector.wakeup();
+	}
+
+	/**
+	 * Register a channel with the loop, must be called on the loop thread.
+	 *
+	 * @param channel
+	 *            A channel in non-blocking mode
+	 * @param ops
+	 *            The operations to wait for
+	 * @param listener
+	 *            Called when the channel is ready
+	 * @return The selection key of the channel.
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops,
+			Listener listener) throws ClosedChannelException {
+		return channel.register(selector, ops, listener);
+	}
+
+	@Override
+	public Timeout schedule(Runnable task, long delayMillis) {
+		return timer.schedule(task, delayMillis);
+	}
+
+	/**
+	 * Stop the loop, registered channels are not closed.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (!shutdown) {
+			try {
+				long delay = nextDelay();
+				if (delay == 0)
+					selector.selectNow();
+				else
+					// A negative delay means nothing is scheduled
+					selector.select(delay < 0 ? 0 : delay);
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if (key.isValid())
+					safeRun((Listener) key.attachment(), key);
+			}
+
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+				safeRun(task);
+
+			timer.expire();
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return Milliseconds until the next scheduled task, 0 if something is
+	 *         due now or -1 if nothing is scheduled.
+	 */
+	private long nextDelay() {
+		if (!tasks.isEmpty())
+			return 0;
+
+		return timer.nextDelay();
+	}
+
+	private static void safeRun(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			// Keep the loop alive for the other connections
+			e.printStackTrace();
+		}
+	}
+
+	private static void safeRun(Listener listener, SelectionKey key) {
+		try {
+			listener.onReady(key);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,405 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+/**
+ * Splits a stream of bytes into complete MQTT messages.
+ *
+ * Bytes can be fed in chunks of any size, exactly as they are read from the
+ * socket. A chunk may hold several messages, or only part of one; the
+ * decoder keeps its state between calls and hands every complete message to
+ * the {@link Listener} in the order they arrived.
+ *
+ * Messages that are completely contained in a chunk are passed on without
+ * being copied. Messages that span several chunks are collected in an
+ * internal buffer that grows as needed, up to the maximum packet size.
+ *
+ * A {@link SpillListener} can have the payload of large PUBLISH messages
+ * written to a {@link MQTTSpill} as it arrives instead, so that only the
+ * headers are collected. Such a message is limited by the spill size the
+ * listener gives rather than by the maximum packet size.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTFrameDecoder {
+
+	/** Default upper limit of a single message, fixed header included */
+	public static final int DEFAULT_MAX_PACKET_SIZE = 16 * 1024 * 1024;
+
+	/** Receives every complete message */
+	public interface Listener {
+		/**
+		 * Called once for every complete message.
+		 *
+		 * The array is only valid during the call, it will be reused for
+		 * the following messages.
+		 *
+		 * @param buffer
+		 *            Array holding the message
+		 * @param offset
+		 *            Start of the fixed header
+		 * @param length
+		 *            Length of the whole message
+		 */
+		void onFrame(byte[] buffer, int offset, int length) throws IOException;
+	}
+
+	/** Receives every complete message, large payloads as spills */
+	public interface SpillListener extends Listener {
+		/**
+		 * @return Size of a whole PUBLISH message above which its payload
+		 *         is spilled, 0 to never spill.
+		 */
+		int getSpillThreshold();
+
+		/**
+		 * @return The largest PUBLISH message whose payload is spilled. It
+		 *         can be larger than the maximum packet size, as only the
+		 *         headers are held in memory.
+		 */
+		int getMaxSpillSize();
+
+		/**
+		 * A PUBLISH above the threshold is arriving.
+		 *
+		 * @param buffer
+		 *            Array holding the fixed and variable header
+		 * @param offset
+		 *            Start of the fixed header
+		 * @param length
+		 *            Length of the headers
+		 * @param payloadLength
+		 *            Length of the payload that follows
+		 * @return Where the payload is written as it arrives, or null to
+		 *         collect it like any other message.
+		 */
+		MQTTSpill spill(byte[] buffer, int offset, int length,
+				int payloadLength) throws IOException;
+
+		/**
+		 * Called once for every message that was spilled, when the whole
+		 * payload is written.
+		 *
+		 * @param buffer
+		 *            Array holding the fixed and variable header, only valid
+		 *            during the call
+		 * @param offset
+		 *            Start of the fixed header
+		 * @param length
+		 *            Length of the headers
+		 * @param payload
+		 *            The payload
+		 */
+		void onSpilledFrame(byte[] buffer, int offset, int length,
+				MQTTSpill payload) throws IOException;
+	}
+
+	/** Waiting for the first byte of a new message */
+	private static final int STATE_HEADER = 0;
+
+	/** Reading the remaining length */
+	private static final int STATE_LENGTH = 1;
+
+	/** Reading variable header and payload */
+	private static final int STATE_BODY = 2;
+
+	/** Reading the variable header of a message that may be spilled */
+	private static final int STATE_SPILL_HEADER = 3;
+
+	/** Writing the payload to the spill */
+	private static final int STATE_SPILL_BODY = 4;
+
+	private final int maxPacketSize;
+
+	private byte[] buffer;
+
+	private int position;
+
+	private int state = STATE_HEADER;
+
+	/** Remaining length read so far */
+	private int remaining;
+
+	private int multiplier;
+
+	/** Length of the whole message being collected */
+	private int total;
+
+	/** Length of the fixed header of a message that may be spilled */
+	private int fixedLength;
+
+	/** Length of its fixed and variable header, 0 until it is known */
+	private int headerLength;
+
+	/** Where the payload of the message being read goes */
+	private MQTTSpill spill;
+
+	public MQTTFrameDecoder() {
+		this(1024, DEFAULT_MAX_PACKET_SIZE);
+	}
+
+	/**
+	 * @param initialCapacity
+	 *            Initial size of the buffer used for messages that span
+	 *            several chunks
+	 * @param maxPacketSize
+	 *            The largest message that will be accepted
+	 */
+	public MQTTFrameDecoder(int initialCapacity, int maxPacketSize) {
+		this.buffer = new byte[Math.max(initialCapacity, 5)];
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	/**
+	 * Feed the decoder with the next chunk of the stream.
+	 *
+	 * @param data
+	 *            Array holding the chunk
+	 * @param offset
+	 *            Start of the chunk
+	 * @param length
+	 *            Number of bytes in the chunk
+	 * @param listener
+	 *            Receives every message completed by this chunk
+	 * @throws IOException
+	 *             If the stream is malformed or a message is larger than the
+	 *             maximum packet size. The decoder must be reset before it is
+	 *             used again.
+	 */
+	public void feed(byte[] data, int offset, int length, Listener listener)
+			throws IOException {
+		int end = offset + length;
+
+		while (offset < end) {
+			switch (state) {
+			case STATE_HEADER:
+				// Fast path, pass on messages that fit in the chunk directly
+				int frame = frameLength(data, offset, end - offset);
+				if (frame > 0 && !spills(data[offset], frame, listener)) {
+					checkSize(frame);
+					listener.onFrame(data, offset, frame);
+					offset += frame;
+					break;
+				}
+
+				buffer[0] = data[offset++];
+				position = 1;
+				remaining = 0;
+				multiplier = 1;
+				state = STATE_LENGTH;
+				break;
+
+			case STATE_LENGTH:
+				byte digit = data[offset++];
+				buffer[position++] = digit;
+				remaining += (digit & 127) * multiplier;
+				multiplier *= 128;
+
+				if ((digit & 128) != 0) {
+					if (position == 5)
+						throw new IOException("Malformed remaining length");
+					break;
+				}
+
+				total = position + remaining;
+				if (spills(buffer[0], total, listener)) {
+					int max = ((SpillListener) listener).getMaxSpillSize();
+					if (total > max)
+						throw new IOException("Message of " + total
+								+ " bytes exceeds maximum spill size " + max);
+					if (remaining < 2)
+						throw new IOException("Malformed PUBLISH header");
+					fixedLength = position;
+					headerLength = 0;
+					state = STATE_SPILL_HEADER;
+					break;
+				}
+
+				checkSize(total);
+				if (total > buffer.length)
+					grow(total);
+
+				if (remaining == 0)
+					complete(listener);
+				else
+					state = STATE_BODY;
+				break;
+
+			case STATE_BODY:
+				int count = Math.min(end - offset, total - position);
+				System.arraycopy(data, offset, buffer, position, count);
+				position += count;
+				offset += count;
+
+				if (position == total)
+					complete(listener);
+				break;
+
+			case STATE_SPILL_HEADER:
+				// The topic length first, then the rest of the header
+				int target = headerLength > 0 ? headerLength : fixedLength + 2;
+				count = Math.min(end - offset, target - position);
+				System.arraycopy(data, offset, buffer, position, count);
+				position += count;
+				offset += count;
+
+				if (position == target)
+					spillHeader((SpillListener) listener);
+				break;
+
+			case STATE_SPILL_BODY:
+				count = Math.min(end - offset, total - position);
+				spill.write(data, offset, count);
+				position += count;
+				offset += count;
+
+				if (position == total)
+					completeSpill((SpillListener) listener);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Forget any partially read message, used when a new connection is
+	 * established.
+	 */
+	public void reset() {
+		state = STATE_HEADER;
+		position = 0;
+
+		// A partly written spill is never delivered
+		if (spill != null) {
+			spill.release();
+			spill = null;
+		}
+	}
+
+	/**
+	 * @return True if the payload of the message should be offered to the
+	 *         listener to spill.
+	 */
+	private static boolean spills(byte header, int frame, Listener listener) {
+		if ((header >> 4 & 0x0F) != MQTTConstants.PUBLISH
+				|| !(listener instanceof SpillListener))
+			return false;
+
+		int threshold = ((SpillListener) listener).getSpillThreshold();
+		return threshold > 0 && frame > threshold;
+	}
+
+	/**
+	 * Called when the bytes asked for by {@link #STATE_SPILL_HEADER} are in
+	 * the buffer.
+	 */
+	private void spillHeader(SpillListener listener) throws IOException {
+		if (headerLength == 0) {
+			int topic_length = (buffer[fixedLength] & 0xFF) << 8
+					| buffer[fixedLength + 1] & 0xFF;
+			boolean id = (buffer[0] >> 1 & 0x03) > MQTTConstants.AT_MOST_ONCE;
+			headerLength = fixedLength + 2 + topic_length + (id ? 2 : 0);
+			if (headerLength > total)
+				throw new IOException("Malformed PUBLISH header");
+			checkSize(headerLength);
+			if (headerLength > buffer.length)
+				grow(headerLength);
+			if (headerLength > position)
+				return;
+		}
+
+		spill = listener.spill(buffer, 0, headerLength, total - headerLength);
+		if (spill == null) {
+			// Collected after all
+			checkSize(total);
+			if (total > buffer.length)
+				grow(total);
+			state = STATE_BODY;
+			if (position == total)
+				complete(listener);
+		} else {
+			state = STATE_SPILL_BODY;
+			if (position == total)
+				completeSpill(listener);
+		}
+	}
+
+	/**
+	 * Length of the complete message at the offset.
+	 *
+	 * @return The length, or -1 if the message is not completely contained
+	 *         in the range.
+	 * @throws IOException
+	 *             If the remaining length is malformed.
+	 */
+	private int frameLength(byte[] data, int offset, int length)
+			throws IOException {
+		int len = 0;
+		int multiplier = 1;
+		for (int i = 1; i < 5; i++) {
+			if (i >= length)
+				return -1;
+
+			byte digit = data[offset + i];
+			len += (digit & 127) * multiplier;
+			multiplier *= 128;
+
+			if ((digit & 128) == 0) {
+				int frame = 1 + i + len;
+				return frame <= length ? frame : -1;
+			}
+		}
+		throw new IOException("Malformed remaining length");
+	}
+
+	private void checkSize(int size) throws IOException {
+		if (size > maxPacketSize)
+			throw new IOException("Message of " + size
+					+ " bytes exceeds maximum packet size " + maxPacketSize);
+	}
+
+	private void grow(int size) {
+		int capacity = Math.min(Math.max(buffer.length * 2, size),
+				maxPacketSize);
+		byte[] tmp = new byte[capacity];
+		System.arraycopy(buffer, 0, tmp, 0, position);
+		buffer = tmp;
+	}
+
+	private void completeSpill(SpillListener listener) throws IOException {
+		MQTTSpill payload = spill;
+		spill = null;
+		state = STATE_HEADER;
+		position = 0;
+
+		try {
+			payload.finish();
+		} catch (IOException e) {
+			payload.release();
+			throw e;
+		}
+		listener.onSpilledFrame(buffer, 0, headerLength, payload);
+	}
+
+	private void complete(Listener listener) throws IOException {
+		state = STATE_HEADER;
+		position = 0;
+		listener.onFrame(buffer, 0, total);
+	}
+}
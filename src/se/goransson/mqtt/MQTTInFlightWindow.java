@@ -0,0 +1,483 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+/**
+ * Keeps track of outgoing {@link #AT_LEAST_ONCE} and {@link #EXACTLY_ONCE}
+ * messages until they are acknowledged.
+ *
+ * Up to a maximum number of messages are in flight at once, without waiting
+ * for the acknowledgement of one before sending the next. Messages published
+ * while the window is full wait in line and are sent as acknowledgements
+ * come in. A PUBREC is answered with a PUBREL automatically, and a message
+ * that isn't acknowledged in time is sent again with the DUP flag set.
+ *
+ * Message ids are handed out from here too, so that an id is never reused
+ * while a message with that id is still waiting for its acknowledgement.
+ * Messages that are sent some other way, such as SUBSCRIBE, UNSUBSCRIBE or a
+ * streamed PUBLISH, {@link #reserve()} their id until it is acknowledged.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTInFlightWindow implements MQTTConstants {
+
+	/** Writes a message on the current connection */
+	public interface Sender {
+		void send(byte[] message);
+	}
+
+	/** Default number of messages in flight at once */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+	/** Default time to wait for an acknowledgement before resending (ms) */
+	public static final long DEFAULT_RETRY_INTERVAL = 20000;
+
+	private static final int MAX_MESSAGE_ID = 65535;
+
+	/** The PUBLISH was sent, waiting for PUBACK or PUBREC */
+	private static final int STATE_PUBLISHED = 0;
+
+	/** The PUBREL was sent, waiting for PUBCOMP */
+	private static final int STATE_RELEASED = 1;
+
+	private final Sender sender;
+
+	private final MQTTScheduler scheduler;
+
+	/** Every message that isn't acknowledged yet, by message id */
+	private final MQTTIntMap<Entry> entries = new MQTTIntMap<Entry>(64);
+
+	/** Messages waiting for room in the window, oldest first */
+	private final LinkedList<Entry> waiting = new LinkedList<Entry>();
+
+	/** Ids of messages sent without the window, see {@link #reserve()} */
+	private final MQTTIntMap<Boolean> reserved = new MQTTIntMap<Boolean>();
+
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+	private long retryInterval = DEFAULT_RETRY_INTERVAL;
+
+	private int inFlight;
+
+	private int nextId = 1;
+
+	/** Order in which the messages were first sent */
+	private long sequence;
+
+	/**
+	 * @param sender
+	 *            Writes messages on the current connection
+	 * @param scheduler
+	 *            Runs the retransmission timers
+	 */
+	public MQTTInFlightWindow(Sender sender, MQTTScheduler scheduler) {
+		this.sender = sender;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Set the number of messages that can be in flight at once. The best
+	 * value covers the time it takes for an acknowledgement to come back.
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+		sendWaiting();
+	}
+
+	/**
+	 * Set how long to wait for an acknowledgement before sending a message
+	 * again.
+	 */
+	public synchronized void setRetryInterval(long millis) {
+		this.retryInterval = millis;
+	}
+
+	/**
+	 * @return A message id between 1 and 65535 that isn't in use, or -1 if
+	 *         all of them are.
+	 */
+	public synchronized int nextMessageId() {
+		for (int i = 0; i < MAX_MESSAGE_ID; i++) {
+			int id = nextId;
+			nextId = id == MAX_MESSAGE_ID ? 1 : id + 1;
+
+			if (!entries.containsKey(id) && !reserved.containsKey(id))
+				return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * Take a message id for a message that isn't sent through the window.
+	 * It isn't handed out again until it is {@link #release(int)}d, or the
+	 * PUBACK or PUBCOMP of a PUBLISH with that id arrives.
+	 *
+	 * @return A message id between 1 and 65535, or -1 if all of them are in
+	 *         use.
+	 */
+	public synchronized int reserve() {
+		int message_id = nextMessageId();
+		if (message_id > 0)
+			reserved.put(message_id, Boolean.TRUE);
+		return message_id;
+	}
+
+	/**
+	 * The message with a reserved id was acknowledged, the id can be handed
+	 * out again.
+	 */
+	public synchronized void release(int message_id) {
+		reserved.remove(message_id);
+	}
+
+	/**
+	 * Release every reserved id, used on a new connection where the
+	 * acknowledgements of the last one won't arrive.
+	 */
+	public synchronized void releaseAll() {
+		reserved.clear();
+	}
+
+	/**
+	 * Publish a message. Messages at {@link #AT_MOST_ONCE} are sent right
+	 * away, the others are sent once there is room in the window.
+	 *
+	 * @return The message id, 0 for {@link #AT_MOST_ONCE}.
+	 * @throws IOException
+	 *             If the message can't be encoded or no message id is free
+	 */
+	public int publish(String topic, byte[] message, int qos, boolean retain)
+			throws IOException {
+		if (qos == AT_MOST_ONCE) {
+			sender.send(MQTT.publish(topic, message, AT_MOST_ONCE, retain, 0));
+			return 0;
+		}
+
+		synchronized (this) {
+			int message_id = nextMessageId();
+			if (message_id < 0)
+				throw new IOException("No free message id");
+
+			Entry entry = new Entry(message_id, MQTT.publish(topic, message,
+					qos, retain, message_id));
+			entries.put(message_id, entry);
+
+			if (inFlight < maxInFlight)
+				send(entry);
+			else
+				waiting.add(entry);
+
+			return message_id;
+		}
+	}
+
+	/**
+	 * Publish a batch of messages. Message ids are handed out in one go, and
+	 * everything that can be sent right away is encoded back to back into
+	 * one buffer and given to the sender at once. Messages that wait for
+	 * room in the window are sent as acknowledgements come in, as with
+	 * {@link #publish(String, byte[], int, boolean)}.
+	 *
+	 * @return The message id of each message, 0 for {@link #AT_MOST_ONCE}
+	 *         and -1 if no message id was free.
+	 */
+	public synchronized int[] publishAll(MQTTBatch batch) {
+		int count = batch.size();
+		int[] ids = new int[count];
+		Entry[] batched = new Entry[count];
+
+		// Waiting messages go first, so nothing overtakes them
+		int room = waiting.isEmpty() ? maxInFlight - inFlight : 0;
+		int total = 0;
+
+		for (int i = 0; i < count; i++) {
+			int qos = batch.getQoS(i);
+			int length = MQTTEncoder.publishLength(batch.getTopic(i),
+					batch.getPayload(i).length, qos);
+
+			if (qos != AT_MOST_ONCE) {
+				ids[i] = nextMessageId();
+				if (ids[i] < 0)
+					continue;
+
+				// Taken right away, so the id isn't handed out again
+				Entry entry = new Entry(ids[i], null, 0, length);
+				entries.put(ids[i], entry);
+				batched[i] = entry;
+
+				if (room <= 0) {
+					// Waits in a buffer of its own
+					entry.setMessage(encode(ByteBuffer.allocate(length),
+							batch, i, ids[i]).array());
+					waiting.add(entry);
+					continue;
+				}
+				room--;
+			}
+			total += length;
+		}
+
+		if (total > 0)
+			sender.send(encode(batch, ids, batched, total));
+
+		return ids;
+	}
+
+	/**
+	 * Encode the messages of a batch that are sent right away back to back,
+	 * and put those that need acknowledgements in flight.
+	 */
+	private byte[] encode(MQTTBatch batch, int[] ids, Entry[] batched,
+			int total) {
+		byte[] packets = new byte[total];
+		ByteBuffer buffer = ByteBuffer.wrap(packets);
+
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] < 0)
+				continue;
+
+			Entry entry = batched[i];
+			if (entry != null) {
+				if (entry.isEncoded())
+					continue;
+				entry.setBatch(packets, buffer.position());
+				entry.sequence = sequence++;
+				inFlight++;
+				entry.retry = scheduler.schedule(entry, retryInterval);
+			}
+			encode(buffer, batch, i, ids[i]);
+		}
+		return packets;
+	}
+
+	private static ByteBuffer encode(ByteBuffer buffer, MQTTBatch batch,
+			int index, int message_id) {
+		byte[] payload = batch.getPayload(index);
+		MQTTEncoder.publish(buffer, batch.getTopic(index), payload, 0,
+				payload.length, batch.getQoS(index), batch.isRetain(index),
+				false, message_id);
+		return buffer;
+	}
+
+	/**
+	 * Handle an incoming PUBACK, PUBREC or PUBCOMP.
+	 *
+	 * @return True if this completed the delivery of a message.
+	 */
+	public synchronized boolean acknowledge(int type, int message_id) {
+		Entry entry = entries.get(message_id);
+
+		switch (type) {
+		case PUBACK:
+			if (entry == null)
+				reserved.remove(message_id);
+			if (entry == null || entry.state != STATE_PUBLISHED)
+				return false;
+			complete(entry);
+			return true;
+
+		case PUBREC:
+			if (entry == null) {
+				// Lost track of it, release it anyway so the server can
+				// finish its side
+				sender.send(MQTT.ack(PUBREL, message_id));
+				return false;
+			}
+
+			entry.state = STATE_RELEASED;
+			entry.setMessage(MQTT.ack(PUBREL, message_id));
+			transmit(entry);
+			return false;
+
+		case PUBCOMP:
+			if (entry == null)
+				reserved.remove(message_id);
+			if (entry == null || entry.state != STATE_RELEASED)
+				return false;
+			complete(entry);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Send everything in flight again, in the order it was first sent. Used
+	 * after reconnecting.
+	 */
+	public synchronized void resend() {
+		Entry[] sent = inFlight();
+		Arrays.sort(sent, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.sequence < b.sequence ? -1
+						: (a.sequence == b.sequence ? 0 : 1);
+			}
+		});
+
+		for (Entry entry : sent) {
+			markDuplicate(entry);
+			transmit(entry);
+		}
+	}
+
+	/**
+	 * @return Number of messages sent and not yet acknowledged.
+	 */
+	public synchronized int inFlightCount() {
+		return inFlight;
+	}
+
+	/**
+	 * @return Number of messages waiting for room in the window.
+	 */
+	public synchronized int waitingCount() {
+		return waiting.size();
+	}
+
+	/**
+	 * Forget all messages, without sending them.
+	 */
+	public synchronized void clear() {
+		for (Entry entry : inFlight())
+			entry.cancel();
+
+		entries.clear();
+		waiting.clear();
+		reserved.clear();
+		inFlight = 0;
+	}
+
+	private void send(Entry entry) {
+		entry.sequence = sequence++;
+		inFlight++;
+		transmit(entry);
+	}
+
+	private void transmit(Entry entry) {
+		entry.cancel();
+		sender.send(entry.getMessage());
+		entry.retry = scheduler.schedule(entry, retryInterval);
+	}
+
+	private void complete(Entry entry) {
+		entry.cancel();
+		entries.remove(entry.message_id);
+		inFlight--;
+
+		sendWaiting();
+	}
+
+	private void sendWaiting() {
+		while (inFlight < maxInFlight && !waiting.isEmpty())
+			send(waiting.removeFirst());
+	}
+
+	private Entry[] inFlight() {
+		Entry[] sent = new Entry[inFlight];
+		int n = 0;
+		for (Object o : entries.values(null)) {
+			Entry entry = (Entry) o;
+			if (entry != null && entry.retry != null)
+				sent[n++] = entry;
+		}
+		return sent;
+	}
+
+	private void markDuplicate(Entry entry) {
+		if (entry.state == STATE_PUBLISHED
+				&& (entry.getMessage()[0] & 0x08) == 0) {
+			// Copied, the transport may not be done with the first one
+			byte[] dup = entry.getMessage().clone();
+			dup[0] |= 0x08;
+			entry.setMessage(dup);
+		}
+	}
+
+	/** A message that isn't acknowledged yet, and its retransmission */
+	private class Entry implements Runnable {
+		final int message_id;
+		int state = STATE_PUBLISHED;
+		long sequence;
+		MQTTScheduler.Timeout retry;
+
+		/** The message, or the buffer of a batch it is a part of */
+		private byte[] message;
+		private int offset;
+		private int length;
+
+		Entry(int message_id, byte[] message) {
+			this(message_id, message, 0, message.length);
+		}
+
+		Entry(int message_id, byte[] batch, int offset, int length) {
+			this.message_id = message_id;
+			this.message = batch;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		boolean isEncoded() {
+			return message != null;
+		}
+
+		void setBatch(byte[] batch, int offset) {
+			this.message = batch;
+			this.offset = offset;
+		}
+
+		byte[] getMessage() {
+			if (offset != 0 || length != message.length) {
+				// Only copied out of the batch when it is sent again
+				byte[] copy = new byte[length];
+				System.arraycopy(message, offset, copy, 0, length);
+				setMessage(copy);
+			}
+			return message;
+		}
+
+		void setMessage(byte[] message) {
+			this.message = message;
+			this.offset = 0;
+			this.length = message.length;
+		}
+
+		@Override
+		public void run() {
+			synchronized (MQTTInFlightWindow.this) {
+				if (entries.get(message_id) != this)
+					return;
+
+				markDuplicate(this);
+				transmit(this);
+			}
+		}
+
+		void cancel() {
+			if (retry != null) {
+				retry.cancel();
+				retry = null;
+			}
+		}
+	}
+}
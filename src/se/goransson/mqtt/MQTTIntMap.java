@@ -0,0 +1,210 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A map from int keys to objects, used for message ids.
+ *
+ * Keys are stored in a plain int array with open addressing, so lookups
+ * don't box the key and adding an entry doesn't allocate anything until the
+ * map has to grow. Not thread safe. The key 0 is used to mark empty slots
+ * and can't be stored, which suits message ids since they start at 1.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTIntMap<V> {
+
+	private int[] keys;
+
+	private Object[] values;
+
+	private int mask;
+
+	private int size;
+
+	public MQTTIntMap() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity
+	 *            Number of entries the map holds before it has to grow
+	 */
+	public MQTTIntMap(int capacity) {
+		int length = 2;
+		// Keep the table at most half full
+		while (length < capacity * 2)
+			length <<= 1;
+
+		keys = new int[length];
+		values = new Object[length];
+		mask = length - 1;
+	}
+
+	/**
+	 * @return The value stored for the key, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int i = find(key);
+		return i < 0 ? null : (V) values[i];
+	}
+
+	public boolean containsKey(int key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Store a value for a key.
+	 *
+	 * @param key
+	 *            The key, must not be 0
+	 * @return The value that was stored for the key before, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (key == 0)
+			throw new IllegalArgumentException("Key can't be 0");
+
+		int i = slot(key);
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+
+		keys[i] = key;
+		values[i] = value;
+
+		if (++size * 2 > keys.length)
+			grow();
+		return null;
+	}
+
+	/**
+	 * Remove the value stored for a key.
+	 *
+	 * @return The value that was removed, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int i = find(key);
+		if (i < 0)
+			return null;
+
+		V old = (V) values[i];
+		size--;
+
+		// Move later entries of the same run back, so that lookups never
+		// stop early at the hole
+		int hole = i;
+		i = (i + 1) & mask;
+		while (keys[i] != 0) {
+			int home = slot(keys[i]);
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				keys[hole] = keys[i];
+				values[hole] = values[i];
+				hole = i;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[hole] = 0;
+		values[hole] = null;
+		return old;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = 0;
+			values[i] = null;
+		}
+		size = 0;
+	}
+
+	/**
+	 * Copy all values into an array, for going through the entries without
+	 * holding on to the map.
+	 *
+	 * @param into
+	 *            Array to use if it is large enough
+	 * @return The array holding the values, followed by null if it is longer.
+	 */
+	public Object[] values(Object[] into) {
+		Object[] result = into != null && into.length >= size ? into
+				: new Object[size];
+
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0)
+				result[n++] = values[i];
+		}
+		if (n < result.length)
+			result[n] = null;
+		return result;
+	}
+
+	private int find(int key) {
+		if (key == 0)
+			return -1;
+
+		int i = slot(key);
+		while (keys[i] != 0) {
+			if (keys[i] == key)
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int slot(int key) {
+		// Spread sequential keys like message ids over the table
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		mask = keys.length - 1;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == 0)
+				continue;
+
+			int j = slot(oldKeys[i]);
+			while (keys[j] != 0)
+				j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+}
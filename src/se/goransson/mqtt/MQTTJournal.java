@@ -0,0 +1,460 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of messages waiting to be published, kept in
+ * memory-mapped files so that it survives the process being killed.
+ *
+ * The journal is split into segments of a fixed size. Messages are appended
+ * to the newest segment and read back in order from the oldest. Once every
+ * message in a segment has been delivered, see {@link #complete(long)}, the
+ * segment file is deleted, so the journal only takes the room of what is
+ * still undelivered.
+ *
+ * Each record is written as
+ *
+ * <pre>
+ * int   length of the body
+ * int   CRC32 of the body
+ * byte  state, pending or done
+ * body: byte flags (QoS, retain), short topic length, topic, payload
+ * </pre>
+ *
+ * The length is written last, so a record that was cut short when the
+ * process died looks like the end of the segment. A record with a bad CRC
+ * ends the segment as well.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTJournal {
+
+	/** Default size of a segment file */
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	/** Default limit for all segment files together */
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	private static final String SUFFIX = ".seg";
+
+	private static final int HEADER_LENGTH = 9;
+
+	private static final byte PENDING = 1;
+
+	private static final byte DONE = 2;
+
+	/** A message read back from the journal */
+	public static class Record {
+		/** Where the record is, for {@link MQTTJournal#complete(long)} */
+		public final long position;
+		public final String topic;
+		public final byte[] payload;
+		public final int qos;
+		public final boolean retain;
+
+		Record(long position, String topic, byte[] payload, int qos,
+				boolean retain) {
+			this.position = position;
+			this.topic = topic;
+			this.payload = payload;
+			this.qos = qos;
+			this.retain = retain;
+		}
+	}
+
+	private final File dir;
+
+	private final int segmentSize;
+
+	private final long maxBytes;
+
+	/** Oldest first, the last one is written to */
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+	/** The segment that is being read from */
+	private int readIndex;
+
+	private int pending;
+
+	private final CRC32 crc = new CRC32();
+
+	/** Records are read out of the maps through this, they have no array */
+	private byte[] scratch = new byte[8192];
+
+	/** Id of the next segment, after every file that was found */
+	private int nextId;
+
+	public MQTTJournal(File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Open a journal, anything left in it from before is read back first.
+	 *
+	 * @param dir
+	 *            Directory for the segment files, created if needed
+	 * @param segmentSize
+	 *            Size of each segment file, also the largest record
+	 * @param maxBytes
+	 *            Limit for all segment files together
+	 * @throws IOException
+	 *             If the directory or the files in it can't be used
+	 */
+	public MQTTJournal(File dir, int segmentSize, long maxBytes)
+			throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxBytes = maxBytes;
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create " + dir);
+
+		recover();
+	}
+
+	/**
+	 * Add a message to the end of the journal.
+	 *
+	 * @return The position of the record, or -1 if the journal is full.
+	 * @throws IOException
+	 *             If the message doesn't fit in a segment or a new segment
+	 *             can't be created
+	 */
+	public synchronized long append(String topic, byte[] payload, int qos,
+			boolean retain) throws IOException {
+		int topicLength = MQTTEncoder.utf8Length(topic);
+		int length = 3 + topicLength + payload.length;
+		if (HEADER_LENGTH + length > segmentSize)
+			throw new IOException("Message too large for the journal");
+
+		Segment segment = segments.isEmpty() ? null : segments.get(segments
+				.size() - 1);
+		if (segment == null || segment.sealed
+				|| segment.writePos + HEADER_LENGTH + length > segmentSize) {
+			if ((long) (segments.size() + 1) * segmentSize > maxBytes)
+				return -1;
+
+			if (segment != null) {
+				segment.sealed = true;
+				deleteIfDone(segment);
+			}
+			segment = createSegment();
+		}
+
+		MappedByteBuffer map = segment.map;
+		int offset = segment.writePos;
+
+		// Body first, the length last
+		map.position(offset + HEADER_LENGTH);
+		map.put((byte) ((qos & 0x03) | (retain ? 0x04 : 0)));
+		MQTTEncoder.writeString(map, topic);
+		map.put(payload);
+
+		// The payload is still at hand, only the rest is read back
+		crc.reset();
+		update(map, offset + HEADER_LENGTH, 3 + topicLength);
+		crc.update(payload);
+		map.putInt(offset + 4, (int) crc.getValue());
+		map.put(offset + 8, PENDING);
+		map.putInt(offset, length);
+
+		segment.writePos = offset + HEADER_LENGTH + length;
+		segment.outstanding++;
+		pending++;
+
+		return position(segment, offset);
+	}
+
+	/**
+	 * Read the next message that hasn't been read yet.
+	 *
+	 * @return The message, or null if everything has been read.
+	 */
+	public synchronized Record next() {
+		while (readIndex < segments.size()) {
+			Segment segment = segments.get(readIndex);
+
+			while (segment.readPos < segment.writePos) {
+				int offset = segment.readPos;
+				MappedByteBuffer map = segment.map;
+				int length = map.getInt(offset);
+				segment.readPos = offset + HEADER_LENGTH + length;
+
+				if (map.get(offset + 8) != PENDING)
+					continue;
+
+				int body = offset + HEADER_LENGTH;
+				int flags = map.get(body);
+				int topicLength = map.getShort(body + 1) & 0xffff;
+				String topic = string(map, body + 3, topicLength);
+				byte[] payload = bytes(map, body + 3 + topicLength, length - 3
+						- topicLength);
+
+				pending--;
+				return new Record(position(segment, offset), topic, payload,
+						flags & 0x03, (flags & 0x04) != 0);
+			}
+
+			// Only move on once nothing more can be written here
+			if (!segment.sealed)
+				return null;
+			readIndex++;
+		}
+		return null;
+	}
+
+	/**
+	 * Mark a message as delivered, it won't be read back again.
+	 *
+	 * @param position
+	 *            Position of the record, from {@link #append} or
+	 *            {@link Record#position}
+	 */
+	public synchronized void complete(long position) {
+		int id = (int) (position >>> 32);
+		int offset = (int) position;
+
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			if (segment.id != id)
+				continue;
+
+			if (segment.map.get(offset + 8) == PENDING) {
+				segment.map.put(offset + 8, DONE);
+				segment.outstanding--;
+
+				// Completed before it was read
+				if (offset >= segment.readPos)
+					pending--;
+
+				deleteIfDone(segment);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @return Number of messages that haven't been read yet.
+	 */
+	public synchronized int pending() {
+		return pending;
+	}
+
+	/**
+	 * @return Bytes taken by the segment files.
+	 */
+	public synchronized long size() {
+		return (long) segments.size() * segmentSize;
+	}
+
+	/**
+	 * Write everything to the storage device. Without this, the journal
+	 * survives the process being killed but not the device losing power.
+	 */
+	public synchronized void sync() {
+		for (int i = 0; i < segments.size(); i++)
+			segments.get(i).map.force();
+	}
+
+	private void recover() throws IOException {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (!name.endsWith(SUFFIX))
+					continue;
+				try {
+					ids.add(Integer.valueOf(name.substring(0, name.length()
+							- SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// Not one of ours
+				}
+			}
+		}
+		Collections.sort(ids);
+		if (!ids.isEmpty())
+			nextId = ids.get(ids.size() - 1) + 1;
+
+		for (int id : ids) {
+			Segment segment = openSegment(id, false);
+			scan(segment);
+
+			// Nothing is appended to segments from before
+			segment.sealed = true;
+			if (segment.outstanding == 0) {
+				delete(segment);
+			} else {
+				segments.add(segment);
+				pending += segment.outstanding;
+			}
+		}
+	}
+
+	/**
+	 * Find the end of the records in a segment, and count those that are
+	 * still pending.
+	 */
+	private void scan(Segment segment) {
+		MappedByteBuffer map = segment.map;
+		int offset = 0;
+
+		while (offset + HEADER_LENGTH <= segmentSize) {
+			int length = map.getInt(offset);
+			if (length <= 0 || offset + HEADER_LENGTH + length > segmentSize)
+				break;
+
+			if (checksum(map, offset + HEADER_LENGTH, length) != map
+					.getInt(offset + 4))
+				break;
+
+			if (map.get(offset + 8) == PENDING)
+				segment.outstanding++;
+			offset += HEADER_LENGTH + length;
+		}
+		segment.writePos = offset;
+	}
+
+	private Segment createSegment() throws IOException {
+		Segment segment = openSegment(nextId++, true);
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * @param empty
+	 *            True to clear anything left in the file, so that a new
+	 *            segment never holds records of an old one
+	 */
+	private Segment openSegment(int id, boolean empty) throws IOException {
+		File file = new File(dir, id + SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (empty)
+				raf.setLength(0);
+
+			// The mapping stays valid after the file is closed
+			MappedByteBuffer map = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			return new Segment(id, file, map);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void deleteIfDone(Segment segment) {
+		if (!segment.sealed || segment.outstanding > 0)
+			return;
+
+		int index = segments.indexOf(segment);
+		segments.remove(index);
+		if (index < readIndex)
+			readIndex--;
+		delete(segment);
+	}
+
+	private void delete(Segment segment) {
+		if (segment.file.delete())
+			return;
+
+		// Emptied instead, so its records are never read back. Found again
+		// it holds nothing pending and is deleted then.
+		try {
+			RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+			try {
+				raf.setLength(0);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// New segments don't reuse its name
+		}
+	}
+
+	private int checksum(MappedByteBuffer map, int offset, int length) {
+		crc.reset();
+		update(map, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Add part of a segment to the CRC, a piece at a time.
+	 */
+	private void update(MappedByteBuffer map, int offset, int length) {
+		ByteBuffer b = map.duplicate();
+		b.position(offset);
+		while (length > 0) {
+			int count = Math.min(length, scratch.length);
+			b.get(scratch, 0, count);
+			crc.update(scratch, 0, count);
+			length -= count;
+		}
+	}
+
+	private String string(MappedByteBuffer map, int offset, int length) {
+		if (length > scratch.length)
+			scratch = new byte[length];
+
+		ByteBuffer b = map.duplicate();
+		b.position(offset);
+		b.get(scratch, 0, length);
+		return MQTT.readUTF8(scratch, 0, length);
+	}
+
+	private static byte[] bytes(MappedByteBuffer map, int offset, int length) {
+		ByteBuffer b = map.duplicate();
+		b.position(offset);
+
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		return bytes;
+	}
+
+	private static long position(Segment segment, int offset) {
+		return ((long) segment.id << 32) | (offset & 0xffffffffL);
+	}
+
+	private static class Segment {
+		final int id;
+		final File file;
+		final MappedByteBuffer map;
+
+		/** No more records are added */
+		boolean sealed;
+		int writePos;
+		int readPos;
+
+		/** Records that are not done */
+		int outstanding;
+
+		Segment(int id, File file, MappedByteBuffer map) {
+			this.id = id;
+			this.file = file;
+			this.map = map;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Decides how long a connection may stay idle before it is pinged, and how
+ * long a ping may go unanswered before the connection is given up.
+ *
+ * The round trip time of every answered ping is smoothed the way TCP does
+ * it (RFC 6298), and a ping times out after the smoothed time plus four
+ * times its variation, so a slow but working network isn't mistaken for a
+ * dead one and a dead one is noticed quickly. Until the first ping is
+ * answered nothing is known, and a ping gets as long as the interval, at
+ * least {@link #INITIAL_PING_TIMEOUT}; a radio waking up from idle alone can
+ * take seconds on a cellular network.
+ *
+ * In adaptive mode the interval starts at the configured one and is
+ * stretched every few answered pings, up to a maximum. Pings that go
+ * unanswered after an idle period show where the NAT or carrier drops idle
+ * connections; the interval falls back to the longest idle period known to
+ * work and is never stretched to that point again. Fewer pings mean fewer
+ * radio wakeups.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTKeepAlive {
+
+	/** Interval used until another one is set (ms) */
+	public static final long DEFAULT_INTERVAL = 10000;
+
+	/** Shortest time to wait for a PINGRESP (ms) */
+	public static final long MIN_PING_TIMEOUT = 5000;
+
+	/** Shortest time to wait for a PINGRESP before any was answered (ms) */
+	public static final long INITIAL_PING_TIMEOUT = 10000;
+
+	/** Longest time to wait for a PINGRESP (ms) */
+	public static final long MAX_PING_TIMEOUT = 30000;
+
+	/** Longest keep alive the protocol can express (s) */
+	private static final int MAX_KEEP_ALIVE = 65535;
+
+	/** Answered pings before the interval is stretched */
+	private static final int PROBES = 2;
+
+	/** How much the interval is stretched at a time */
+	private static final float GROWTH = 1.5f;
+
+	/** Stretching stops this close to a known failure */
+	private static final float MARGIN = 0.9f;
+
+	/** The configured interval */
+	private long interval = DEFAULT_INTERVAL;
+
+	/** Longest interval in adaptive mode, 0 when not adaptive */
+	private long maxInterval;
+
+	/** The interval in use in adaptive mode */
+	private long current = DEFAULT_INTERVAL;
+
+	/** Longest idle period a ping was answered after */
+	private long stable;
+
+	/** Shortest idle period a ping went unanswered after */
+	private long ceiling = Long.MAX_VALUE;
+
+	private int answered;
+
+	/** Smoothed round trip time (ms), -1 before the first */
+	private long srtt = -1;
+
+	/** Variation of the round trip time (ms) */
+	private long rttvar;
+
+	private long sentAt;
+
+	/** How long the connection was idle when the ping was sent */
+	private long sentIdle;
+
+	/**
+	 * @param milliseconds
+	 *            Idle time before the connection is pinged, also the
+	 *            shortest interval in adaptive mode
+	 */
+	public synchronized void setInterval(long milliseconds) {
+		if (milliseconds < 1000)
+			throw new IllegalArgumentException("Interval below one second");
+
+		interval = milliseconds;
+		maxInterval = maxInterval != 0 ? Math.max(maxInterval, interval) : 0;
+		reset();
+	}
+
+	/**
+	 * Stretch the interval toward the longest idle period the network
+	 * allows.
+	 *
+	 * The server is told the longest interval, so it may take it up to one
+	 * and a half times that long to notice a client that is gone.
+	 *
+	 * @param maxMilliseconds
+	 *            The longest interval to try, or 0 to always use the
+	 *            configured one
+	 */
+	public synchronized void setAdaptive(long maxMilliseconds) {
+		maxInterval = maxMilliseconds > 0 ? Math.max(maxMilliseconds,
+				interval) : 0;
+		reset();
+	}
+
+	public synchronized boolean isAdaptive() {
+		return maxInterval != 0;
+	}
+
+	/**
+	 * Forget what was learned about the network, for example when it
+	 * changes.
+	 */
+	public synchronized void reset() {
+		current = interval;
+		stable = 0;
+		ceiling = Long.MAX_VALUE;
+		answered = 0;
+	}
+
+	/**
+	 * @return Idle time before the connection is pinged (ms).
+	 */
+	public synchronized long getInterval() {
+		return maxInterval != 0 ? current : interval;
+	}
+
+	/**
+	 * @return The keep alive to give the server in the CONNECT message (s),
+	 *         covering the longest interval that may be used.
+	 */
+	public synchronized int getServerKeepAlive() {
+		long longest = Math.max(interval, maxInterval);
+		return (int) Math.min((longest + 999) / 1000, MAX_KEEP_ALIVE);
+	}
+
+	/**
+	 * @return Time to wait for a PINGRESP before the connection is given up
+	 *         (ms).
+	 */
+	public synchronized long getPingTimeout() {
+		if (srtt < 0)
+			return Math.min(Math.max(INITIAL_PING_TIMEOUT, getInterval()),
+					MAX_PING_TIMEOUT);
+		long timeout = srtt + 4 * rttvar;
+		return Math.max(MIN_PING_TIMEOUT, Math.min(timeout, MAX_PING_TIMEOUT));
+	}
+
+	/**
+	 * @return Smoothed round trip time of pings (ms), -1 before the first.
+	 */
+	public synchronized long getSmoothedRtt() {
+		return srtt;
+	}
+
+	/**
+	 * @return Variation of the round trip time of pings (ms).
+	 */
+	public synchronized long getRttVariation() {
+		return rttvar;
+	}
+
+	/**
+	 * A PINGREQ was sent.
+	 *
+	 * @param now
+	 *            Current time from {@link MQTTTimer#now()} (ms)
+	 * @param idle
+	 *            How long nothing had been sent or received (ms)
+	 */
+	public synchronized void pingSent(long now, long idle) {
+		sentAt = now;
+		sentIdle = idle;
+	}
+
+	/**
+	 * The PINGRESP arrived.
+	 *
+	 * @param now
+	 *            Current time from {@link MQTTTimer#now()} (ms)
+	 * @return The round trip time of the ping (ms).
+	 */
+	public synchronized long pingAnswered(long now) {
+		long rtt = Math.max(now - sentAt, 0);
+
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+
+		// Only an idle connection says anything about the idle timeout
+		if (maxInterval != 0 && sentIdle >= current) {
+			stable = Math.max(stable, sentIdle);
+
+			if (++answered >= PROBES) {
+				answered = 0;
+				long next = Math.min((long) (current * GROWTH), maxInterval);
+				if (ceiling != Long.MAX_VALUE)
+					next = Math.min(next, (long) (ceiling * MARGIN));
+				current = Math.max(current, next);
+			}
+		}
+		return rtt;
+	}
+
+	/**
+	 * The PINGRESP didn't arrive in time, the connection is taken to be dead.
+	 */
+	public synchronized void pingTimedOut() {
+		answered = 0;
+		if (maxInterval == 0)
+			return;
+
+		ceiling = Math.min(ceiling, sentIdle);
+
+		// What worked before doesn't anymore, the network has changed
+		if (stable >= ceiling)
+			stable = 0;
+		current = Math.max(interval, Math.min(stable, current));
+	}
+}
@@ -16,12 +16,28 @@ package se.goransson.mqtt;
  * limitations under the License.
  */
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Defines an MQTT message object.
  * 
+ * The header fields are decoded into typed fields. The payload is described
+ * by {@link #data}, {@link #payloadOffset} and {@link #payloadLength}; right
+ * after decoding this is a view straight into the receive buffer, which is
+ * reused for the next read. Call {@link #detach()} before the message is
+ * kept or handed to another thread, it copies the payload once into an array
+ * owned by the message.
+ * 
+ * Messages taken from a {@link MQTTMessagePool} can be given back with
+ * {@link #recycle()} when they are no longer used, the message and its
+ * payload array are then reused for a later message.
+ * 
+ * The {@link #variableHeader} map and the {@link #payload} array are only
+ * filled in by {@link #fillLegacyFields()}, or when asked for through
+ * {@link #getVariableHeader()} and {@link #getPayload()}.
+ * 
  * @author ksango
  * 
  */
@@ -33,7 +49,148 @@ public class MQTTMessage {
 	public boolean retain;
 	public int remainingLength;
 
-	public Map<String, Object> variableHeader = new HashMap<String, Object>();
+	/** Message id, 0 for messages that don't have one */
+	public int messageId;
+
+	/** Return code of a CONNACK message */
+	public int returnCode;
+
+	/** Topic name of a PUBLISH message */
+	public String topic;
+
+	/** Array holding the payload */
+	public byte[] data;
+
+	/** Start of the payload in {@link #data} */
+	public int payloadOffset;
+
+	/** Length of the payload */
+	public int payloadLength;
+
+	/**
+	 * The payload of a large PUBLISH that was spilled as it arrived, or
+	 * null. The payload fields are then empty.
+	 */
+	public MQTTSpill spilled;
+
+	/**
+	 * The header fields by name, null until {@link #fillLegacyFields()} or
+	 * {@link #getVariableHeader()} creates it.
+	 * 
+	 * @deprecated Use the typed fields instead
+	 */
+	@Deprecated
+	public Map<String, Object> variableHeader;
 
 	public byte[] payload;
+
+	/** Array owned by this message, reused when the message is recycled */
+	private byte[] owned;
+
+	/** The pool this message goes back to, or null */
+	MQTTMessagePool pool;
+
+	/** True while the message is back in its pool, guarded by the pool */
+	boolean pooled;
+
+	/**
+	 * Make sure the payload no longer refers to the receive buffer. The
+	 * payload is copied into an array owned by the message, which is kept
+	 * when the message is recycled.
+	 */
+	public void detach() {
+		if (data == owned || data == payload)
+			return;
+
+		if (owned == null || owned.length < payloadLength)
+			owned = new byte[payloadLength];
+		System.arraycopy(data, payloadOffset, owned, 0, payloadLength);
+
+		data = owned;
+		payloadOffset = 0;
+	}
+
+	/**
+	 * @return A read only buffer of the payload.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return ByteBuffer.wrap(data, payloadOffset, payloadLength).slice()
+				.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return The payload in an array of its own.
+	 */
+	public byte[] getPayload() {
+		if (payload == null) {
+			payload = new byte[payloadLength];
+			System.arraycopy(data, payloadOffset, payload, 0, payloadLength);
+		}
+		return payload;
+	}
+
+	/**
+	 * @return The header fields by name, created the first time they are
+	 *         asked for.
+	 * @deprecated Use the typed fields instead
+	 */
+	@Deprecated
+	public Map<String, Object> getVariableHeader() {
+		if (variableHeader == null)
+			variableHeader = new HashMap<String, Object>();
+		else if (!variableHeader.isEmpty())
+			return variableHeader;
+
+		switch (type) {
+		case MQTTConstants.CONNACK:
+			variableHeader.put("return_code", Byte.valueOf((byte) returnCode));
+			break;
+
+		case MQTTConstants.PUBLISH:
+			variableHeader.put("topic_name", topic);
+			if (QoS > MQTTConstants.AT_MOST_ONCE)
+				variableHeader.put("message_id", Integer.toString(messageId));
+			break;
+		}
+		return variableHeader;
+	}
+
+	/**
+	 * Fill in {@link #variableHeader} and {@link #payload} the way they were
+	 * before the typed fields existed.
+	 */
+	public void fillLegacyFields() {
+		getVariableHeader();
+		getPayload();
+	}
+
+	/**
+	 * Give the message back to the pool it was taken from. The message must
+	 * not be used after this, recycling it again is ignored.
+	 */
+	public void recycle() {
+		if (pool != null)
+			pool.release(this);
+	}
+
+	/**
+	 * Reset all fields, the owned payload array is kept.
+	 */
+	void clear() {
+		type = 0;
+		DUP = false;
+		QoS = 0;
+		retain = false;
+		remainingLength = 0;
+		messageId = 0;
+		returnCode = 0;
+		topic = null;
+		data = null;
+		payloadOffset = 0;
+		payloadLength = 0;
+		spilled = null;
+		payload = null;
+		if (variableHeader != null && !variableHeader.isEmpty())
+			variableHeader.clear();
+	}
 }
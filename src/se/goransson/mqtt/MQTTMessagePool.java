@@ -0,0 +1,89 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A bounded pool of {@link MQTTMessage} objects, so that high rate
+ * subscribers can reuse messages instead of creating new ones.
+ * 
+ * Take messages with {@link #obtain()} and give them back with
+ * {@link MQTTMessage#recycle()}. If the pool is empty a new message is
+ * created, and messages given back to a full pool are left to the garbage
+ * collector.
+ * 
+ * @author ksango
+ * 
+ */
+public class MQTTMessagePool {
+
+	private final MQTTMessage[] messages;
+
+	private int size;
+
+	/**
+	 * @param capacity
+	 *            The largest number of idle messages kept in the pool
+	 */
+	public MQTTMessagePool(int capacity) {
+		messages = new MQTTMessage[capacity];
+	}
+
+	/**
+	 * @return An empty message, from the pool if there is one.
+	 */
+	public MQTTMessage obtain() {
+		MQTTMessage msg = null;
+		synchronized (this) {
+			if (size > 0) {
+				msg = messages[--size];
+				messages[size] = null;
+				msg.pooled = false;
+			}
+		}
+
+		if (msg == null) {
+			msg = new MQTTMessage();
+			msg.pool = this;
+		}
+		return msg;
+	}
+
+	/**
+	 * Give a message back to the pool, same as {@link MQTTMessage#recycle()}.
+	 * A message that was already given back is left alone.
+	 */
+	public void release(MQTTMessage msg) {
+		synchronized (this) {
+			if (msg.pooled)
+				return;
+			msg.pooled = true;
+		}
+
+		msg.clear();
+		synchronized (this) {
+			if (size < messages.length)
+				messages[size++] = msg;
+		}
+	}
+
+	/**
+	 * @return Number of idle messages in the pool.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -0,0 +1,377 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and gauges of a connection.
+ *
+ * Counters are spread over several cells that are summed when read, in the
+ * manner of LongAdder, so threads that count at the same time rarely touch
+ * the same cache line. Counting costs one atomic add and no allocation.
+ * Gauges are read when a {@link Snapshot} is taken, from the values that
+ * are set on them or from a {@link Gauge} that is asked for its value.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTMetrics implements MQTTConstants {
+
+	/** Supplies the current value of a gauge */
+	public interface Gauge {
+		long value();
+	}
+
+	/** Names of the packet types, by type */
+	private static final String[] TYPES = { "RESERVED0", "CONNECT",
+			"CONNACK", "PUBLISH", "PUBACK", "PUBREC", "PUBREL", "PUBCOMP",
+			"SUBSCRIBE", "SUBACK", "UNSUBSCRIBE", "UNSUBACK", "PINGREQ",
+			"PINGRESP", "DISCONNECT", "RESERVED15" };
+
+	/** Number of cells of each counter */
+	private static final int STRIPES;
+
+	/** Longs between two cells, keeps them on different cache lines */
+	private static final int PAD = 8;
+
+	static {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while (stripes < cpus && stripes < 16)
+			stripes <<= 1;
+		STRIPES = stripes;
+	}
+
+	private final Counter[] packetsIn = counters(16);
+
+	private final Counter[] bytesIn = counters(16);
+
+	private final Counter[] packetsOut = counters(16);
+
+	private final Counter[] bytesOut = counters(16);
+
+	private final Counter encodeNanos = new Counter();
+
+	private final Counter decodeNanos = new Counter();
+
+	private final Counter writes = new Counter();
+
+	private final Counter connects = new Counter();
+
+	private final Counter reconnects = new Counter();
+
+	private final Counter connectNanos = new Counter();
+
+	private final Counter handshakes = new Counter();
+
+	private final Counter resumed = new Counter();
+
+	private final Counter handshakeNanos = new Counter();
+
+	private volatile long pingRtt = -1;
+
+	/** True from a connection until it is closed or lost */
+	private boolean connected;
+
+	/** When the current connection was made, see MQTTTimer.now() */
+	private long connectedSince;
+
+	/** Time spent connected, by earlier connections */
+	private long connectedMillis;
+
+	private final LinkedHashMap<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+
+	private static Counter[] counters(int count) {
+		Counter[] counters = new Counter[count];
+		for (int i = 0; i < count; i++)
+			counters[i] = new Counter();
+		return counters;
+	}
+
+	/**
+	 * A packet was received.
+	 *
+	 * @param type
+	 *            Packet type
+	 * @param bytes
+	 *            Size of the whole packet
+	 * @param nanos
+	 *            Time spent decoding it
+	 */
+	public void received(int type, int bytes, long nanos) {
+		packetsIn[type & 0x0F].add(1);
+		bytesIn[type & 0x0F].add(bytes);
+		decodeNanos.add(nanos);
+	}
+
+	/**
+	 * A packet was given to the transport.
+	 *
+	 * @param packets
+	 *            The whole packet, or several of them back to back
+	 */
+	public void sent(byte[] packets) {
+		int offset = 0;
+		while (offset < packets.length) {
+			int type = (packets[offset] >> 4) & 0x0F;
+
+			// Skip the remaining length to find the next packet
+			int end = offset + 1;
+			int remaining = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = packets[end++];
+				remaining |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0 && end < packets.length);
+			end += remaining;
+
+			packetsOut[type].add(1);
+			bytesOut[type].add(end - offset);
+			offset = end;
+		}
+	}
+
+	/**
+	 * Time was spent encoding an outgoing message.
+	 */
+	public void encoded(long nanos) {
+		encodeNanos.add(nanos);
+	}
+
+	/**
+	 * The transport wrote a batch to the socket.
+	 */
+	public void written() {
+		writes.add(1);
+	}
+
+	/**
+	 * A connection was made.
+	 */
+	public synchronized void connected() {
+		connects.add(1);
+		connected = true;
+		connectedSince = MQTTTimer.now();
+	}
+
+	/**
+	 * The time it took to set up a connection.
+	 *
+	 * @param connectNanos
+	 *            Time the TCP connection took
+	 */
+	public void established(long connectNanos) {
+		this.connectNanos.add(connectNanos);
+	}
+
+	/**
+	 * The time a TLS handshake took, apart from the TCP connection.
+	 *
+	 * @param nanos
+	 *            Time the handshake took
+	 * @param resumed
+	 *            True if an earlier session was resumed
+	 */
+	public void handshake(long nanos, boolean resumed) {
+		handshakes.add(1);
+		handshakeNanos.add(nanos);
+		if (resumed)
+			this.resumed.add(1);
+	}
+
+	/**
+	 * The connection was closed or lost.
+	 */
+	public synchronized void disconnected() {
+		if (connected) {
+			connectedMillis += MQTTTimer.now() - connectedSince;
+			connected = false;
+		}
+	}
+
+	/**
+	 * A reconnect attempt was started.
+	 */
+	public void reconnecting() {
+		reconnects.add(1);
+	}
+
+	/**
+	 * A PINGRESP arrived.
+	 *
+	 * @param millis
+	 *            Time since the PINGREQ was sent
+	 */
+	public void ping(long millis) {
+		pingRtt = millis;
+	}
+
+	/**
+	 * @return Round trip time of the last ping (ms), -1 before the first.
+	 */
+	public long getPingRtt() {
+		return pingRtt;
+	}
+
+	/**
+	 * Add a gauge that is read every time a snapshot is taken, for example
+	 * the depth of a queue.
+	 */
+	public synchronized void setGauge(String name, Gauge gauge) {
+		if (gauge == null)
+			gauges.remove(name);
+		else
+			gauges.put(name, gauge);
+	}
+
+	/**
+	 * @return The current values.
+	 */
+	public Snapshot snapshot() {
+		return snapshot(false);
+	}
+
+	/**
+	 * @param reset
+	 *            True to start the counters over from zero, so that the next
+	 *            snapshot has what was counted since this one
+	 * @return The current values.
+	 */
+	public synchronized Snapshot snapshot(boolean reset) {
+		Snapshot s = new Snapshot();
+
+		for (int type = 1; type < 15; type++) {
+			long packets = packetsIn[type].read(reset);
+			long bytes = bytesIn[type].read(reset);
+			if (packets != 0) {
+				s.values.put("in." + TYPES[type] + ".packets", packets);
+				s.values.put("in." + TYPES[type] + ".bytes", bytes);
+			}
+		}
+		for (int type = 1; type < 15; type++) {
+			long packets = packetsOut[type].read(reset);
+			long bytes = bytesOut[type].read(reset);
+			if (packets != 0) {
+				s.values.put("out." + TYPES[type] + ".packets", packets);
+				s.values.put("out." + TYPES[type] + ".bytes", bytes);
+			}
+		}
+
+		s.values.put("encode.nanos", encodeNanos.read(reset));
+		s.values.put("decode.nanos", decodeNanos.read(reset));
+		s.values.put("writes", writes.read(reset));
+		s.values.put("connects", connects.read(reset));
+		s.values.put("reconnects", reconnects.read(reset));
+		s.values.put("connect.nanos", connectNanos.read(reset));
+		s.values.put("tls.handshakes", handshakes.read(reset));
+		s.values.put("tls.resumed", resumed.read(reset));
+		s.values.put("tls.handshake.nanos", handshakeNanos.read(reset));
+
+		long now = MQTTTimer.now();
+		s.values.put("connected.millis", connectedMillis
+				+ (connected ? now - connectedSince : 0));
+		if (reset) {
+			connectedMillis = 0;
+			connectedSince = now;
+		}
+		s.values.put("ping.rtt", pingRtt);
+
+		for (Map.Entry<String, Gauge> e : gauges.entrySet())
+			s.values.put(e.getKey(), e.getValue().value());
+
+		return s;
+	}
+
+	/**
+	 * Start every counter over from zero.
+	 */
+	public void reset() {
+		snapshot(true);
+	}
+
+	/**
+	 * The values of the metrics at one point in time.
+	 */
+	public static class Snapshot {
+
+		/** When the snapshot was taken (ms) */
+		public final long time = System.currentTimeMillis();
+
+		private final LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+
+		/**
+		 * @return The value of a metric, or 0 if there is none by that name.
+		 */
+		public long get(String name) {
+			Long value = values.get(name);
+			return value != null ? value.longValue() : 0;
+		}
+
+		/**
+		 * @return Every value by name, in a stable order.
+		 */
+		public Map<String, Long> getValues() {
+			return values;
+		}
+
+		/**
+		 * @return The snapshot as a JSON object.
+		 */
+		public String toJSON() {
+			StringBuilder json = new StringBuilder(values.size() * 32);
+			json.append("{\"time\":").append(time);
+			for (Map.Entry<String, Long> e : values.entrySet())
+				json.append(",\"").append(e.getKey()).append("\":")
+						.append(e.getValue());
+			return json.append('}').toString();
+		}
+
+		@Override
+		public String toString() {
+			return toJSON();
+		}
+	}
+
+	/**
+	 * A counter spread over several cells, each on a cache line of its own.
+	 */
+	private static final class Counter {
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+				* PAD);
+
+		void add(long x) {
+			// Threads keep the cell they start with, ids are handed out in
+			// order so neighbouring threads get different cells
+			int cell = (int) Thread.currentThread().getId() & (STRIPES - 1);
+			cells.getAndAdd(cell * PAD, x);
+		}
+
+		long read(boolean reset) {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++)
+				sum += reset ? cells.getAndSet(i * PAD, 0) : cells.get(i
+						* PAD);
+			return sum;
+		}
+	}
+}
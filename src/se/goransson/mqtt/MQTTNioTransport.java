@@ -0,0 +1,463 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transport built on a non-blocking {@link SocketChannel}.
+ *
+ * Connecting, reading and writing are all done by a {@link MQTTEventLoop},
+ * which can be shared by many connections. Outgoing messages are queued
+ * and written in batches, like {@link MQTTWriter} does. A host that isn't
+ * in the {@link MQTTAddressCache} is looked up on a thread of its own, so
+ * that a slow DNS server doesn't hold up the other connections.
+ *
+ * Streamed payloads are written as the socket takes them. Files and
+ * buffers go straight to the channel; other streams are read into the
+ * batch buffer on the loop thread, so they should not block for long.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTNioTransport implements MQTTTransport, MQTTEventLoop.Listener {
+
+	/** Reads done each time the channel is ready, before other work */
+	private static final int MAX_READS_PER_WAKEUP = 16;
+
+	private final MQTTEventLoop loop;
+
+	private final MQTTFrameDecoder decoder;
+
+	private final long linger;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+
+	private final ByteBuffer batch;
+
+	/** Complete messages, and streamed payloads with their headers */
+	private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+
+	/** Set while a flush is waiting to run on the loop */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	private volatile boolean closed;
+
+	// The fields below are only used on the loop thread
+
+	private Callback callback;
+
+	private String host;
+
+	private SocketChannel channel;
+
+	private SelectionKey key;
+
+	private boolean connected;
+
+	private MQTTScheduler.Timeout connectTimeout;
+
+	/** The buffer being written, the batch or a single large message */
+	private ByteBuffer writing;
+
+	/** Number of messages in the buffer being written */
+	private int writingMessages;
+
+	/** The payload being streamed, after its header */
+	private MQTTPayloadStream streaming;
+
+	/** Bytes of the streamed payload not yet read */
+	private int streamRemaining;
+
+	/**
+	 * @param loop
+	 *            The event loop that drives this connection
+	 * @param maxPacketSize
+	 *            The largest incoming message that will be accepted
+	 * @param maxBatchBytes
+	 *            Size of the buffer outgoing messages are batched in
+	 * @param lingerMillis
+	 *            How long outgoing messages may wait for more to batch with
+	 */
+	public MQTTNioTransport(MQTTEventLoop loop, int maxPacketSize,
+			int maxBatchBytes, long lingerMillis) {
+		this.loop = loop;
+		this.decoder = new MQTTFrameDecoder(readBuffer.capacity(),
+				maxPacketSize);
+		this.batch = ByteBuffer.allocate(maxBatchBytes);
+		this.linger = lingerMillis;
+	}
+
+	/**
+	 * @return The event loop that drives this connection.
+	 */
+	public MQTTEventLoop getEventLoop() {
+		return loop;
+	}
+
+	@Override
+	public void connect(final String host, final int port, final int timeout,
+			final Callback callback) {
+		InetSocketAddress address = MQTTAddressCache.getDefault().cached(host,
+				port);
+		if (address != null) {
+			connect(address, host, timeout, callback);
+			return;
+		}
+
+		new Thread("MQTTResolver") {
+			@Override
+			public void run() {
+				try {
+					connect(MQTTAddressCache.getDefault().resolve(host, port),
+							host, timeout, callback);
+				} catch (final IOException e) {
+					loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							MQTTNioTransport.this.callback = callback;
+							failed(e);
+						}
+					});
+				}
+			}
+		}.start();
+	}
+
+	private void connect(final InetSocketAddress address, final String host,
+			final int timeout, final Callback callback) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				open(address, host, timeout, callback);
+			}
+		});
+	}
+
+	@Override
+	public boolean send(byte[] message) {
+		// Queued while connecting, written once connected
+		if (closed)
+			return false;
+
+		send((Object) message);
+		return true;
+	}
+
+	@Override
+	public boolean send(byte[] header, MQTTPayloadStream payload) {
+		if (closed) {
+			payload.close();
+			return false;
+		}
+
+		payload.header = header;
+		send(payload);
+		return true;
+	}
+
+	private void send(Object message) {
+		queue.offer(message);
+
+		// Only wake the loop once per burst of messages
+		if (flushScheduled.compareAndSet(false, true)) {
+			if (linger > 0)
+				loop.schedule(flushTask, linger);
+			else
+				loop.execute(flushTask);
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				release();
+			}
+		});
+	}
+
+	@Override
+	public void onReady(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				channel.finishConnect();
+				connected();
+			}
+
+			if (key.isValid() && key.isReadable())
+				read();
+
+			if (key.isValid() && key.isWritable())
+				flush();
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			// Cleared first, so that later sends schedule a new flush
+			flushScheduled.set(false);
+
+			if (connected) {
+				try {
+					flush();
+				} catch (IOException e) {
+					failed(e);
+				}
+			}
+		}
+	};
+
+	private void open(InetSocketAddress address, String host, int timeout,
+			Callback callback) {
+		this.callback = callback;
+		this.host = host;
+
+		if (closed)
+			return;
+
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+
+			if (channel.connect(address)) {
+				key = loop.register(channel, SelectionKey.OP_READ, this);
+				connected();
+			} else {
+				key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+				connectTimeout = loop.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (!connected)
+							failed(new SocketTimeoutException("connect timed out"));
+					}
+				}, timeout);
+			}
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	private void connected() throws IOException {
+		if (connectTimeout != null)
+			connectTimeout.cancel();
+
+		connected = true;
+		key.interestOps(SelectionKey.OP_READ);
+		callback.onConnected();
+
+		// Anything queued while connecting
+		flush();
+	}
+
+	private void read() throws IOException {
+		// Bounded, so one busy connection can't starve the others
+		for (int i = 0; i < MAX_READS_PER_WAKEUP && !closed; i++) {
+			int bytes = channel.read(readBuffer);
+			if (bytes < 0)
+				throw new IOException("Connection closed by server");
+			if (bytes == 0)
+				return;
+
+			// A read can hold several messages, or only part of one
+			decoder.feed(readBuffer.array(), 0, bytes, callback);
+			readBuffer.clear();
+		}
+	}
+
+	private void flush() throws IOException {
+		if (closed)
+			return;
+
+		while (true) {
+			if (writing == null && streaming == null && !fill())
+				break;
+
+			if (writing != null) {
+				channel.write(writing);
+				if (writing.hasRemaining()) {
+					// The socket buffer is full, continue when there's room
+					key.interestOps(SelectionKey.OP_READ
+							| SelectionKey.OP_WRITE);
+					return;
+				}
+
+				if (streaming == null)
+					callback.onWrite(writingMessages, writing.limit());
+				writing = null;
+			}
+
+			if (streaming != null && !stream()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Write the streamed payload until it is done or the socket is full.
+	 * 
+	 * @return False if the socket buffer is full.
+	 */
+	private boolean stream() throws IOException {
+		while (streamRemaining > 0) {
+			long sent = streaming.transferTo(channel, streamRemaining);
+			if (sent == 0)
+				return false;
+
+			if (sent > 0) {
+				streamRemaining -= sent;
+				continue;
+			}
+
+			// Through the batch buffer, written by flush() when it is full
+			batch.clear();
+			if (streamRemaining < batch.capacity())
+				batch.limit(streamRemaining);
+			int read = streaming.read(batch);
+			if (read < 0)
+				throw new EOFException("Payload ended " + streamRemaining
+						+ " bytes early");
+			streamRemaining -= read;
+
+			batch.flip();
+			writing = batch;
+			channel.write(writing);
+			if (writing.hasRemaining())
+				return false;
+			writing = null;
+		}
+
+		callback.onWrite(1, streaming.header.length + streaming.length());
+		streaming.close();
+		streaming = null;
+		return true;
+	}
+
+	/**
+	 * Move queued messages into the batch buffer.
+	 *
+	 * @return False if nothing was queued.
+	 */
+	private boolean fill() {
+		batch.clear();
+		int messages = 0;
+
+		Object next;
+		while ((next = queue.peek()) != null) {
+			if (next instanceof MQTTPayloadStream) {
+				if (messages > 0)
+					break;
+
+				// The header on its own, then the payload
+				queue.poll();
+				streaming = (MQTTPayloadStream) next;
+				streamRemaining = streaming.length();
+				writing = ByteBuffer.wrap(streaming.header);
+				return true;
+			}
+
+			byte[] message = (byte[]) next;
+			if (message.length > batch.remaining()) {
+				if (messages > 0)
+					break;
+
+				// Too large for the batch, write it on its own
+				queue.poll();
+				writing = ByteBuffer.wrap(message);
+				writingMessages = 1;
+				return true;
+			}
+
+			queue.poll();
+			batch.put(message);
+			messages++;
+		}
+
+		if (messages == 0)
+			return false;
+
+		batch.flip();
+		writing = batch;
+		writingMessages = messages;
+		return true;
+	}
+
+	private void failed(IOException e) {
+		if (closed)
+			return;
+
+		boolean wasConnected = connected;
+		closed = true;
+		release();
+
+		if (wasConnected) {
+			callback.onConnectionLost(e);
+		} else {
+			if (host != null)
+				MQTTAddressCache.getDefault().failed(host);
+			callback.onConnectFailed(e);
+		}
+	}
+
+	private void release() {
+		connected = false;
+
+		// Releases a partly spilled message
+		decoder.reset();
+
+		// Nothing more is written, release the sources of what is left
+		if (streaming != null) {
+			streaming.close();
+			streaming = null;
+		}
+		Object next;
+		while ((next = queue.poll()) != null)
+			if (next instanceof MQTTPayloadStream)
+				((MQTTPayloadStream) next).close();
+
+		if (connectTimeout != null)
+			connectTimeout.cancel();
+
+		if (key != null)
+			key.cancel();
+
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing left to do
+			}
+		}
+	}
+}
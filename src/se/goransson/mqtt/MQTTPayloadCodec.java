@@ -0,0 +1,61 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+/**
+ * Transforms payloads before they are published and after they are
+ * received, for example to compress them. Codecs are used through
+ * {@link MQTTPayloadCodecs}, which marks every encoded payload with the id
+ * of its codec so that the receiver knows how to decode it.
+ *
+ * @author ksango
+ *
+ */
+public interface MQTTPayloadCodec {
+
+	/**
+	 * @return The id written in front of encoded payloads, 1 to 255, the same
+	 *         on every client.
+	 */
+	int getId();
+
+	/**
+	 * Encode a payload.
+	 *
+	 * @param headroom
+	 *            Number of bytes to leave free at the start of the result,
+	 *            for the caller to fill in
+	 * @return The encoded payload, after the headroom.
+	 */
+	byte[] encode(byte[] payload, int offset, int length, int headroom)
+			throws IOException;
+
+	/**
+	 * Decode a payload made by {@link #encode(byte[], int, int, int)}.
+	 *
+	 * @param maxLength
+	 *            The largest original payload that will be accepted, the
+	 *            encoded payload may come from anyone
+	 * @return The original payload.
+	 * @throws IOException
+	 *             If the payload is corrupt or too large
+	 */
+	byte[] decode(byte[] payload, int offset, int length, int maxLength)
+			throws IOException;
+}
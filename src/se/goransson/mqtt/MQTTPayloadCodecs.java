@@ -0,0 +1,293 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Chooses the {@link MQTTPayloadCodec} for outgoing payloads and decodes
+ * incoming ones.
+ *
+ * Each topic can have a codec of its own, other topics use the default
+ * codec, and payloads smaller than the threshold are sent as they are. An
+ * encoded payload starts with two marker bytes that never appear in UTF-8
+ * text, followed by the id of the codec. Incoming payloads that start with
+ * the marker are decoded with the codec of that id, whatever their topic, so
+ * receivers only need to know the codec. A payload that doesn't get smaller
+ * is sent as it is. Decoded payloads are never larger than the maximum
+ * decoded size, whatever the encoded payload claims.
+ *
+ * The size before and after encoding and the time spent are counted, both
+ * for the last message and in total, to help choose a threshold.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTPayloadCodecs {
+
+	/** Default size below which payloads are not encoded */
+	public static final int DEFAULT_THRESHOLD = 256;
+
+	private static final byte MARKER_0 = (byte) 0xC1;
+
+	private static final byte MARKER_1 = (byte) 0xC0;
+
+	private static final int HEADER = 3;
+
+	private final MQTTPayloadCodec[] codecs = new MQTTPayloadCodec[256];
+
+	private final HashMap<String, MQTTPayloadCodec> topics = new HashMap<String, MQTTPayloadCodec>();
+
+	private MQTTPayloadCodec defaultCodec;
+
+	private int threshold = DEFAULT_THRESHOLD;
+
+	private int maxDecodedSize = MQTTFrameDecoder.DEFAULT_MAX_PACKET_SIZE;
+
+	// Statistics
+
+	private long encoded;
+
+	private long encodedIn;
+
+	private long encodedOut;
+
+	private long encodeNanos;
+
+	private long decoded;
+
+	private long decodeNanos;
+
+	private double lastRatio = 1;
+
+	private long lastEncodeNanos;
+
+	private long lastDecodeNanos;
+
+	/**
+	 * Make a codec known, so that payloads encoded with it are decoded.
+	 */
+	public synchronized void register(MQTTPayloadCodec codec) {
+		int id = codec.getId();
+		if (id < 1 || id > 255)
+			throw new IllegalArgumentException("Codec id out of range: " + id);
+		codecs[id] = codec;
+	}
+
+	/**
+	 * Set the codec used for topics that don't have one of their own.
+	 *
+	 * @param codec
+	 *            The codec, or null to send such payloads as they are
+	 */
+	public synchronized void setDefault(MQTTPayloadCodec codec) {
+		if (codec != null)
+			register(codec);
+		defaultCodec = codec;
+	}
+
+	/**
+	 * Set the codec of a topic.
+	 *
+	 * @param codec
+	 *            The codec, or null to use the default codec
+	 */
+	public synchronized void setCodec(String topic, MQTTPayloadCodec codec) {
+		if (codec == null) {
+			topics.remove(topic);
+		} else {
+			register(codec);
+			topics.put(topic, codec);
+		}
+	}
+
+	/**
+	 * Set the size below which payloads are sent as they are.
+	 *
+	 * @param bytes
+	 *            Size in bytes
+	 */
+	public synchronized void setThreshold(int bytes) {
+		threshold = bytes;
+	}
+
+	/**
+	 * Set the largest payload that decoding may produce, larger ones are
+	 * treated as corrupt.
+	 *
+	 * @param bytes
+	 *            Size in bytes
+	 */
+	public synchronized void setMaxDecodedSize(int bytes) {
+		maxDecodedSize = bytes;
+	}
+
+	/**
+	 * Encode a payload for a topic.
+	 *
+	 * @return The payload with its marker, or the payload itself if it isn't
+	 *         encoded.
+	 */
+	public byte[] encode(String topic, byte[] payload) throws IOException {
+		MQTTPayloadCodec codec;
+		synchronized (this) {
+			if (payload.length < threshold)
+				return payload;
+			codec = topics.isEmpty() ? defaultCodec : topics.get(topic);
+			if (codec == null)
+				codec = defaultCodec;
+		}
+		if (codec == null)
+			return payload;
+
+		long start = System.nanoTime();
+		// Encoded straight after the room for the marker
+		byte[] body = codec.encode(payload, 0, payload.length, HEADER);
+		long nanos = System.nanoTime() - start;
+
+		byte[] result;
+		if (body.length < payload.length) {
+			result = body;
+			result[0] = MARKER_0;
+			result[1] = MARKER_1;
+			result[2] = (byte) codec.getId();
+		} else {
+			// Not worth it
+			result = payload;
+		}
+
+		synchronized (this) {
+			encoded++;
+			encodedIn += payload.length;
+			encodedOut += result.length;
+			encodeNanos += nanos;
+			lastRatio = (double) result.length / payload.length;
+			lastEncodeNanos = nanos;
+		}
+		return result;
+	}
+
+	/**
+	 * @return True if the payload of a message was encoded by a codec.
+	 */
+	public static boolean isEncoded(MQTTMessage msg) {
+		return msg.payloadLength >= HEADER
+				&& msg.data[msg.payloadOffset] == MARKER_0
+				&& msg.data[msg.payloadOffset + 1] == MARKER_1;
+	}
+
+	/**
+	 * Decode the payload of an incoming message in place, the message gets an
+	 * array of its own with the original payload. Messages without the marker
+	 * are left as they are.
+	 *
+	 * @return False if the payload wasn't encoded.
+	 * @throws IOException
+	 *             If the codec is unknown or the payload is corrupt, the
+	 *             message is left as it is
+	 */
+	public boolean decode(MQTTMessage msg) throws IOException {
+		if (!isEncoded(msg))
+			return false;
+
+		int id = msg.data[msg.payloadOffset + 2] & 0xFF;
+		MQTTPayloadCodec codec;
+		int max;
+		synchronized (this) {
+			codec = codecs[id];
+			max = maxDecodedSize;
+		}
+		if (codec == null)
+			throw new IOException("Unknown payload codec " + id);
+
+		long start = System.nanoTime();
+		byte[] original = codec.decode(msg.data, msg.payloadOffset + HEADER,
+				msg.payloadLength - HEADER, max);
+		long nanos = System.nanoTime() - start;
+
+		synchronized (this) {
+			decoded++;
+			decodeNanos += nanos;
+			lastDecodeNanos = nanos;
+		}
+
+		msg.data = original;
+		msg.payload = original;
+		msg.payloadOffset = 0;
+		msg.payloadLength = original.length;
+		return true;
+	}
+
+	/**
+	 * @return Size after encoding divided by size before, over all payloads
+	 *         that were at least as large as the threshold.
+	 */
+	public synchronized double getRatio() {
+		return encodedIn == 0 ? 1 : (double) encodedOut / encodedIn;
+	}
+
+	/**
+	 * @return Size after encoding divided by size before, for the last
+	 *         payload that was at least as large as the threshold.
+	 */
+	public synchronized double getLastRatio() {
+		return lastRatio;
+	}
+
+	/**
+	 * @return Average time spent encoding a payload, in nanoseconds.
+	 */
+	public synchronized long getEncodeNanos() {
+		return encoded == 0 ? 0 : encodeNanos / encoded;
+	}
+
+	/**
+	 * @return Time spent encoding the last payload, in nanoseconds.
+	 */
+	public synchronized long getLastEncodeNanos() {
+		return lastEncodeNanos;
+	}
+
+	/**
+	 * @return Average time spent decoding a payload, in nanoseconds.
+	 */
+	public synchronized long getDecodeNanos() {
+		return decoded == 0 ? 0 : decodeNanos / decoded;
+	}
+
+	/**
+	 * @return Time spent decoding the last payload, in nanoseconds.
+	 */
+	public synchronized long getLastDecodeNanos() {
+		return lastDecodeNanos;
+	}
+
+	/**
+	 * @return Number of payloads given to a codec to encode.
+	 */
+	public synchronized long getEncoded() {
+		return encoded;
+	}
+
+	/**
+	 * @return Number of payloads decoded.
+	 */
+	public synchronized long getDecoded() {
+		return decoded;
+	}
+}
@@ -0,0 +1,221 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A payload that is written to the connection a piece at a time as it is
+ * read from its source, so that it is never held on the heap as a whole.
+ * See {@link MQTTService#publish(String, MQTTPayloadStream, int, boolean)}.
+ *
+ * The payload is read on the thread that writes the connection, after the
+ * messages queued before it. A stream can only be published once.
+ *
+ * @author ksango
+ *
+ */
+public abstract class MQTTPayloadStream {
+
+	private final int length;
+
+	/** The PUBLISH up to the payload, set when it is queued */
+	byte[] header;
+
+	/**
+	 * @param length
+	 *            Number of bytes in the payload
+	 */
+	protected MQTTPayloadStream(int length) {
+		if (length < 0 || length > MQTTEncoder.MAX_REMAINING_LENGTH)
+			throw new IllegalArgumentException("Payload length out of range: "
+					+ length);
+		this.length = length;
+	}
+
+	/**
+	 * @return Number of bytes in the payload.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Read the next part of the payload.
+	 *
+	 * @param buffer
+	 *            Destination, no more than its remaining bytes are read
+	 * @return Number of bytes read, or -1 if the source has ended.
+	 */
+	public abstract int read(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Write the next part of the payload to a channel without copying it
+	 * through a buffer of the writer.
+	 *
+	 * @param channel
+	 *            Destination, it may be non-blocking
+	 * @param count
+	 *            The most bytes to write
+	 * @return Number of bytes written, or -1 if the source can't write
+	 *         directly and has to be {@link #read(ByteBuffer)}.
+	 */
+	public long transferTo(WritableByteChannel channel, long count)
+			throws IOException {
+		return -1;
+	}
+
+	/**
+	 * Called once the payload is written, or when it won't be because the
+	 * connection was closed.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * A payload read from a stream. The stream is closed once the payload is
+	 * written.
+	 *
+	 * @param in
+	 *            The stream, read on the writing thread
+	 * @param length
+	 *            Number of bytes to read from it
+	 */
+	public static MQTTPayloadStream fromStream(final InputStream in, int length) {
+		return new MQTTPayloadStream(length) {
+			private byte[] scratch;
+
+			@Override
+			public int read(ByteBuffer buffer) throws IOException {
+				int read;
+				if (buffer.hasArray()) {
+					read = in.read(buffer.array(), buffer.arrayOffset()
+							+ buffer.position(), buffer.remaining());
+					if (read > 0)
+						buffer.position(buffer.position() + read);
+				} else {
+					if (scratch == null)
+						scratch = new byte[8192];
+					read = in.read(scratch, 0,
+							Math.min(scratch.length, buffer.remaining()));
+					if (read > 0)
+						buffer.put(scratch, 0, read);
+				}
+				return read;
+			}
+
+			@Override
+			public void close() {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Nothing left to do
+				}
+			}
+		};
+	}
+
+	/**
+	 * A payload held in a buffer, from its position to its limit. A direct
+	 * buffer is written to the socket without being copied onto the heap.
+	 *
+	 * @param buffer
+	 *            The payload, it must not be changed until it is written
+	 *            but its position and limit are left alone
+	 */
+	public static MQTTPayloadStream fromBuffer(ByteBuffer buffer) {
+		final ByteBuffer payload = buffer.duplicate();
+		return new MQTTPayloadStream(payload.remaining()) {
+			@Override
+			public int read(ByteBuffer buffer) {
+				if (!payload.hasRemaining())
+					return -1;
+
+				int count = Math.min(buffer.remaining(), payload.remaining());
+				int limit = payload.limit();
+				payload.limit(payload.position() + count);
+				buffer.put(payload);
+				payload.limit(limit);
+				return count;
+			}
+
+			@Override
+			public long transferTo(WritableByteChannel channel, long count)
+					throws IOException {
+				int limit = payload.limit();
+				if (count < payload.remaining())
+					payload.limit(payload.position() + (int) count);
+				try {
+					return channel.write(payload);
+				} finally {
+					payload.limit(limit);
+				}
+			}
+		};
+	}
+
+	/**
+	 * A payload read from a part of a file. Over a plain TCP connection it
+	 * is passed from the file to the socket with
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+	 * without passing through the heap. The channel is left open, so that
+	 * several parts of one file can be published.
+	 *
+	 * @param channel
+	 *            The file
+	 * @param position
+	 *            Where in the file the payload starts
+	 * @param length
+	 *            Number of bytes in the payload
+	 * @throws EOFException
+	 *             If the file ends before the payload does
+	 */
+	public static MQTTPayloadStream fromChannel(final FileChannel channel,
+			final long position, int length) throws IOException {
+		if (position + length > channel.size())
+			throw new EOFException("File ends before the payload");
+
+		return new MQTTPayloadStream(length) {
+			private long next = position;
+
+			@Override
+			public int read(ByteBuffer buffer) throws IOException {
+				int read = channel.read(buffer, next);
+				if (read > 0)
+					next += read;
+				return read;
+			}
+
+			@Override
+			public long transferTo(WritableByteChannel target, long count)
+					throws IOException {
+				// A file that shrank would otherwise look like a full socket
+				if (next >= channel.size())
+					throw new EOFException("File ended before the payload");
+
+				long sent = channel.transferTo(next, count, target);
+				next += sent;
+				return sent;
+			}
+		};
+	}
+}
@@ -0,0 +1,109 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before each reconnect attempt.
+ *
+ * The wait is a random time between zero and a limit that doubles with
+ * every failed attempt, up to a maximum ("full jitter"). When a server
+ * restarts and all of its clients lose their connection at once, their
+ * attempts are spread over the whole period instead of arriving together.
+ * The first attempt after a connection was lost is made within a short
+ * time, as most losses are brief.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTReconnectPolicy {
+
+	/** Limit of the first attempt (ms) */
+	public static final long DEFAULT_FIRST_DELAY = 1000;
+
+	/** Limit of the second attempt, doubled for every one after it (ms) */
+	public static final long DEFAULT_BASE_DELAY = 2000;
+
+	/** Longest wait between two attempts (ms) */
+	public static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+
+	private final Random random = new Random();
+
+	private long firstDelay = DEFAULT_FIRST_DELAY;
+
+	private long baseDelay = DEFAULT_BASE_DELAY;
+
+	private long maxDelay = DEFAULT_MAX_DELAY;
+
+	/** Attempts made since the last successful connection */
+	private int attempts;
+
+	public MQTTReconnectPolicy() {
+	}
+
+	/**
+	 * @param firstDelay
+	 *            Limit of the first attempt (ms)
+	 * @param baseDelay
+	 *            Limit of the second attempt, doubled for every one after it
+	 *            (ms)
+	 * @param maxDelay
+	 *            Longest wait between two attempts (ms)
+	 */
+	public MQTTReconnectPolicy(long firstDelay, long baseDelay, long maxDelay) {
+		if (firstDelay < 0 || baseDelay <= 0 || maxDelay < baseDelay)
+			throw new IllegalArgumentException("Invalid delays");
+
+		this.firstDelay = firstDelay;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @return How long to wait before the next attempt (ms).
+	 */
+	public synchronized long nextDelay() {
+		long limit;
+		if (attempts == 0) {
+			limit = firstDelay;
+		} else {
+			// Doubling stops at the maximum, so it can't overflow
+			limit = baseDelay;
+			for (int i = 1; i < attempts && limit < maxDelay; i++)
+				limit <<= 1;
+			limit = Math.min(limit, maxDelay);
+		}
+		attempts++;
+
+		return limit > 0 ? (long) (random.nextDouble() * limit) : 0;
+	}
+
+	/**
+	 * @return Attempts made since the last successful connection.
+	 */
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * A connection was made, the next attempt is a first one again.
+	 */
+	public synchronized void reset() {
+		attempts = 0;
+	}
+}
@@ -0,0 +1,342 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of incoming messages between the thread that reads them
+ * and the thread that delivers them.
+ *
+ * There is exactly one producer and one consumer. The slots are allocated up
+ * front and messages are handed over without locks. A position is taken by
+ * moving the head past it, and each slot carries the sequence of the
+ * position it may be filled or taken for, so a slot is never refilled
+ * before whoever took it is done with it. When the queue is full the
+ * overflow policy decides what happens:
+ *
+ * <ul>
+ * <li>{@link #OVERFLOW_BLOCK} makes the producer wait, which stops reading
+ * from the socket and lets TCP slow down the server.</li>
+ * <li>{@link #OVERFLOW_DROP_OLDEST} drops the oldest queued message.</li>
+ * <li>{@link #OVERFLOW_DROP_NEWEST} drops the message being added.</li>
+ * <li>{@link #OVERFLOW_CONFLATE} replaces a queued message on the same topic
+ * with the new one, at any fill level, and drops the oldest message if the
+ * queue is full of different topics.</li>
+ * </ul>
+ *
+ * Dropped messages are recycled.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTRingBuffer implements MQTTConnectionConstants {
+
+	/** Default number of slots */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final AtomicReferenceArray<MQTTMessage> slots;
+
+	/**
+	 * For each slot, the position it may be filled for next, or that
+	 * position + 1 once it is filled
+	 */
+	private final AtomicLongArray sequences;
+
+	private final int mask;
+
+	private final int policy;
+
+	/** Next slot to take from, moved by the consumer and by dropping */
+	private final AtomicLong head = new AtomicLong();
+
+	/** Next slot to add to, only written by the producer */
+	private volatile long tail;
+
+	/** Latest queued position of each topic, used by the producer only */
+	private final HashMap<String, Long> latest;
+
+	private volatile Thread producer;
+
+	private volatile Thread consumer;
+
+	private volatile boolean producerWaiting;
+
+	private volatile boolean consumerWaiting;
+
+	private volatile boolean closed;
+
+	// Counters, only written by the producer
+
+	private volatile long dropped;
+
+	private volatile long conflated;
+
+	private volatile int highWaterMark;
+
+	/**
+	 * @param capacity
+	 *            Number of slots, rounded up to a power of two
+	 * @param policy
+	 *            What to do when the queue is full, one of
+	 *            {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_DROP_OLDEST},
+	 *            {@link #OVERFLOW_DROP_NEWEST} or {@link #OVERFLOW_CONFLATE}
+	 */
+	public MQTTRingBuffer(int capacity, int policy) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+
+		this.slots = new AtomicReferenceArray<MQTTMessage>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+		this.mask = size - 1;
+		this.policy = policy;
+		this.latest = policy == OVERFLOW_CONFLATE ? new HashMap<String, Long>()
+				: null;
+	}
+
+	/**
+	 * Add a message, called by the producer only. Blocks while the queue is
+	 * full if the policy is {@link #OVERFLOW_BLOCK}.
+	 *
+	 * @param msg
+	 *            A message that doesn't refer to the receive buffer
+	 * @return False if the message was dropped.
+	 */
+	public boolean offer(MQTTMessage msg) {
+		if (closed) {
+			msg.recycle();
+			return false;
+		}
+
+		if (latest != null && msg.topic != null && conflate(msg))
+			return true;
+
+		long t = tail;
+		int slot = (int) (t & mask);
+		while (t - head.get() > mask || sequences.get(slot) != t) {
+			if (t - head.get() <= mask) {
+				// Taken, but whoever took it hasn't emptied the slot yet
+				Thread.yield();
+				continue;
+			}
+
+			switch (policy) {
+			case OVERFLOW_DROP_NEWEST:
+				dropped++;
+				msg.recycle();
+				return false;
+
+			case OVERFLOW_BLOCK:
+				producer = Thread.currentThread();
+				producerWaiting = true;
+				if (t - head.get() > mask && !closed)
+					LockSupport.park(this);
+				producerWaiting = false;
+
+				if (closed) {
+					msg.recycle();
+					return false;
+				}
+				break;
+
+			default:
+				dropOldest(t);
+			}
+		}
+
+		slots.set(slot, msg);
+		sequences.set(slot, t + 1);
+		if (latest != null && msg.topic != null) {
+			latest.put(msg.topic, Long.valueOf(t));
+			if (latest.size() > 2 * slots.length())
+				prune();
+		}
+		tail = t + 1;
+
+		int size = (int) (t + 1 - head.get());
+		if (size > highWaterMark)
+			highWaterMark = size;
+
+		if (consumerWaiting)
+			LockSupport.unpark(consumer);
+		return true;
+	}
+
+	/**
+	 * Take the oldest message, called by the consumer only.
+	 *
+	 * @return The message, or null if the queue is empty.
+	 */
+	public MQTTMessage poll() {
+		while (true) {
+			long h = head.get();
+			if (h >= tail)
+				return null;
+
+			// The producer may be dropping the same position
+			if (!head.compareAndSet(h, h + 1))
+				continue;
+
+			MQTTMessage msg = take(h);
+			if (producerWaiting)
+				LockSupport.unpark(producer);
+			return msg;
+		}
+	}
+
+	/**
+	 * Take the oldest message, waiting for one if the queue is empty. Called
+	 * by the consumer only.
+	 *
+	 * @return The message, or null once the queue is closed.
+	 */
+	public MQTTMessage take() {
+		while (true) {
+			MQTTMessage msg = poll();
+			if (msg != null)
+				return msg;
+			if (closed)
+				// Anything added just before closing
+				return poll();
+
+			consumer = Thread.currentThread();
+			consumerWaiting = true;
+			if (head.get() >= tail && !closed)
+				LockSupport.park(this);
+			consumerWaiting = false;
+		}
+	}
+
+	/**
+	 * Stop accepting messages and wake up both sides. Messages still queued
+	 * can be taken with {@link #poll()}.
+	 */
+	public void close() {
+		closed = true;
+
+		Thread t = producer;
+		if (t != null)
+			LockSupport.unpark(t);
+		t = consumer;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	/**
+	 * @return Number of queued messages.
+	 */
+	public int size() {
+		return (int) Math.max(0, tail - head.get());
+	}
+
+	public int capacity() {
+		return slots.length();
+	}
+
+	/**
+	 * @return Number of messages dropped because the queue was full.
+	 */
+	public long dropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return Number of queued messages replaced by newer ones on the same
+	 *         topic.
+	 */
+	public long conflated() {
+		return conflated;
+	}
+
+	/**
+	 * @return The largest number of messages that have been queued at once.
+	 */
+	public int highWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Replace a queued message on the same topic.
+	 *
+	 * @return False if there was none.
+	 */
+	private boolean conflate(MQTTMessage msg) {
+		Long position = latest.get(msg.topic);
+		if (position == null)
+			return false;
+
+		long p = position.longValue();
+		if (p < head.get())
+			return false;
+
+		int i = (int) (p & mask);
+		MQTTMessage old = slots.get(i);
+		if (sequences.get(i) != p + 1 || old == null
+				|| !msg.topic.equals(old.topic)
+				|| !slots.compareAndSet(i, old, msg))
+			// Already taken by the consumer
+			return false;
+
+		conflated++;
+		old.recycle();
+		return true;
+	}
+
+	private void dropOldest(long t) {
+		long h = head.get();
+
+		// The consumer made room meanwhile, or took this position
+		if (t - h <= mask || !head.compareAndSet(h, h + 1))
+			return;
+
+		dropped++;
+		take(h).recycle();
+	}
+
+	/**
+	 * Empty the slot of a position that was taken by moving the head past
+	 * it, and free the slot for the position one lap later.
+	 */
+	private MQTTMessage take(long position) {
+		int i = (int) (position & mask);
+
+		// Swapped out, the producer may be replacing it at the same time
+		MQTTMessage msg = slots.getAndSet(i, null);
+		sequences.set(i, position + slots.length());
+		return msg;
+	}
+
+	/**
+	 * Forget topics that are no longer queued.
+	 */
+	private void prune() {
+		long h = head.get();
+		Iterator<Long> positions = latest.values().iterator();
+		while (positions.hasNext()) {
+			if (positions.next().longValue() < h)
+				positions.remove();
+		}
+	}
+}
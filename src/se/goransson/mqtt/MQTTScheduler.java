@@ -0,0 +1,45 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Runs tasks after a delay.
+ *
+ * @author ksango
+ *
+ */
+public interface MQTTScheduler {
+
+	/** A scheduled task that hasn't run yet can be cancelled */
+	public interface Timeout {
+		/**
+		 * Stop the task from running, does nothing if it already ran.
+		 */
+		void cancel();
+	}
+
+	/**
+	 * Run a task once after a delay.
+	 *
+	 * @param task
+	 *            The task to run
+	 * @param delayMillis
+	 *            Delay before the task runs (ms)
+	 * @return A handle that cancels the task.
+	 */
+	Timeout schedule(Runnable task, long delayMillis);
+}
@@ -17,11 +17,15 @@ package se.goransson.mqtt;
  */
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 
 import android.app.Service;
 import android.content.Intent;
@@ -53,17 +57,46 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 	/** Current state of the connection */
 	private volatile int mState = STATE_NONE;
 
-	/** How long to wait before a reconnect attempt is made */
-	private long RECONNECT_TIMER = 5000;
+	/** How long to wait before each reconnect attempt */
+	private MQTTReconnectPolicy mReconnectPolicy = new MQTTReconnectPolicy();
+
+	/** How long to wait for a connection to be established (ms) */
+	private int connectTimeout = 3000;
+
+	/** Creates TLS sockets, kept so that sessions can be resumed */
+	private SSLSocketFactory sslSocketFactory;
+
+	/** Cipher suites of TLS connections, null for the defaults */
+	private String[] cipherSuites;
+
+	/** Checks the server certificate of TLS connections, or null */
+	private HostnameVerifier hostnameVerifier = HttpsURLConnection
+			.getDefaultHostnameVerifier();
+
+	/** The current connection */
+	private volatile MQTTTransport mTransport;
+
+	/** Which kind of transport to use for new connections */
+	private int transportType = TRANSPORT_BLOCKING;
+
+	/** The event loop of the current connection, for non-blocking transports */
+	private volatile MQTTEventLoop mEventLoop;
 
-	/** Thread to handle setup of connections */
-	private ConnectThread mConnectThread;
+	/** Timers of blocking connections, started on first use */
+	private MQTTTimer mTimer;
 
-	/** Thread to handle communication when connection is established. */
-	private ConnectedThread mConnectedThread;
+	/**
+	 * Guards {@link #mTimer} only. The in-flight window schedules while it
+	 * holds its own monitor, so finding the scheduler must not wait for the
+	 * service's, which is held while calling into the window.
+	 */
+	private final Object mTimerLock = new Object();
 
-	/** Thread to handle ping requests and responses */
-	private PingThread mPingThread;
+	/** The next keep alive check */
+	private MQTTScheduler.Timeout mKeepAliveTimeout;
+
+	/** The pending reconnect attempt */
+	private MQTTScheduler.Timeout mReconnectTimeout;
 
 	/** */
 	private Handler mHandler = null;
@@ -78,20 +111,131 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 	/** Unique identifier for this client */
 	private String uid;
 
-	private int message_id;
-
 	private boolean clean_session = true;
 
+	/** Size of the buffer outgoing messages are batched in */
+	private int maxBatchBytes = MQTTWriter.DEFAULT_MAX_BATCH_BYTES;
+
+	/** How long outgoing messages may wait for more to batch with */
+	private long linger = 0;
+
+	/** Pool for incoming messages, or null to always create new ones */
+	private volatile MQTTMessagePool mMessagePool = null;
+
+	/** Fill in the untyped fields of incoming messages */
+	private volatile boolean legacyMessages = true;
+
+	/** The largest incoming message that will be accepted */
+	private int maxPacketSize = MQTTFrameDecoder.DEFAULT_MAX_PACKET_SIZE;
+
+	/** Topics of incoming messages, or null to decode every topic */
+	private volatile MQTTTopicCache mTopicCache = new MQTTTopicCache();
+
+	/** Size of incoming messages above which their payload is spilled */
+	private volatile int spillThreshold = 0;
+
+	/** The largest incoming message whose payload is spilled */
+	private volatile int maxSpillSize = Integer.MAX_VALUE;
+
+	/** Where spilled payloads are written, or null to not spill */
+	private volatile MQTTSpill.Factory mSpillFactory;
+
+	/** Codecs for payloads, or null to send and receive them as they are */
+	private volatile MQTTPayloadCodecs mCodecs = null;
+
+	/** Outgoing messages at QoS 1 and 2 that aren't acknowledged yet */
+	private final MQTTInFlightWindow mOutbound = new MQTTInFlightWindow(
+			new MQTTInFlightWindow.Sender() {
+				@Override
+				public void send(byte[] message) {
+					write(message);
+				}
+			}, new MQTTScheduler() {
+				@Override
+				public Timeout schedule(Runnable task, long delayMillis) {
+					return getScheduler().schedule(task, delayMillis);
+				}
+			});
+
+	/** Publishes kept on disk until they are delivered, or null */
+	private volatile MQTTJournal mJournal;
+
+	/** Journal every publish, not only those made while disconnected */
+	private volatile boolean journalAlways = false;
+
+	/** Journal position of each message in flight that came from the journal */
+	private final MQTTIntMap<Long> mJournaled = new MQTTIntMap<Long>();
+
+	/** Messages taken from the journal at a time */
+	private static final int DRAIN_BATCH = 256;
+
+	/** Holds back publishes on conflated topics while the connection is behind */
+	private final MQTTConflator mConflator = new MQTTConflator(
+			new MQTTConflator.Publisher() {
+				@Override
+				public void publish(String topic, byte[] payload, int qos,
+						boolean retain) {
+					send(topic, payload, qos, retain);
+				}
+			}, MQTTConflator.DEFAULT_MAX_BACKLOG);
+
+	/** Subscriptions to make again on every new connection */
+	private final MQTTSubscriptions mSubscriptions = new MQTTSubscriptions();
+
+	/** Listeners for incoming messages, by topic filter */
+	private final MQTTDispatcher mDispatcher = new MQTTDispatcher();
+
+	/** Receives the messages that no topic listener takes */
+	private volatile MQTTDispatcher.Listener mMessageListener;
+
+	/** How incoming messages reach the listeners and the Handler */
+	private volatile int deliveryMode = DELIVERY_HANDLER;
+
+	/** Runs the listeners for {@link #DELIVERY_EXECUTOR} */
+	private volatile Executor mExecutor;
+
+	/** How long messages are collected for {@link #DELIVERY_BATCHED} (ms) */
+	private volatile long batchInterval = 16;
+
+	/** Messages collected for the next batch */
+	private ArrayList<MQTTMessage> mBatch = new ArrayList<MQTTMessage>();
+
+	/** Runs batches on the main thread */
+	private final Handler mMainHandler = new Handler();
+
+	/** Share every sent message with the Handler */
+	private volatile boolean rawEcho = false;
+
+	/** Buffers incoming messages between reading and delivery, or null */
+	private volatile MQTTRingBuffer mInbox;
+
+	/** Delivers the messages from the inbound buffer */
+	private Thread mDeliveryThread;
+
+	/** Counters and gauges of the connection */
+	private final MQTTMetrics mMetrics = new MQTTMetrics();
+
+	/** How often metrics are reported (ms), 0 to not report them */
+	private long metricsInterval = 0;
+
+	/** Topic metrics are published to, or null */
+	private String metricsTopic;
+
+	/** The next metrics report */
+	private MQTTScheduler.Timeout mMetricsTimeout;
+
 	// PING VARIABLES
+	private final MQTTKeepAlive mKeepAlive = new MQTTKeepAlive();
 	private volatile boolean pingreq = false;
 	private volatile long pingtime = 0;
 	private volatile long lastaction = 0;
+	private volatile long lastreceived = 0;
 
 	private boolean doAutomaticReconnect = false;
-	private Handler reconnectHandler = new Handler();
 	private Runnable recoonectRunnable = new Runnable() {
 		@Override
 		public void run() {
+			mMetrics.reconnecting();
 			connect();
 		}
 	};
@@ -100,7 +244,51 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 	public void onCreate() {
 		super.onCreate();
 
-		// TODO something when started
+		// Queue depths, read whenever a snapshot is taken
+		mMetrics.setGauge("inflight", new MQTTMetrics.Gauge() {
+			@Override
+			public long value() {
+				return mOutbound.inFlightCount();
+			}
+		});
+		mMetrics.setGauge("inflight.waiting", new MQTTMetrics.Gauge() {
+			@Override
+			public long value() {
+				return mOutbound.waitingCount();
+			}
+		});
+		mMetrics.setGauge("conflated.pending", new MQTTMetrics.Gauge() {
+			@Override
+			public long value() {
+				return mConflator.pending();
+			}
+		});
+		mMetrics.setGauge("journal.pending", new MQTTMetrics.Gauge() {
+			@Override
+			public long value() {
+				MQTTJournal journal = mJournal;
+				return journal != null ? journal.pending() : 0;
+			}
+		});
+		mMetrics.setGauge("inbox.size", new MQTTMetrics.Gauge() {
+			@Override
+			public long value() {
+				MQTTRingBuffer inbox = mInbox;
+				return inbox != null ? inbox.size() : 0;
+			}
+		});
+		mMetrics.setGauge("keepalive.interval", new MQTTMetrics.Gauge() {
+			@Override
+			public long value() {
+				return mKeepAlive.getInterval();
+			}
+		});
+		mMetrics.setGauge("ping.srtt", new MQTTMetrics.Gauge() {
+			@Override
+			public long value() {
+				return mKeepAlive.getSmoothedRtt();
+			}
+		});
 
 		if (DEBUG)
 			Log.i(TAG, "onCreate");
@@ -122,22 +310,33 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 		super.onDestroy();
 
 		// Kill everything when we stop the service
-		// Cancel the thread that completed the connection
-		if (mConnectThread != null) {
-			mConnectThread.cancel();
-			mConnectThread = null;
+		stopKeepAlive();
+		closeTransport();
+		setInboundBuffer(0, 0);
+
+		// Whatever came from the journal is sent again from there next time
+		synchronized (mJournaled) {
+			mOutbound.clear();
+			mJournaled.clear();
 		}
 
-		// Cancel any thread currently running a connection
-		if (mConnectedThread != null) {
-			mConnectedThread.cancel();
-			mConnectedThread = null;
-		}
+		synchronized (this) {
+			if (mReconnectTimeout != null) {
+				mReconnectTimeout.cancel();
+				mReconnectTimeout = null;
+			}
+
+			if (mMetricsTimeout != null) {
+				mMetricsTimeout.cancel();
+				mMetricsTimeout = null;
+			}
 
-		// Cancel any thread currently running a ping check
-		if (mPingThread != null) {
-			mPingThread.cancel();
-			mPingThread = null;
+			synchronized (mTimerLock) {
+				if (mTimer != null) {
+					mTimer.stop();
+					mTimer = null;
+				}
+			}
 		}
 
 		if (DEBUG)
@@ -169,15 +368,164 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 		mHandler = handler;
 	}
 
+	/**
+	 * Add a listener for incoming messages on the topics that match a topic
+	 * filter. Once any listener is added, PUBLISH messages that no listener
+	 * wants are dropped without copying their payload, and with
+	 * {@link #DELIVERY_HANDLER} the others are only given to the listeners
+	 * and no longer to the Handler.
+	 * 
+	 * The listener is called on the thread chosen with
+	 * {@link #setDelivery(int)}, by default the one that received the
+	 * message.
+	 * 
+	 * @param filter
+	 *            A topic, or a filter with <code>+</code> and <code>#</code>
+	 *            wildcards
+	 * @param listener
+	 *            The listener
+	 */
+	public void addListener(String filter, MQTTDispatcher.Listener listener) {
+		mDispatcher.add(filter, listener);
+	}
+
+	/**
+	 * Set the listener for incoming messages that no topic listener takes,
+	 * including acknowledgements. Used with {@link #DELIVERY_DIRECT},
+	 * {@link #DELIVERY_EXECUTOR} and {@link #DELIVERY_BATCHED}.
+	 * 
+	 * @param listener
+	 *            The listener, or null
+	 */
+	public void setMessageListener(MQTTDispatcher.Listener listener) {
+		mMessageListener = listener;
+	}
+
+	/**
+	 * Choose how incoming messages are delivered.
+	 * 
+	 * @param mode
+	 *            {@link #DELIVERY_HANDLER} to post one Handler message for
+	 *            every incoming message, this is the default.
+	 *            {@link #DELIVERY_DIRECT} to call the listeners on the
+	 *            thread that received the message, nothing is posted to the
+	 *            Handler. {@link #DELIVERY_BATCHED} to collect messages for
+	 *            a while and then call the listeners for all of them on the
+	 *            main thread, and post them as one {@link #MQTT_BATCH}
+	 *            Handler message.
+	 */
+	public void setDelivery(int mode) {
+		deliveryMode = mode;
+	}
+
+	/**
+	 * Deliver incoming messages by calling the listeners from an Executor,
+	 * nothing is posted to the Handler. Messages arrive in order only if the
+	 * Executor runs tasks in order.
+	 * 
+	 * @param executor
+	 *            Runs the listeners
+	 */
+	public void setDelivery(Executor executor) {
+		mExecutor = executor;
+		deliveryMode = DELIVERY_EXECUTOR;
+	}
+
+	/**
+	 * Set how long messages are collected before they are delivered as a
+	 * batch, for {@link #DELIVERY_BATCHED}. The default is 16 ms, about one
+	 * display frame.
+	 * 
+	 * @param milliseconds
+	 *            Batch interval
+	 */
+	public void setBatchInterval(long milliseconds) {
+		batchInterval = milliseconds;
+	}
+
+	/**
+	 * Buffer incoming messages between the connection and delivery, so that
+	 * a slow listener doesn't hold up reading. Messages are delivered from a
+	 * thread of its own, which takes the place of the reading thread for
+	 * {@link #DELIVERY_DIRECT}.
+	 * 
+	 * With {@link #OVERFLOW_BLOCK} and {@link #TRANSPORT_NIO} a full buffer
+	 * holds up the event loop, and every connection on it.
+	 * 
+	 * @param capacity
+	 *            Number of messages the buffer holds, 0 to deliver directly
+	 *            from the reading thread
+	 * @param policy
+	 *            What to do when the buffer is full, one of
+	 *            {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_DROP_OLDEST},
+	 *            {@link #OVERFLOW_DROP_NEWEST} or {@link #OVERFLOW_CONFLATE}
+	 */
+	public synchronized void setInboundBuffer(int capacity, int policy) {
+		// The old delivery thread finishes what is left and stops
+		MQTTRingBuffer old = mInbox;
+		if (old != null)
+			old.close();
+
+		if (capacity <= 0) {
+			mInbox = null;
+			mDeliveryThread = null;
+			return;
+		}
+
+		final MQTTRingBuffer inbox = new MQTTRingBuffer(capacity, policy);
+		mDeliveryThread = new Thread("MQTTDelivery") {
+			@Override
+			public void run() {
+				MQTTMessage msg;
+				while ((msg = inbox.take()) != null)
+					deliver(msg);
+			}
+		};
+		mDeliveryThread.setDaemon(true);
+		mDeliveryThread.start();
+		mInbox = inbox;
+	}
+
+	/**
+	 * @return The inbound buffer, for its drop and high-water counters, or
+	 *         null if there is none.
+	 */
+	public MQTTRingBuffer getInboundBuffer() {
+		return mInbox;
+	}
+
+	/**
+	 * Choose whether every message that is sent is also given to the Handler
+	 * as {@link #MQTT_RAW_PUBLISH}. Off by default.
+	 * 
+	 * @param echo
+	 *            True to share sent messages with the Handler
+	 */
+	public void setRawEcho(boolean echo) {
+		rawEcho = echo;
+	}
+
+	/**
+	 * Remove a listener added with
+	 * {@link #addListener(String, MQTTDispatcher.Listener)}.
+	 * 
+	 * @param filter
+	 *            The filter the listener was added with
+	 * @param listener
+	 *            The listener
+	 */
+	public void removeListener(String filter, MQTTDispatcher.Listener listener) {
+		mDispatcher.remove(filter, listener);
+	}
+
 	/**
 	 * Send a CONNECT message to the server.
 	 */
 	private void connect(String host, int port, String uid) {
 		if (getState() != STATE_CONNECTED) {
 			try {
-				mConnectedThread.write(MQTT.connect(uid, clean_session));
-			} catch (UnsupportedEncodingException e) {
-				e.printStackTrace();
+				write(MQTT.connect(uid, null, null, clean_session,
+						mKeepAlive.getServerKeepAlive()));
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -210,15 +558,7 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 	 * @return Message id
 	 */
 	public int publish(String topic, byte[] message) {
-		int message_id = getMessageid();
-
-		try {
-			mConnectedThread.write(MQTT.publish(topic, message));
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return message_id;
+		return publish(topic, message, AT_MOST_ONCE, false);
 	}
 
 	/**
@@ -233,15 +573,309 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 	 * @return Message id
 	 */
 	public int publish(String topic, byte[] message, boolean retain) {
-		int message_id = getMessageid();
+		return publish(topic, message, AT_MOST_ONCE, retain);
+	}
+
+	/**
+	 * Publish a message (byte[]) to a specified topic. Messages at
+	 * {@link #AT_LEAST_ONCE} and {@link #EXACTLY_ONCE} are kept and sent
+	 * again until they are acknowledged, up to {@link #setMaxInFlight(int)}
+	 * of them are sent without waiting for acknowledgements.
+	 * 
+	 * @param topic
+	 *            Topic to publish to
+	 * @param message
+	 *            Message to publish
+	 * @param qos
+	 *            Quality of service, can be {@link #AT_MOST_ONCE},
+	 *            {@link #AT_LEAST_ONCE}, or {@link #EXACTLY_ONCE}.
+	 * @param retain
+	 *            Should the message be retained on server? True or false
+	 * @return Message id, 0 for {@link #AT_MOST_ONCE} or -1 on failure
+	 */
+	public int publish(String topic, byte[] message, int qos, boolean retain) {
+		MQTTPayloadCodecs codecs = mCodecs;
+		if (codecs != null) {
+			try {
+				long start = System.nanoTime();
+				message = codecs.encode(topic, message);
+				mMetrics.encoded(System.nanoTime() - start);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return -1;
+			}
+		}
+
+		if (mConflator.isConflated(topic)) {
+			// Only the latest payload is kept while waiting to be sent
+			mConflator.publish(topic, message, qos, retain);
+			return 0;
+		}
+
+		return send(topic, message, qos, retain);
+	}
+
+	/**
+	 * Publish a message whose payload is read from its source as it is
+	 * written, so that large payloads are never held on the heap. See
+	 * {@link MQTTPayloadStream} for the sources.
+	 * 
+	 * Unlike other publishes the message is sent once, on the current
+	 * connection only: it isn't journaled, conflated or encoded by the
+	 * payload codecs, and at {@link #AT_LEAST_ONCE} and
+	 * {@link #EXACTLY_ONCE} it isn't sent again if the connection is lost
+	 * before it is acknowledged.
+	 * 
+	 * @param topic
+	 *            Topic to publish to
+	 * @param payload
+	 *            Message to publish
+	 * @param qos
+	 *            Quality of service, can be {@link #AT_MOST_ONCE},
+	 *            {@link #AT_LEAST_ONCE}, or {@link #EXACTLY_ONCE}.
+	 * @param retain
+	 *            Should the message be retained on server? True or false
+	 * @return Message id, 0 for {@link #AT_MOST_ONCE} or -1 if not
+	 *         connected
+	 */
+	public int publish(String topic, MQTTPayloadStream payload, int qos,
+			boolean retain) {
+		MQTTTransport transport = mTransport;
+		if (transport == null || getState() != STATE_CONNECTED) {
+			payload.close();
+			return -1;
+		}
+
+		int message_id = qos > AT_MOST_ONCE ? getMessageid() : 0;
+		if (message_id < 0) {
+			payload.close();
+			return -1;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(MQTTEncoder
+				.publishHeaderLength(topic, payload.length(), qos));
+		MQTTEncoder.publishHeader(header, topic, payload.length(), qos,
+				retain, false, message_id);
+
+		if (!transport.send(header.array(), payload)) {
+			if (message_id > 0)
+				mOutbound.release(message_id);
+			return -1;
+		}
+
+		mConflator.sent(header.capacity() + payload.length());
+		mMetrics.sent(header.array());
+		return message_id;
+	}
+
+	/**
+	 * Publish a batch of messages. Message ids are handed out in one go and
+	 * the messages are encoded back to back into one buffer, which the
+	 * transport writes at once. Messages on conflated topics, and messages
+	 * that go to the journal, are published one by one as with
+	 * {@link #publish(String, byte[], int, boolean)}.
+	 * 
+	 * @param batch
+	 *            The messages, the batch can be cleared and reused once this
+	 *            returns
+	 * @return Message id of each message, as publish would return it.
+	 */
+	public int[] publishAll(MQTTBatch batch) {
+		int count = batch.size();
+		MQTTPayloadCodecs codecs = mCodecs;
+		MQTTJournal journal = mJournal;
+		boolean journaled = journal != null
+				&& (journalAlways || getState() != STATE_CONNECTED);
+
+		boolean direct = codecs == null && !journaled;
+		for (int i = 0; direct && i < count; i++)
+			direct = !mConflator.isConflated(batch.getTopic(i));
+
+		if (direct) {
+			long start = System.nanoTime();
+			int[] ids = mOutbound.publishAll(batch);
+			mMetrics.encoded(System.nanoTime() - start);
+			return ids;
+		}
+
+		// Entries that take the batched path, and where they came from
+		int[] ids = new int[count];
+		int[] index = new int[count];
+		MQTTBatch window = new MQTTBatch(count);
+
+		for (int i = 0; i < count; i++) {
+			String topic = batch.getTopic(i);
+			byte[] message = batch.getPayload(i);
+			int qos = batch.getQoS(i);
+			boolean retain = batch.isRetain(i);
+
+			if (codecs != null) {
+				try {
+					long start = System.nanoTime();
+					message = codecs.encode(topic, message);
+					mMetrics.encoded(System.nanoTime() - start);
+				} catch (IOException e) {
+					e.printStackTrace();
+					ids[i] = -1;
+					continue;
+				}
+			}
+
+			if (mConflator.isConflated(topic))
+				mConflator.publish(topic, message, qos, retain);
+			else if (journaled)
+				ids[i] = send(topic, message, qos, retain);
+			else {
+				index[window.size()] = i;
+				window.add(topic, message, qos, retain);
+			}
+		}
+
+		if (window.size() > 0) {
+			long start = System.nanoTime();
+			int[] sent = mOutbound.publishAll(window);
+			mMetrics.encoded(System.nanoTime() - start);
+
+			for (int j = 0; j < sent.length; j++)
+				ids[index[j]] = sent[j];
+		}
+		return ids;
+	}
+
+	/**
+	 * Publish through the journal or the in-flight window.
+	 */
+	private int send(String topic, byte[] message, int qos, boolean retain) {
+		MQTTJournal journal = mJournal;
+		if (journal != null
+				&& (journalAlways || getState() != STATE_CONNECTED)) {
+			try {
+				if (journal.append(topic, message, qos, retain) < 0) {
+					Log.w(TAG, "Journal full, message dropped");
+					return -1;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return -1;
+			}
+
+			// The message id is given when it leaves the journal
+			drain();
+			return 0;
+		}
 
 		try {
-			mConnectedThread.write(MQTT.publish(topic, message));
+			long start = System.nanoTime();
+			int message_id = mOutbound.publish(topic, message, qos, retain);
+			mMetrics.encoded(System.nanoTime() - start);
+			return message_id;
 		} catch (IOException e) {
 			e.printStackTrace();
+			return -1;
 		}
+	}
 
-		return message_id;
+	/**
+	 * Mark a topic as conflated. While the connection is behind, publishes
+	 * on a conflated topic are held back and only the latest payload is
+	 * kept, replacing older ones that haven't been sent yet. Suits topics
+	 * where only the current value matters, like sensor readings. Publishing
+	 * on a conflated topic returns 0 rather than the message id.
+	 * 
+	 * @param topic
+	 *            The topic
+	 * @param conflate
+	 *            True to conflate publishes on the topic
+	 */
+	public void setConflated(String topic, boolean conflate) {
+		mConflator.setConflated(topic, conflate);
+	}
+
+	/**
+	 * Keep publishes in a journal on disk until they are delivered. Messages
+	 * published while disconnected are added to the journal and sent once a
+	 * connection is made, also after the service has been restarted.
+	 * 
+	 * @param journal
+	 *            The journal, or null to drop messages published while
+	 *            disconnected
+	 * @param always
+	 *            True to journal every message, so that nothing is lost if
+	 *            the process dies before delivery; publish then returns 0
+	 *            rather than the message id
+	 */
+	public void setJournal(MQTTJournal journal, boolean always) {
+		mJournal = journal;
+		journalAlways = always;
+		drain();
+	}
+
+	/**
+	 * Send messages from the journal, a batch at a time. Messages that need
+	 * acknowledgements are only taken while the in-flight window keeps up, and
+	 * are marked as delivered in the journal once acknowledged.
+	 */
+	private void drain() {
+		MQTTJournal journal = mJournal;
+		if (journal == null || getState() != STATE_CONNECTED)
+			return;
+
+		synchronized (mJournaled) {
+			for (int i = 0; i < DRAIN_BATCH; i++) {
+				// Continues as acknowledgements come in
+				if (mOutbound.waitingCount() >= DRAIN_BATCH)
+					return;
+
+				MQTTJournal.Record record = journal.next();
+				if (record == null)
+					return;
+
+				int message_id;
+				try {
+					message_id = mOutbound.publish(record.topic,
+							record.payload, record.qos, record.retain);
+				} catch (IOException e) {
+					e.printStackTrace();
+					journal.complete(record.position);
+					continue;
+				}
+
+				if (message_id > 0)
+					mJournaled.put(message_id, record.position);
+				else
+					journal.complete(record.position);
+			}
+		}
+
+		// Let other work run before the next batch
+		getScheduler().schedule(mDrainTask, 0);
+	}
+
+	private final Runnable mDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Handle an acknowledgement of a message in flight.
+	 */
+	private void acknowledged(int type, int message_id) {
+		synchronized (mJournaled) {
+			if (!mOutbound.acknowledge(type, message_id))
+				return;
+
+			Long position = mJournaled.remove(message_id);
+			MQTTJournal journal = mJournal;
+			if (position == null || journal == null)
+				return;
+
+			journal.complete(position);
+		}
+
+		if (mOutbound.waitingCount() == 0)
+			drain();
 	}
 
 	/**
@@ -250,18 +884,10 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 	 * 
 	 * @param topic
 	 *            Topic to subscribe to
-	 * @return Message id
+	 * @return Message id, or -1 if no message id is free
 	 */
 	public int subscribe(String topic) {
-		int message_id = getMessageid();
-		try {
-			mConnectedThread.write(MQTT.subscribe(message_id, topic,
-					AT_MOST_ONCE));
-		} catch (IOException e) {
-			e.printStackTrace();
-			return -1;
-		}
-		return message_id;
+		return subscribe(new String[] { topic }, new byte[] { AT_MOST_ONCE });
 	}
 
 	/**
@@ -272,18 +898,10 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 	 * @param qos
 	 *            Quality of service, can be {@link #AT_MOST_ONCE},
 	 *            {@link #AT_LEAST_ONCE}, or {@link #EXACTLY_ONCE}.
-	 * @return Message id
+	 * @return Message id, or -1 if no message id is free
 	 */
 	public int subscribe(String topic, byte qos) {
-		int message_id = getMessageid();
-		try {
-			mConnectedThread.write(MQTT.subscribe(message_id, topic, qos));
-
-		} catch (IOException e) {
-			e.printStackTrace();
-			return -1;
-		}
-		return message_id;
+		return subscribe(new String[] { topic }, new byte[] { qos });
 	}
 
 	/**
@@ -292,43 +910,106 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 	 * 
 	 * @param topics
 	 *            Topics to subscribe to
-	 * @return Message id
+	 * @return Message id, or -1 if no message id is free
 	 */
 	public int subscribe(String[] topics) {
-		int message_id = getMessageid();
-		try {
-			byte[] qoss = new byte[topics.length];
-			for (int i = 0; i < qoss.length; i++)
-				qoss[i] = AT_MOST_ONCE;
-			mConnectedThread.write(MQTT.subscribe(message_id, topics, qoss));
-		} catch (IOException e) {
-			e.printStackTrace();
-			return -1;
-		}
-		return message_id;
+		byte[] qoss = new byte[topics.length];
+		for (int i = 0; i < qoss.length; i++)
+			qoss[i] = AT_MOST_ONCE;
+		return subscribe(topics, qoss);
 	}
 
 	/**
 	 * Subscribe to multiple topics
 	 * 
+	 * The subscriptions are kept and made again on every new connection. While
+	 * disconnected they are only kept, and made once connected.
+	 * 
 	 * @param topic
 	 *            Topic to subscribe to
 	 * @param qos
 	 *            Quality of service, can be {@link #AT_MOST_ONCE},
 	 *            {@link #AT_LEAST_ONCE}, or {@link #EXACTLY_ONCE}.
-	 * @return Message id
+	 * @return Message id, or -1 if no message id is free
 	 */
 	public int subscribe(String[] topics, byte[] qoss) {
-		int message_id = getMessageid();
-		try {
-			mConnectedThread.write(MQTT.subscribe(message_id, topics, qoss));
-		} catch (IOException e) {
-			e.printStackTrace();
-			return -1;
+		int message_id;
+		boolean connected;
+		synchronized (this) {
+			message_id = getMessageid();
+			if (message_id < 0)
+				return -1;
+
+			// Either connected() makes it again or it is sent here
+			mSubscriptions.subscribe(message_id, topics, qoss);
+			connected = getState() == STATE_CONNECTED;
+		}
+
+		if (connected) {
+			try {
+				write(MQTT.subscribe(message_id, topics, qoss));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return -1;
+			}
 		}
 		return message_id;
 	}
 
+	/**
+	 * Unsubscribe from a topic
+	 * 
+	 * @param topic
+	 *            Topic filter that was subscribed to
+	 * @return Message id, or -1 if no message id is free
+	 */
+	public int unsubscribe(String topic) {
+		return unsubscribe(new String[] { topic });
+	}
+
+	/**
+	 * Unsubscribe from multiple topics, they are no longer made again on new
+	 * connections.
+	 * 
+	 * While disconnected they are only forgotten, they aren't made on the
+	 * next connection.
+	 * 
+	 * @param topics
+	 *            Topic filters that were subscribed to
+	 * @return Message id, or -1 if no message id is free
+	 */
+	public int unsubscribe(String[] topics) {
+		int message_id;
+		boolean connected;
+		synchronized (this) {
+			message_id = getMessageid();
+			if (message_id < 0)
+				return -1;
+
+			mSubscriptions.unsubscribe(topics);
+			connected = getState() == STATE_CONNECTED;
+			if (!connected)
+				mOutbound.release(message_id);
+		}
+
+		if (connected) {
+			ByteBuffer buffer = ByteBuffer.allocate(MQTTEncoder
+					.unsubscribeLength(topics, 0, topics.length));
+			MQTTEncoder.unsubscribe(buffer, message_id, topics, 0,
+					topics.length);
+			write(buffer.array());
+		}
+		return message_id;
+	}
+
+	/**
+	 * @return The subscriptions that are made on every connection, and the
+	 *         QoS the server granted them.
+	 */
+	public MQTTSubscriptions getSubscriptions() {
+		return mSubscriptions;
+	}
+
 //	public synchronized void start() {
 //		if (DEBUG)
 //			Log.d(TAG, "start");
@@ -351,6 +1032,50 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 //		// connect(host, port);
 //	}
 
+	/**
+	 * Choose how connections are made, takes effect on the next connection.
+	 * 
+	 * @param transport
+	 *            {@link #TRANSPORT_BLOCKING} to use blocking sockets with
+	 *            threads of their own, or {@link #TRANSPORT_NIO} to use a
+	 *            non-blocking socket driven by an event loop thread that is
+	 *            shared with other connections.
+	 */
+	public void setTransport(int transport) {
+		this.transportType = transport;
+	}
+
+	/**
+	 * Set the TLS context of {@link #TRANSPORT_TLS} connections. All
+	 * connections use the same context, so reconnects resume the session
+	 * of the last connection.
+	 * 
+	 * @param context
+	 *            The context, with the trust managers that accept the
+	 *            server, or null for the system default
+	 */
+	public void setSSLContext(SSLContext context) {
+		sslSocketFactory = context != null ? context.getSocketFactory()
+				: null;
+	}
+
+	/**
+	 * @param suites
+	 *            Cipher suites of TLS connections, or null for the defaults
+	 */
+	public void setCipherSuites(String[] suites) {
+		cipherSuites = suites;
+	}
+
+	/**
+	 * @param verifier
+	 *            Checks that the server certificate is for the host, or null
+	 *            to not check it
+	 */
+	public void setHostnameVerifier(HostnameVerifier verifier) {
+		hostnameVerifier = verifier;
+	}
+
 	public void setHost(String host) {
 		this.host = host;
 	}
@@ -367,90 +1092,383 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 		this.clean_session = clean_session;
 	}
 
+	/**
+	 * Configure how outgoing messages are batched. All messages waiting to
+	 * be written are collected in one buffer and written together. Takes
+	 * effect on the next connection.
+	 * 
+	 * @param maxBatchBytes
+	 *            Size of the batch buffer, larger messages are written on
+	 *            their own
+	 * @param lingerMillis
+	 *            How long to wait for more messages before writing a batch
+	 *            that isn't full, 0 to write as soon as nothing else is
+	 *            waiting
+	 */
+	public void setWriteBatching(int maxBatchBytes, long lingerMillis) {
+		this.maxBatchBytes = maxBatchBytes;
+		this.linger = lingerMillis;
+	}
+
+	/**
+	 * Take incoming messages from a pool, so that they can be reused. The
+	 * receiver gives each message back with {@link MQTTMessage#recycle()}
+	 * once it is done with it.
+	 * 
+	 * @param pool
+	 *            The pool, or null to create a new message every time
+	 */
+	public void setMessagePool(MQTTMessagePool pool) {
+		mMessagePool = pool;
+	}
+
+	/**
+	 * Set the cache that topics of incoming messages are taken from. Topics
+	 * that are in the cache are not decoded again, and are the same String
+	 * every time. A cache of {@link MQTTTopicCache#DEFAULT_CAPACITY} topics
+	 * is used by default.
+	 * 
+	 * @param cache
+	 *            The cache, or null to decode every topic
+	 */
+	public void setTopicCache(MQTTTopicCache cache) {
+		mTopicCache = cache;
+	}
+
+	/**
+	 * Set the codecs that payloads are encoded with, for example to compress
+	 * them. Published payloads are encoded with the codec chosen for their
+	 * topic, and incoming payloads are decoded before they reach any
+	 * listener. {@link MQTTPayloadCodecs} also counts the compression ratio
+	 * and the time spent.
+	 * 
+	 * @param codecs
+	 *            The codecs, or null to send and receive payloads as they are
+	 */
+	public void setPayloadCodecs(MQTTPayloadCodecs codecs) {
+		if (codecs != null)
+			codecs.setMaxDecodedSize(maxPacketSize);
+		mCodecs = codecs;
+	}
+
+	/**
+	 * Write the payload of large incoming messages to temporary files in the
+	 * cache directory as it arrives, instead of collecting it in memory.
+	 * 
+	 * @param threshold
+	 *            Size of a whole message above which it is spilled, 0 to
+	 *            not spill
+	 */
+	public void setSpill(int threshold) {
+		setSpill(threshold, MQTTSpill.toFiles(getCacheDir()));
+	}
+
+	/**
+	 * Write the payload of large incoming messages somewhere other than the
+	 * heap as it arrives, so that memory use doesn't grow with the largest
+	 * message. The listeners get such messages with an empty payload and
+	 * the payload in {@link MQTTMessage#spilled}, which they must release.
+	 * Spilled payloads aren't decoded by the payload codecs.
+	 * 
+	 * Spilled messages may be larger than the maximum packet size, up to
+	 * the largest message MQTT allows.
+	 * 
+	 * @param threshold
+	 *            Size of a whole message above which it is spilled, 0 to
+	 *            not spill
+	 * @param factory
+	 *            Creates a spill for each such message
+	 */
+	public void setSpill(int threshold, MQTTSpill.Factory factory) {
+		setSpill(threshold, Integer.MAX_VALUE, factory);
+	}
+
+	/**
+	 * Write the payload of large incoming messages somewhere other than the
+	 * heap as it arrives, see {@link #setSpill(int, MQTTSpill.Factory)}.
+	 * 
+	 * @param threshold
+	 *            Size of a whole message above which it is spilled, 0 to
+	 *            not spill
+	 * @param maxSize
+	 *            The largest message that is spilled, for example to bound
+	 *            the disk space used. It can be larger than the maximum
+	 *            packet size, a larger message closes the connection.
+	 * @param factory
+	 *            Creates a spill for each such message
+	 */
+	public void setSpill(int threshold, int maxSize,
+			MQTTSpill.Factory factory) {
+		mSpillFactory = factory;
+		maxSpillSize = maxSize;
+		spillThreshold = threshold;
+	}
+
+	/**
+	 * @return The counters and gauges of the connection: packets and bytes
+	 *         by type in both directions, time spent encoding and decoding,
+	 *         writes, reconnects, time connected, ping round trip time and
+	 *         queue depths.
+	 */
+	public MQTTMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Report the metrics periodically. Every report is a
+	 * {@link MQTTMetrics.Snapshot} of the totals so far, given to the Handler
+	 * as {@link #MQTT_METRICS} and, while connected, published as JSON at
+	 * {@link #AT_MOST_ONCE}.
+	 * 
+	 * @param milliseconds
+	 *            Time between reports, 0 to stop reporting
+	 * @param topic
+	 *            Topic to publish the reports to, for example
+	 *            <code>$SYS/clients/&lt;id&gt;</code>, or null to only give
+	 *            them to the Handler
+	 */
+	public synchronized void setMetricsInterval(long milliseconds, String topic) {
+		if (mMetricsTimeout != null) {
+			mMetricsTimeout.cancel();
+			mMetricsTimeout = null;
+		}
+
+		metricsInterval = milliseconds;
+		metricsTopic = topic;
+		if (milliseconds > 0)
+			mMetricsTimeout = getScheduler().schedule(mMetricsTask,
+					milliseconds);
+	}
+
+	private final Runnable mMetricsTask = new Runnable() {
+		@Override
+		public void run() {
+			String topic;
+			synchronized (MQTTService.this) {
+				if (mMetricsTimeout == null)
+					return;
+				mMetricsTimeout = getScheduler().schedule(this,
+						metricsInterval);
+				topic = metricsTopic;
+			}
+
+			MQTTMetrics.Snapshot snapshot = mMetrics.snapshot();
+
+			Handler handler = mHandler;
+			if (handler != null)
+				handler.obtainMessage(MQTT_METRICS, snapshot).sendToTarget();
+
+			if (topic != null && getState() == STATE_CONNECTED) {
+				try {
+					publish(topic, snapshot.toJSON().getBytes("UTF-8"),
+							AT_MOST_ONCE, false);
+				} catch (UnsupportedEncodingException e) {
+					// Every platform supports UTF-8
+				}
+			}
+		}
+	};
+
+	/**
+	 * Choose whether incoming messages also get the untyped
+	 * {@link MQTTMessage#variableHeader} map and
+	 * {@link MQTTMessage#payload} array filled in. This is on by default;
+	 * turn it off to avoid creating those objects for every message and use
+	 * the typed fields instead.
+	 * 
+	 * @param legacy
+	 *            True to fill in the untyped fields
+	 */
+	public void setLegacyMessages(boolean legacy) {
+		legacyMessages = legacy;
+	}
+
+	/**
+	 * Set the largest incoming message that will be accepted, larger messages
+	 * close the connection. Takes effect on the next connection.
+	 * 
+	 * @param bytes
+	 *            Maximum message size, fixed header included
+	 */
+	public void setMaxPacketSize(int bytes) {
+		this.maxPacketSize = bytes;
+
+		MQTTPayloadCodecs codecs = mCodecs;
+		if (codecs != null)
+			codecs.setMaxDecodedSize(bytes);
+	}
+
+	/**
+	 * Set how many messages at {@link #AT_LEAST_ONCE} and
+	 * {@link #EXACTLY_ONCE} can wait for their acknowledgements at once.
+	 * Messages published beyond that are queued until earlier ones are
+	 * acknowledged.
+	 * 
+	 * @param maxInFlight
+	 *            Number of unacknowledged messages
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		mOutbound.setMaxInFlight(maxInFlight);
+	}
+
+	/**
+	 * Set how long to wait for an acknowledgement before a message is sent
+	 * again, with the DUP flag set.
+	 * 
+	 * @param milliseconds
+	 *            Retry interval
+	 */
+	public void setRetryInterval(long milliseconds) {
+		mOutbound.setRetryInterval(milliseconds);
+	}
+
 	private int getMessageid() {
-		return (message_id == 65536 ? (message_id = 0) : message_id++);
+		// Never the id of a message that is still in flight, and kept from
+		// others until the acknowledgement of this one arrives
+		return mOutbound.reserve();
 	}
 
 	public void setReconnect(boolean reconnect) {
 		doAutomaticReconnect = reconnect;
 	}
 
+	/**
+	 * Make a reconnect attempt after the delay given by the reconnect
+	 * policy.
+	 */
 	public void reconnect() {
-		reconnectHandler.postDelayed(recoonectRunnable, RECONNECT_TIMER);
+		reconnect(mReconnectPolicy.nextDelay());
 	}
 
-	public void reconnect(long millis) {
-		reconnectHandler.postDelayed(recoonectRunnable, millis);
+	public synchronized void reconnect(long millis) {
+		if (mReconnectTimeout != null)
+			mReconnectTimeout.cancel();
+
+		mReconnectTimeout = getScheduler().schedule(recoonectRunnable, millis);
 	}
 
-	public synchronized void connect() {
-		if (DEBUG)
-			Log.d(TAG, "connect to: " + host);
+	/**
+	 * Set how long to wait before each reconnect attempt.
+	 * 
+	 * @param policy
+	 *            The policy, attempts start over as first attempts
+	 */
+	public void setReconnectPolicy(MQTTReconnectPolicy policy) {
+		policy.reset();
+		mReconnectPolicy = policy;
+	}
 
-		// Cancel any thread currently running a ping check
-		if (mPingThread != null) {
-			mPingThread.cancel();
-			mPingThread = null;
-		}
+	/**
+	 * Set how long to wait for a connection to be established.
+	 * 
+	 * @param milliseconds
+	 *            The timeout, used from the next connect
+	 */
+	public void setConnectTimeout(int milliseconds) {
+		connectTimeout = milliseconds;
+	}
 
-		// Cancel any thread attempting to make a connection
-		if (mState == STATE_CONNECTING) {
-			if (mConnectThread != null) {
-				mConnectThread.cancel();
-				mConnectThread = null;
+	/**
+	 * @return The scheduler for keep alive and reconnect timers; the event
+	 *         loop for non-blocking connections, otherwise a timer thread.
+	 */
+	private MQTTScheduler getScheduler() {
+		MQTTEventLoop loop = mEventLoop;
+		if (loop != null)
+			return loop;
+
+		synchronized (mTimerLock) {
+			if (mTimer == null) {
+				mTimer = new MQTTTimer();
+				mTimer.start();
 			}
+			return mTimer;
 		}
+	}
+
+	public synchronized void connect() {
+		if (DEBUG)
+			Log.d(TAG, "connect to: " + host);
+
+		// Cancel any ping check, pending reconnect and current connection
+		stopKeepAlive();
+		closeTransport();
 
-		// Cancel any thread currently running a connection
-		if (mConnectedThread != null) {
-			mConnectedThread.cancel();
-			mConnectedThread = null;
+		if (mReconnectTimeout != null) {
+			mReconnectTimeout.cancel();
+			mReconnectTimeout = null;
 		}
 
-		// Start the thread to connect with the given device
-		mConnectThread = new ConnectThread(host, port);
-		mConnectThread.start();
+		// Start connecting, the outcome is reported to the callback
+		mTransport = createTransport();
+		mTransport.connect(host, port, connectTimeout, new TransportCallback(
+				mTransport));
 
 		setState(STATE_CONNECTING);
 	}
 
-	public synchronized void connected(Socket socket) {
-		if (DEBUG)
-			Log.d(TAG, "connected, Socket Type:");
-
-		// Cancel any thread currently running a ping check
-		if (mPingThread != null) {
-			mPingThread.cancel();
-			mPingThread = null;
-		}
-
-		// Cancel the thread that completed the connection
-		if (mConnectThread != null) {
-			mConnectThread.cancel();
-			mConnectThread = null;
+	private MQTTTransport createTransport() {
+		switch (transportType) {
+		case TRANSPORT_NIO:
+			mEventLoop = MQTTEventLoop.getDefault();
+			return new MQTTNioTransport(mEventLoop, maxPacketSize,
+					maxBatchBytes, linger);
+
+		case TRANSPORT_TLS:
+			mEventLoop = null;
+			if (sslSocketFactory == null)
+				sslSocketFactory = (SSLSocketFactory) SSLSocketFactory
+						.getDefault();
+			return new MQTTTlsTransport(sslSocketFactory, cipherSuites,
+					hostnameVerifier, maxPacketSize, maxBatchBytes, linger);
+
+		default:
+			mEventLoop = null;
+			return new MQTTSocketTransport(maxPacketSize, maxBatchBytes,
+					linger);
 		}
+	}
 
-		// Cancel any thread currently running a connection
-		if (mConnectedThread != null) {
-			mConnectedThread.cancel();
-			mConnectedThread = null;
+	private synchronized void connected() {
+		if (DEBUG)
+			Log.d(TAG, "connected");
+
+		mMetrics.connected();
+
+		// Time to connect, and to shake hands apart from it
+		MQTTTransport transport = mTransport;
+		if (transport instanceof MQTTSocketTransport)
+			mMetrics.established(((MQTTSocketTransport) transport)
+					.getConnectNanos());
+		if (transport instanceof MQTTTlsTransport) {
+			MQTTTlsTransport tls = (MQTTTlsTransport) transport;
+			mMetrics.handshake(tls.getHandshakeNanos(), tls.isResumed());
 		}
 
-		// Start the thread to manage the connection and perform transmissions
-		mConnectedThread = new ConnectedThread(socket);
-		mConnectedThread.start();
-
-		// Start the ping check thread
-		mPingThread = new PingThread();
-		mPingThread.start();
-
 		// Send the connect message
 		connect(host, port, uid);
 
+		// The subscriptions right behind it, all in a few messages so that
+		// none waits for the SUBACK of another. A clean session has none of
+		// them, otherwise only those that weren't answered are missing.
+		// Nothing sent on the last connection is acknowledged on this one.
+		mOutbound.releaseAll();
+		byte[] subscribe = mSubscriptions.resubscribe(mOutbound, clean_session);
+		if (subscribe != null)
+			write(subscribe);
+
 		setState(STATE_CONNECTED);
 
+		// Anything that wasn't acknowledged on the last connection, then
+		// anything published while disconnected
+		mOutbound.resend();
+		drain();
+		mConflator.resume();
+
 		// Set the current time as the last action
-		lastaction = System.currentTimeMillis();
+		lastaction = MQTTTimer.now();
+
+		startKeepAlive();
 	}
 
 	/**
@@ -481,25 +1499,44 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 	}
 
 	public void disconnect() {
-		// Cancel any thread currently running a ping check
-		if (mPingThread != null) {
-			mPingThread.cancel();
-			mPingThread = null;
-		}
+		// Cancel any ping check and the current connection
+		stopKeepAlive();
+		closeTransport();
+		mConflator.pause();
+		mMetrics.disconnected();
 
-		// Cancel the thread that completed the connection
-		if (mConnectThread != null) {
-			mConnectThread.cancel();
-			mConnectThread = null;
+		setState(STATE_NONE);
+	}
+
+	private synchronized void closeTransport() {
+		if (mTransport != null) {
+			mTransport.close();
+			mTransport = null;
 		}
+	}
 
-		// Cancel any thread currently running a connection
-		if (mConnectedThread != null) {
-			mConnectedThread.cancel();
-			mConnectedThread = null;
+	/**
+	 * Queue a message on the current connection.
+	 * 
+	 * @param buffer
+	 *            The complete message
+	 */
+	private void write(byte[] buffer) {
+		// Only what was queued is counted
+		MQTTTransport transport = mTransport;
+		if (transport == null || !transport.send(buffer)) {
+			if (DEBUG)
+				Log.i(TAG, "Not connected, message dropped");
+			return;
 		}
 
-		setState(STATE_NONE);
+		mConflator.sent(buffer.length);
+		mMetrics.sent(buffer);
+
+		if (rawEcho && mHandler != null)
+			// Share the sent message back to the UI Activity
+			mHandler.obtainMessage(MQTT_RAW_PUBLISH, -1, -1, buffer)
+					.sendToTarget();
 	}
 
 	private synchronized void setState(int state) {
@@ -517,328 +1554,456 @@ public class MQTTService extends Service implements MQTTConnectionConstants,
 		return mState;
 	}
 
+	/**
+	 * Set how long the connection may be idle before it is pinged, the
+	 * server is told at the next connect.
+	 * 
+	 * @param milliseconds
+	 *            Idle time, at least one second
+	 */
 	public void setKeepAlive(int milliseconds) {
-		KEEP_ALIVE_TIMER = milliseconds;
+		mKeepAlive.setInterval(milliseconds);
+	}
+
+	/**
+	 * Stretch the keep alive interval toward the longest idle period the
+	 * network allows, to ping less often. The server is told the longest
+	 * interval at the next connect.
+	 * 
+	 * @param maxMilliseconds
+	 *            The longest interval to try, or 0 to turn it off
+	 */
+	public void setAdaptiveKeepAlive(long maxMilliseconds) {
+		mKeepAlive.setAdaptive(maxMilliseconds);
 	}
 
-	private int KEEP_ALIVE_TIMER = 10000;
+	/**
+	 * @return The keep alive interval and the ping round trip times.
+	 */
+	public MQTTKeepAlive getKeepAlive() {
+		return mKeepAlive;
+	}
 
-	private class PingThread extends Thread {
+	/**
+	 * Send a ping when the connection has been idle too long, and detect
+	 * when the ping isn't answered.
+	 * 
+	 * @return Milliseconds until the next check is due, or -1 if the ping
+	 *         timed out.
+	 */
+	private long keepAlive() {
+		long now = MQTTTimer.now();
+
+		if (pingreq) {
+			// If we're expecting a ping response; detect if we've timed out.
+			long waited = now - pingtime;
+			long timeout = mKeepAlive.getPingTimeout();
+			if (waited >= timeout) {
+				Log.i(TAG, "Ping timed out after " + waited + " ms");
+				pingreq = false;
+				mKeepAlive.pingTimedOut();
+				return -1;
+			}
+			return timeout - waited;
+		}
 
-		private static final int KEEP_ALIVE_GRACE = 2000;
+		// If the last action was too long ago; send a ping
+		long interval = mKeepAlive.getInterval();
+		long idle = now - lastaction;
+		if (idle >= interval) {
+			try {
+				write(MQTT.ping());
 
-		public PingThread() {
-			if (DEBUG)
-				Log.d(TAG, "CREATE mPingthread ");
+				// Set volatile pingreq var to true
+				pingreq = true;
+				pingtime = now;
+				mKeepAlive.pingSent(now,
+						now - Math.max(lastaction, lastreceived));
 
-			// Set the current time as the last action
-			lastaction = System.currentTimeMillis();
+				if (DEBUG)
+					Log.i(TAG, "Sending ping req");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return mKeepAlive.getPingTimeout();
 		}
+		return interval - idle;
+	}
 
-		@Override
-		public void run() {
-			if (DEBUG)
-				Log.i(TAG, "BEGIN mPingthread");
+	private synchronized void startKeepAlive() {
+		pingreq = false;
+		lastreceived = MQTTTimer.now();
 
-			boolean local_pingreq = pingreq;
-			long local_pingtime = pingtime;
-			long local_lastaction = lastaction;
+		// Nothing runs until the connection could have gone idle
+		mKeepAliveTimeout = getScheduler().schedule(mKeepAliveTask,
+				mKeepAlive.getInterval());
+	}
 
-			int local_state = mState;
+	private synchronized void stopKeepAlive() {
+		if (mKeepAliveTimeout != null) {
+			mKeepAliveTimeout.cancel();
+			mKeepAliveTimeout = null;
+		}
+	}
 
-			while (!interrupted()) {
-				if (local_state != mState) {
-					local_state = mState;
+	private final Runnable mKeepAliveTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (MQTTService.this) {
+				if (mKeepAliveTimeout == null || mState != STATE_CONNECTED)
+					return;
 
-					if (DEBUG)
-						Log.i(TAG, "Detected change in volatile var: state");
+				long next = keepAlive();
+				if (next >= 0) {
+					mKeepAliveTimeout = getScheduler().schedule(this, next);
+					return;
 				}
+				mKeepAliveTimeout = null;
+			}
 
-				if (local_state == STATE_CONNECTED) {
-					if (local_pingreq != pingreq) {
-						// TODO React to when the listener thread changed the
-						// pingreq
-						local_pingreq = pingreq;
-
-						if (DEBUG)
-							Log.i(TAG,
-									"Detected change in volatile var: pingreq");
-					}
-
-					if (local_lastaction != lastaction) {
-						// TODO React to when a new action is set
-						local_lastaction = lastaction;
-
-						if (DEBUG)
-							Log.i(TAG,
-									"Detected change in volatile var: lastaction");
-					}
-
-					if (local_pingreq) {
-						// If we're expecting a ping response; detect if we've
-						// timed
-						// out.
-						if ((System.currentTimeMillis() - local_lastaction) > (KEEP_ALIVE_TIMER + KEEP_ALIVE_GRACE)) {
-							// Disconnect?
-							// TODO Disconnect
-							// if (DEBUG)
-							Log.i(TAG,
-									"Ping time out detected, should disconnect?");
-							pingreq = false;
-						}
-					} else {
-						// If the last action was too long ago; send a ping
-						if ((System.currentTimeMillis() - local_lastaction) > KEEP_ALIVE_TIMER) {
-							try {
-								mConnectedThread.write(MQTT.ping());
-
-								// Set volatile pingreq var to true
-								pingreq = true;
-
-								if (DEBUG)
-									Log.i(TAG, "Sending ping req");
-							} catch (IOException e) {
-								e.printStackTrace();
-							}
-						}
-					}
-
-					// if (local_state != mState)
-					// local_state = mState;
-
-				} else {
-					// if (DEBUG)
-					// Log.i(TAG, "Not connected??");
-					Thread.currentThread().interrupt();
-				}
+			// The ping wasn't answered, the connection is dead even though
+			// the socket doesn't know it yet. Closed before the reconnect is
+			// scheduled, which may run at once and must not be closed too.
+			disconnect();
+			connectionLost();
+		}
+	};
 
-				if (!interrupted()) {
-					try {
-						Thread.sleep(500);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
+	/**
+	 * Receives everything that happens on one connection. Reports from a
+	 * connection that has since been replaced are ignored.
+	 */
+	private class TransportCallback implements MQTTTransport.Callback,
+			MQTTFrameDecoder.SpillListener {
+		private final MQTTTransport transport;
 
-			}
+		public TransportCallback(MQTTTransport transport) {
+			this.transport = transport;
 		}
 
-		public void cancel() {
-			// TODO do we need to do something?
+		private boolean isCurrent() {
+			return transport == mTransport;
 		}
 
-	}
+		@Override
+		public void onConnected() {
+			if (isCurrent())
+				connected();
+		}
 
-	private class ConnectThread extends Thread {
-		private static final String TAG = "ConnectThread";
+		@Override
+		public void onConnectFailed(IOException e) {
+			if (!isCurrent())
+				return;
 
-		private final Socket mmSocket;
+			if (DEBUG)
+				Log.e(TAG, "connection failed", e);
 
-		/** Timeout of connection attempts (ms) */
-		private int timeout = 3000;
+			closeTransport();
+			connectionFailed();
+		}
 
-		private InetSocketAddress remoteAddr;
+		@Override
+		public void onConnectionLost(IOException e) {
+			if (!isCurrent())
+				return;
 
-		public ConnectThread(String host, int port) {
 			if (DEBUG)
-				Log.d(TAG, "CREATE mConnectThread ");
+				Log.e(TAG, "disconnected", e);
+
+			// Closed first, the reconnect may run before this returns
+			disconnect();
+			connectionLost();
+		}
 
-			Socket tmp = new Socket();
+		@Override
+		public void onWrite(int messages, int bytes) {
+			lastaction = MQTTTimer.now();
+			mMetrics.written();
 
-			mmSocket = tmp;
+			if (isCurrent())
+				mConflator.written(bytes);
 		}
 
-		public void run() {
-			if (DEBUG)
-				Log.i(TAG, "BEGIN mConnectThread");
+		@Override
+		public void onFrame(byte[] buffer, int offset, int length) {
+			MQTTMessagePool pool = mMessagePool;
+			long start = System.nanoTime();
+			MQTTMessage msg = MQTT.decode(buffer, offset, length,
+					pool != null ? pool.obtain() : new MQTTMessage(),
+					mTopicCache);
+			mMetrics.received(msg.type, length, System.nanoTime() - start);
+			received(msg);
+		}
 
-			setName("ConnectThread");
+		@Override
+		public int getSpillThreshold() {
+			return mSpillFactory != null ? spillThreshold : 0;
+		}
 
-			remoteAddr = new InetSocketAddress(host, port);
+		@Override
+		public int getMaxSpillSize() {
+			return maxSpillSize;
+		}
 
-			// Make a connection to the Socket
+		@Override
+		public MQTTSpill spill(byte[] buffer, int offset, int length,
+				int payloadLength) {
+			MQTTSpill.Factory factory = mSpillFactory;
+			if (factory == null)
+				return null;
+
+			String topic = MQTT.decode(buffer, offset, length,
+					new MQTTMessage(), mTopicCache).topic;
 			try {
-				// This is a blocking call and will only return on a
-				// successful connection or an exception
-				mmSocket.connect(remoteAddr, timeout);
+				return factory.create(topic, payloadLength);
 			} catch (IOException e) {
-				// Close the socket
-				try {
-					mmSocket.close();
-				} catch (IOException e2) {
-					Log.e(TAG,
-							"unable to close() socket during connection failure",
-							e2);
-				}
-				connectionFailed();
-				return;
-			}
-
-			// Reset the ConnectThread because we're done
-			synchronized (MQTTService.this) {
-				mConnectThread = null;
+				// Collected in memory instead
+				Log.w(TAG, "Could not spill message on " + topic + ": "
+						+ e.getMessage());
+				return null;
 			}
+		}
 
-			// Start the connected thread
-			connected(mmSocket);
+		@Override
+		public void onSpilledFrame(byte[] buffer, int offset, int length,
+				MQTTSpill payload) {
+			MQTTMessagePool pool = mMessagePool;
+			long start = System.nanoTime();
+			MQTTMessage msg = MQTT.decode(buffer, offset, length,
+					pool != null ? pool.obtain() : new MQTTMessage(),
+					mTopicCache);
+
+			// Only the headers are in the buffer
+			msg.payloadLength = 0;
+			msg.spilled = payload;
+			mMetrics.received(msg.type, length + payload.length(),
+					System.nanoTime() - start);
+			received(msg);
 		}
 
-		public void cancel() {
-			try {
-				mmSocket.close();
-			} catch (IOException e) {
-				Log.e(TAG, "close() of connect socket failed", e);
+		private void received(MQTTMessage msg) {
+			lastreceived = MQTTTimer.now();
+
+			// Handle automatic responses here
+			switch (msg.type) {
+			case CONNACK:
+				// Only an accepted connection counts as a successful attempt
+				if (msg.returnCode == CONNECTION_ACCEPTED) {
+					mReconnectPolicy.reset();
+				} else if (isCurrent()) {
+					// Refused, close and try again after the backoff
+					Log.w(TAG, "Connection refused: " + msg.returnCode);
+					disconnect();
+					connectionFailed();
+				}
+				break;
+			case PUBLISH:
+				// Acknowledge, the rest is up to the receiver
+				if (msg.QoS == AT_LEAST_ONCE)
+					write(MQTT.ack(PUBACK, msg.messageId));
+				else if (msg.QoS == EXACTLY_ONCE)
+					write(MQTT.ack(PUBREC, msg.messageId));
+				break;
+			case PUBACK:
+			case PUBREC:
+			case PUBCOMP:
+				// Frees up room for the next message in line
+				acknowledged(msg.type, msg.messageId);
+				break;
+			case PUBREL:
+				write(MQTT.ack(PUBCOMP, msg.messageId));
+				break;
+			case SUBSCRIBE:
+				// The client shouldn't receive any SUBSCRIBE
+				// messages.
+				break;
+			case SUBACK:
+				mOutbound.release(msg.messageId);
+				String[] refused = mSubscriptions.acknowledged(msg.messageId,
+						msg.data, msg.payloadOffset, msg.payloadLength);
+				if (refused != null && DEBUG)
+					for (String filter : refused)
+						Log.w(TAG, "Subscription refused: " + filter);
+				break;
+			case UNSUBSCRIBE:
+				break;
+			case UNSUBACK:
+				mOutbound.release(msg.messageId);
+				break;
+			case PINGREQ:
+				// The client shouldn't receive any PINGREQ
+				// messages.
+				break;
+			case PINGRESP:
+				// The connection is still alive
+				if (pingreq) {
+					pingreq = false;
+					mMetrics.ping(mKeepAlive.pingAnswered(MQTTTimer
+							.now()));
+				}
+
+				if (DEBUG)
+					Log.i(TAG, "Got ping response");
+
+				break;
+			case DISCONNECT:
+				// TODO close all threads when receiving the
+				// DISCONNECT message.
+				break;
+			}
+
+			MQTTRingBuffer inbox = mInbox;
+			if (inbox == null) {
+				deliver(msg);
+			} else if (unwanted(msg)) {
+				unclaimed(msg);
+				msg.recycle();
+			} else {
+				// The receive buffer is reused for the next read
+				msg.detach();
+				inbox.offer(msg);
 			}
 		}
 	}
 
 	/**
-	 * This thread runs during a connection with a remote device. It handles all
-	 * incoming and outgoing transmissions.
+	 * @return True for a PUBLISH that no topic listener wants, while there
+	 *         are topic listeners.
 	 */
-	private class ConnectedThread extends Thread {
-		private final Socket mmSocket;
-		private final InputStream mmInStream;
-		private final OutputStream mmOutStream;
-
-		public ConnectedThread(Socket socket) {
-			if (DEBUG)
-				Log.d(TAG, "CREATE mConnectedThread");
+	private boolean unwanted(MQTTMessage msg) {
+		return msg.type == PUBLISH && mDispatcher.size() > 0
+				&& !mDispatcher.matches(msg.topic);
+	}
 
-			mmSocket = socket;
-			InputStream tmpIn = null;
-			OutputStream tmpOut = null;
+	/**
+	 * Hand an incoming message to the listeners and the Handler, the way
+	 * chosen with {@link #setDelivery(int)}. Called on the thread that
+	 * received the message, or the one that takes it from the inbound
+	 * buffer.
+	 */
+	private void deliver(final MQTTMessage msg) {
+		// Unmatched messages are dropped here, before their payload is
+		// ever copied out of the receive buffer or decoded. Only direct
+		// delivery still hands them to the message listener.
+		if (unwanted(msg)
+				&& (deliveryMode != DELIVERY_DIRECT || mMessageListener == null)) {
+			unclaimed(msg);
+			msg.recycle();
+			return;
+		}
 
-			// Get the Socket input and output streams
+		MQTTPayloadCodecs codecs = mCodecs;
+		if (codecs != null && msg.type == PUBLISH && msg.spilled == null) {
 			try {
-				tmpIn = socket.getInputStream();
-				tmpOut = socket.getOutputStream();
+				codecs.decode(msg);
 			} catch (IOException e) {
-				Log.e(TAG, "temp sockets not created", e);
+				// Delivered as it came, it may not have been encoded at all
+				Log.w(TAG, "Could not decode message on " + msg.topic + ": "
+						+ e.getMessage());
 			}
-
-			mmInStream = tmpIn;
-			mmOutStream = tmpOut;
 		}
 
-		public void run() {
-			if (DEBUG)
-				Log.i(TAG, "BEGIN mConnectedThread");
-
-			byte[] buffer = new byte[16384];
-			int bytes;
-
-			// Keep listening to the InputStream while connected
-			while (!isInterrupted()) {
-				try {
-					// Read from the InputStream
-					bytes = mmInStream.read(buffer);
-
-					if (mHandler != null)
-						// Send the obtained bytes to the UI Activity
-						// mHandler.obtainMessage(MQTT_RAW_READ, bytes, -1,
-						// buffer)
-						// .sendToTarget();
-
-						if (bytes > 0) {
-							MQTTMessage msg = MQTT.decode(buffer);
-
-							// Share the recieved msg type back to activity
-							if (mHandler != null)
-								mHandler.obtainMessage(msg.type, msg)
-										.sendToTarget();
-
-							// Handle automatic responses here
-							switch (msg.type) {
-							case PUBLISH:
-								// No need to act on normal PUBLISH messages.
-								break;
-							case PUBACK:
-								break;
-							case PUBREC:
-								break;
-							case PUBREL:
-								break;
-							case PUBCOMP:
-								break;
-							case SUBSCRIBE:
-								// The client shouldn't receive any SUBSCRIBE
-								// messages.
-								break;
-							case SUBACK:
-								break;
-							case UNSUBSCRIBE:
-								break;
-							case UNSUBACK:
-								break;
-							case PINGREQ:
-								// The client shouldn't receive any PINGREQ
-								// messages.
-								break;
-							case PINGRESP:
-								// TODO PINGREQ was successful, connections
-								// still
-								// alive.
-								pingreq = false;
-
-								if (DEBUG)
-									Log.i(TAG, "Got ping response");
-
-								break;
-							case DISCONNECT:
-								// TODO close all threads when receiving the
-								// DISCONNECT message.
-								break;
-							}
-						}
-
-				} catch (IOException e) {
-					if (DEBUG)
-						Log.e(TAG, "disconnected", e);
-
-					connectionLost();
-
-					disconnect();
-
-					break;
+		switch (deliveryMode) {
+		case DELIVERY_DIRECT:
+			if (!consume(msg))
+				unclaimed(msg);
+			msg.recycle();
+			break;
+
+		case DELIVERY_EXECUTOR:
+			// The receive buffer is reused for the next read
+			msg.detach();
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!consume(msg))
+						unclaimed(msg);
+					msg.recycle();
 				}
+			});
+			break;
+
+		case DELIVERY_BATCHED:
+			msg.detach();
+			if (legacyMessages)
+				msg.fillLegacyFields();
+
+			synchronized (mMainHandler) {
+				mBatch.add(msg);
+				if (mBatch.size() == 1)
+					mMainHandler.postDelayed(mBatchTask, batchInterval);
 			}
-		}
+			break;
 
-		/**
-		 * Write to the connected OutStream.
-		 * 
-		 * @param buffer
-		 *            The bytes to write
-		 */
-		public synchronized void write(byte[] buffer) {
-			Log.i(TAG, "write()");
-			Log.i(TAG, new String(buffer));
-			try {
-				mmOutStream.write(buffer);
+		default:
+			if (msg.type == PUBLISH && mDispatcher.size() > 0) {
+				if (!mDispatcher.dispatch(msg))
+					unclaimed(msg);
+				msg.recycle();
+				return;
+			}
 
-				if (mHandler != null)
-					// Share the sent message back to the UI Activity
-					mHandler.obtainMessage(MQTT_RAW_PUBLISH, -1, -1, buffer)
-							.sendToTarget();
+			// Share the recieved msg type back to activity
+			Handler handler = mHandler;
+			if (handler != null) {
+				msg.detach();
+				if (legacyMessages)
+					msg.fillLegacyFields();
+				handler.obtainMessage(msg.type, msg).sendToTarget();
+			} else {
+				unclaimed(msg);
+				msg.recycle();
+			}
+		}
+	}
 
-				lastaction = System.currentTimeMillis();
-			} catch (IOException e) {
-				Log.e(TAG, "Exception during write", e);
+	/**
+	 * Give a message to the topic listeners, or to the message listener if
+	 * it isn't for them.
+	 * 
+	 * @return False if no listener got it.
+	 */
+	private boolean consume(MQTTMessage msg) {
+		if (msg.type == PUBLISH && mDispatcher.dispatch(msg))
+			return true;
+
+		MQTTDispatcher.Listener listener = mMessageListener;
+		if (listener == null)
+			return false;
+		listener.onMessage(msg);
+		return true;
+	}
 
-				disconnect();
+	/**
+	 * Release the spilled payload of a message no receiver got.
+	 */
+	private static void unclaimed(MQTTMessage msg) {
+		if (msg.spilled != null)
+			msg.spilled.release();
+	}
 
-				if (doAutomaticReconnect)
-					reconnect();
+	private final Runnable mBatchTask = new Runnable() {
+		@Override
+		public void run() {
+			ArrayList<MQTTMessage> batch;
+			synchronized (mMainHandler) {
+				batch = mBatch;
+				mBatch = new ArrayList<MQTTMessage>(batch.size());
 			}
-		}
 
-		public void cancel() {
-			try {
-				mmSocket.close();
-			} catch (IOException e) {
-				Log.e(TAG, "close() of connect socket failed", e);
+			Handler handler = mHandler;
+			for (int i = 0; i < batch.size(); i++)
+				if (!consume(batch.get(i)) && handler == null)
+					unclaimed(batch.get(i));
+
+			// The Handler takes over the messages, or they are done with
+			if (handler != null) {
+				handler.obtainMessage(MQTT_BATCH, batch).sendToTarget();
+			} else {
+				for (int i = 0; i < batch.size(); i++)
+					batch.get(i).recycle();
 			}
 		}
-	}
+	};
 }
@@ -0,0 +1,238 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport built on a blocking {@link Socket}.
+ *
+ * Uses one thread to connect and then read, and a {@link MQTTWriter} thread
+ * for writing.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTSocketTransport implements MQTTTransport {
+
+	private final int maxPacketSize;
+
+	private final int maxBatchBytes;
+
+	private final long linger;
+
+	private final Socket mmSocket = new Socket();
+
+	private volatile MQTTWriter mmWriter;
+
+	private volatile boolean closed;
+
+	private volatile long connectNanos;
+
+	/**
+	 * @param maxPacketSize
+	 *            The largest incoming message that will be accepted
+	 * @param maxBatchBytes
+	 *            Size of the buffer outgoing messages are batched in
+	 * @param lingerMillis
+	 *            How long outgoing messages may wait for more to batch with
+	 */
+	public MQTTSocketTransport(int maxPacketSize, int maxBatchBytes,
+			long lingerMillis) {
+		this.maxPacketSize = maxPacketSize;
+		this.maxBatchBytes = maxBatchBytes;
+		this.linger = lingerMillis;
+	}
+
+	@Override
+	public void connect(String host, int port, int timeout, Callback callback) {
+		new ConnectedThread(host, port, timeout, callback).start();
+	}
+
+	@Override
+	public boolean send(byte[] message) {
+		// No writer until connected
+		MQTTWriter writer = mmWriter;
+		return writer != null && writer.send(message);
+	}
+
+	@Override
+	public boolean send(byte[] header, MQTTPayloadStream payload) {
+		MQTTWriter writer = mmWriter;
+		if (writer != null)
+			return writer.send(header, payload);
+
+		payload.close();
+		return false;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+
+		MQTTWriter writer = mmWriter;
+		if (writer != null)
+			writer.cancel();
+
+		try {
+			mmSocket.close();
+		} catch (IOException e) {
+			// Nothing left to do
+		}
+	}
+
+	/**
+	 * @return Time the TCP connection took to establish (ns), 0 until it is.
+	 */
+	public long getConnectNanos() {
+		return connectNanos;
+	}
+
+	/**
+	 * Called on the connecting thread once the socket is connected, before
+	 * anything is read or written.
+	 * 
+	 * @param socket
+	 *            The connected socket
+	 * @param host
+	 *            Host name of the server
+	 * @param port
+	 *            Port of the server
+	 * @param timeout
+	 *            How long the connection may take to set up (ms)
+	 * @return The socket to read and write, the given one unless it is
+	 *         wrapped in another.
+	 * @throws IOException
+	 *             If the connection can't be set up
+	 */
+	protected Socket opened(Socket socket, String host, int port, int timeout)
+			throws IOException {
+		return socket;
+	}
+
+	/**
+	 * This thread makes the connection and then handles all incoming
+	 * transmissions for as long as it lasts.
+	 */
+	private class ConnectedThread extends Thread implements
+			MQTTWriter.Listener {
+		private final String host;
+		private final int port;
+		private final int timeout;
+		private final Callback callback;
+
+		public ConnectedThread(String host, int port, int timeout,
+				Callback callback) {
+			super("ConnectedThread");
+			this.host = host;
+			this.port = port;
+			this.timeout = timeout;
+			this.callback = callback;
+		}
+
+		public void run() {
+			InputStream in;
+
+			// Make a connection to the Socket
+			try {
+				InetSocketAddress address = MQTTAddressCache.getDefault()
+						.resolve(host, port);
+
+				// This is a blocking call and will only return on a
+				// successful connection or an exception
+				long start = System.nanoTime();
+				try {
+					mmSocket.connect(address, timeout);
+				} catch (IOException e) {
+					MQTTAddressCache.getDefault().failed(host);
+					throw e;
+				}
+				connectNanos = System.nanoTime() - start;
+
+				// Writes are already batched by the writer
+				mmSocket.setTcpNoDelay(true);
+
+				Socket socket = opened(mmSocket, host, port, timeout);
+				in = socket.getInputStream();
+				mmWriter = new MQTTWriter(socket.getOutputStream(),
+						maxBatchBytes, linger, this);
+			} catch (IOException e) {
+				if (!closed) {
+					close();
+					callback.onConnectFailed(e);
+				}
+				return;
+			}
+
+			if (closed) {
+				close();
+				return;
+			}
+
+			mmWriter.start();
+			callback.onConnected();
+
+			byte[] buffer = new byte[16384];
+			int bytes;
+
+			MQTTFrameDecoder decoder = new MQTTFrameDecoder(buffer.length,
+					maxPacketSize);
+
+			// Keep listening to the InputStream while connected
+			try {
+				while (!closed) {
+					// Read from the InputStream
+					bytes = in.read(buffer);
+
+					if (bytes < 0)
+						throw new IOException("Connection closed by server");
+
+					// A read can hold several messages, or only part of one
+					decoder.feed(buffer, 0, bytes, callback);
+				}
+			} catch (IOException e) {
+				lost(e);
+			} finally {
+				// Releases a partly spilled message
+				decoder.reset();
+			}
+		}
+
+		@Override
+		public void onWrite(int messages, int bytes) {
+			callback.onWrite(messages, bytes);
+		}
+
+		@Override
+		public void onWriteFailed(IOException e) {
+			lost(e);
+		}
+
+		private void lost(IOException e) {
+			// Only report once, and not after close() was called
+			synchronized (MQTTSocketTransport.this) {
+				if (closed)
+					return;
+				close();
+			}
+			callback.onConnectionLost(e);
+		}
+	}
+}
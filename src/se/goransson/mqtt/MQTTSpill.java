@@ -0,0 +1,172 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * The payload of a large incoming message, written somewhere other than the
+ * heap as it arrives. See {@link MQTTService#setSpill(int, Factory)}.
+ *
+ * A spilled message reaches the listeners with an empty payload and the
+ * spill in {@link MQTTMessage#spilled}. The receiver owns the spill and
+ * must {@link #release()} it once done with it.
+ *
+ * @author ksango
+ *
+ */
+public abstract class MQTTSpill {
+
+	/** Creates a spill for each large message */
+	public interface Factory {
+		/**
+		 * @param topic
+		 *            Topic of the message
+		 * @param length
+		 *            Length of the payload
+		 * @return Where the payload is written, or null to receive it in
+		 *         memory like any other message.
+		 */
+		MQTTSpill create(String topic, int length) throws IOException;
+	}
+
+	private final int length;
+
+	/**
+	 * @param length
+	 *            Length of the payload
+	 */
+	protected MQTTSpill(int length) {
+		this.length = length;
+	}
+
+	/**
+	 * @return Length of the payload.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Write the next part of the payload, called on the thread that reads
+	 * the connection.
+	 */
+	protected abstract void write(byte[] data, int offset, int length)
+			throws IOException;
+
+	/**
+	 * Called when the whole payload is written, before the message is
+	 * delivered.
+	 */
+	protected void finish() throws IOException {
+	}
+
+	/**
+	 * @return A new stream that reads the payload from the start.
+	 */
+	public abstract InputStream getInputStream() throws IOException;
+
+	/**
+	 * Free what the payload is held in. Also called by the service for a
+	 * message that is never delivered, or whose payload never arrived.
+	 */
+	public void release() {
+	}
+
+	/**
+	 * Spill to temporary files.
+	 *
+	 * @param directory
+	 *            Where the files are created, or null for the default
+	 *            temporary directory
+	 */
+	public static Factory toFiles(final File directory) {
+		return new Factory() {
+			@Override
+			public MQTTSpill create(String topic, int length)
+					throws IOException {
+				return new FileSpill(File.createTempFile("mqtt", ".spill",
+						directory), length);
+			}
+		};
+	}
+
+	/** A payload in a file, deleted when released */
+	public static class FileSpill extends MQTTSpill {
+
+		private final File file;
+
+		private FileOutputStream out;
+
+		FileSpill(File file, int length) throws IOException {
+			super(length);
+			this.file = file;
+			this.out = new FileOutputStream(file);
+		}
+
+		@Override
+		protected void write(byte[] data, int offset, int length)
+				throws IOException {
+			out.write(data, offset, length);
+		}
+
+		@Override
+		protected void finish() throws IOException {
+			out.close();
+			out = null;
+		}
+
+		/**
+		 * @return The file holding the payload.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return A new read only channel of the file, for the caller to
+		 *         close.
+		 */
+		public FileChannel getChannel() throws IOException {
+			return new RandomAccessFile(file, "r").getChannel();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new FileInputStream(file);
+		}
+
+		@Override
+		public void release() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// Nothing left to do
+				}
+				out = null;
+			}
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the subscriptions of a client and the QoS the server granted them,
+ * so that they can be made again on a new connection.
+ *
+ * The subscriptions are made again with as few SUBSCRIBE messages as fit
+ * under a size limit, written back to back without waiting for the SUBACK
+ * of one before sending the next. However many there are, messages start
+ * arriving one round trip after the connection is made.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTSubscriptions implements MQTTConstants {
+
+	/** Default size limit of a SUBSCRIBE message */
+	public static final int DEFAULT_MAX_PACKET_SIZE = 16384;
+
+	/** Granted QoS of a subscription the server hasn't answered yet */
+	public static final int PENDING = -1;
+
+	/** Granted QoS of a subscription the server refused */
+	public static final int FAILED = 0x80;
+
+	/** A topic filter and its QoS */
+	public static class Subscription {
+		public final String filter;
+
+		/** The QoS asked for */
+		public final int requested;
+
+		/** The QoS granted, {@link #PENDING} or {@link #FAILED} */
+		public final int granted;
+
+		Subscription(String filter, int requested, int granted) {
+			this.filter = filter;
+			this.requested = requested;
+			this.granted = granted;
+		}
+	}
+
+	/** Requested and granted QoS by topic filter, in subscription order */
+	private final LinkedHashMap<String, int[]> subscriptions = new LinkedHashMap<String, int[]>();
+
+	/** Filters of each SUBSCRIBE that hasn't been answered, by message id */
+	private final MQTTIntMap<String[]> pending = new MQTTIntMap<String[]>();
+
+	private int maxPacketSize = DEFAULT_MAX_PACKET_SIZE;
+
+	/**
+	 * @param bytes
+	 *            Size limit of the SUBSCRIBE messages made by
+	 *            {@link #resubscribe(MQTTInFlightWindow, boolean)}, a
+	 *            single filter that is larger gets a message of its own
+	 */
+	public synchronized void setMaxPacketSize(int bytes) {
+		maxPacketSize = bytes;
+	}
+
+	/**
+	 * A SUBSCRIBE was made, or will be made once connected.
+	 *
+	 * @param message_id
+	 *            Message id of the SUBSCRIBE
+	 */
+	public synchronized void subscribe(int message_id, String[] filters,
+			byte[] qoss) {
+		for (int i = 0; i < filters.length; i++)
+			subscriptions.put(filters[i], new int[] { qoss[i], PENDING });
+		pending.put(message_id, filters);
+	}
+
+	/**
+	 * The filters are unsubscribed from, they aren't made again.
+	 */
+	public synchronized void unsubscribe(String[] filters) {
+		for (String filter : filters)
+			subscriptions.remove(filter);
+	}
+
+	/**
+	 * Handle a SUBACK.
+	 *
+	 * @param message_id
+	 *            Message id of the SUBACK
+	 * @param data
+	 *            Array holding the payload
+	 * @param offset
+	 *            Start of the granted QoS, one byte for each filter
+	 * @param length
+	 *            Number of granted QoS
+	 * @return Filters the server refused, or null if there are none.
+	 */
+	public synchronized String[] acknowledged(int message_id, byte[] data,
+			int offset, int length) {
+		String[] filters = pending.remove(message_id);
+		if (filters == null)
+			return null;
+
+		ArrayList<String> failed = null;
+		for (int i = 0; i < filters.length && i < length; i++) {
+			int granted = data[offset + i] & 0xFF;
+			int[] subscription = subscriptions.get(filters[i]);
+			if (subscription != null)
+				subscription[1] = granted;
+
+			if (granted == FAILED) {
+				if (failed == null)
+					failed = new ArrayList<String>();
+				failed.add(filters[i]);
+			}
+		}
+		return failed != null ? failed.toArray(new String[failed.size()])
+				: null;
+	}
+
+	/**
+	 * Encode the SUBSCRIBE messages that make the subscriptions again on a
+	 * new connection. Subscriptions the server refused aren't made again.
+	 *
+	 * @param ids
+	 *            Reserves the message ids, each is released by its SUBACK
+	 * @param all
+	 *            True to make every subscription again, as after a clean
+	 *            session, false to only make those that weren't answered
+	 * @return The messages back to back, or null if there are none. When
+	 *         the message ids run out the rest stay unanswered, and are made
+	 *         on the next connection.
+	 */
+	public synchronized byte[] resubscribe(MQTTInFlightWindow ids,
+			boolean all) {
+		// Answers to SUBSCRIBEs of the last connection won't come
+		pending.clear();
+
+		int count = 0;
+		String[] filters = new String[subscriptions.size()];
+		byte[] qoss = new byte[filters.length];
+		for (Map.Entry<String, int[]> e : subscriptions.entrySet()) {
+			int[] subscription = e.getValue();
+			if (subscription[1] == FAILED
+					|| (!all && subscription[1] != PENDING))
+				continue;
+
+			subscription[1] = PENDING;
+			filters[count] = e.getKey();
+			qoss[count] = (byte) subscription[0];
+			count++;
+		}
+		if (count == 0)
+			return null;
+
+		// Split into messages under the limit, as few as possible
+		ArrayList<int[]> packets = new ArrayList<int[]>();
+		int total = 0;
+		int start = 0;
+		int remaining = 2;
+		for (int i = 0; i < count; i++) {
+			int size = 2 + MQTTEncoder.utf8Length(filters[i]) + 1;
+			if (i > start
+					&& MQTTEncoder.packetLength(remaining + size) > maxPacketSize) {
+				packets.add(new int[] { start, i - start });
+				total += MQTTEncoder.packetLength(remaining);
+				start = i;
+				remaining = 2;
+			}
+			remaining += size;
+		}
+		packets.add(new int[] { start, count - start });
+		total += MQTTEncoder.packetLength(remaining);
+
+		ByteBuffer buffer = ByteBuffer.allocate(total);
+		for (int[] packet : packets) {
+			int message_id = ids.reserve();
+			if (message_id < 0)
+				break;
+
+			MQTTEncoder.subscribe(buffer, message_id, filters, qoss,
+					packet[0], packet[1]);
+
+			String[] sent = new String[packet[1]];
+			System.arraycopy(filters, packet[0], sent, 0, packet[1]);
+			pending.put(message_id, sent);
+		}
+
+		if (buffer.position() == 0)
+			return null;
+		if (buffer.hasRemaining()) {
+			byte[] sent = new byte[buffer.position()];
+			System.arraycopy(buffer.array(), 0, sent, 0, sent.length);
+			return sent;
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @return Every subscription, in the order they were made.
+	 */
+	public synchronized Subscription[] getSubscriptions() {
+		Subscription[] all = new Subscription[subscriptions.size()];
+		int i = 0;
+		for (Map.Entry<String, int[]> e : subscriptions.entrySet())
+			all[i++] = new Subscription(e.getKey(), e.getValue()[0],
+					e.getValue()[1]);
+		return all;
+	}
+
+	/**
+	 * @return The QoS granted for a filter, {@link #PENDING} or
+	 *         {@link #FAILED}, or {@link #PENDING} if there is no such
+	 *         subscription.
+	 */
+	public synchronized int getGranted(String filter) {
+		int[] subscription = subscriptions.get(filter);
+		return subscription != null ? subscription[1] : PENDING;
+	}
+
+	/**
+	 * @return Number of subscriptions.
+	 */
+	public synchronized int size() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Forget every subscription.
+	 */
+	public synchronized void clear() {
+		subscriptions.clear();
+		pending.clear();
+	}
+}
@@ -0,0 +1,295 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A hashed timer wheel, used for keep alive pings, ping time outs,
+ * retransmissions and reconnects.
+ *
+ * Time is divided into ticks, and the wheel has one bucket per tick that
+ * wraps around. A timeout is put in the bucket of the tick it expires on, so
+ * scheduling and cancelling are constant time regardless of how many
+ * timeouts are pending. Deadlines are rounded up to whole ticks.
+ *
+ * The timer can run on a thread of its own, see {@link #start()}, or be
+ * driven by someone else's loop through {@link #nextDelay()} and
+ * {@link #expire()}. Either way nothing wakes up until the earliest timeout
+ * is due, an idle connection costs no wakeups at all.
+ *
+ * Time is read from {@link #now()}, which is monotonic, so a change of the
+ * wall clock neither fires timeouts early nor holds them back.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTTimer implements MQTTScheduler {
+
+	/** Default length of a tick (ms) */
+	public static final long DEFAULT_TICK = 100;
+
+	/** Default number of buckets in the wheel */
+	public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+	private final long tick;
+
+	private final int mask;
+
+	/** Head of the list of timeouts in each bucket */
+	private final Entry[] wheel;
+
+	private final long startTime;
+
+	/** The last tick that has been expired */
+	private long currentTick;
+
+	/** Number of pending timeouts */
+	private int pending;
+
+	/** When the driving thread will wake up next, for deciding on wakeups */
+	private long wakeupTime = Long.MAX_VALUE;
+
+	/** Wakes the driving thread when an earlier timeout is added */
+	private Runnable wakeup;
+
+	private Thread worker;
+
+	private boolean stopped;
+
+	public MQTTTimer() {
+		this(DEFAULT_TICK, DEFAULT_TICKS_PER_WHEEL);
+	}
+
+	/**
+	 * @param tickMillis
+	 *            Length of a tick (ms), the resolution of the timer
+	 * @param ticksPerWheel
+	 *            Number of buckets, rounded up to a power of two
+	 */
+	public MQTTTimer(long tickMillis, int ticksPerWheel) {
+		int size = 1;
+		while (size < ticksPerWheel)
+			size <<= 1;
+
+		this.tick = tickMillis;
+		this.mask = size - 1;
+		this.wheel = new Entry[size];
+		this.startTime = now();
+	}
+
+	/**
+	 * @return Milliseconds since some fixed point, which only ever go
+	 *         forward. Only the difference between two readings means
+	 *         anything.
+	 */
+	public static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Set what to call when a timeout is added that is due before the
+	 * driving thread would wake up, used by loops that drive the timer.
+	 */
+	public synchronized void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	@Override
+	public Timeout schedule(Runnable task, long delayMillis) {
+		long deadline = now() + Math.max(0, delayMillis);
+		Runnable wake = null;
+
+		Entry entry = new Entry(task);
+		synchronized (this) {
+			// Round up, a timeout never runs early
+			entry.deadlineTick = Math.max(currentTick + 1,
+					(deadline - startTime + tick - 1) / tick);
+			link(entry);
+			pending++;
+
+			if (deadline < wakeupTime) {
+				wakeupTime = deadline;
+				if (worker != null)
+					notifyAll();
+				else
+					wake = wakeup;
+			}
+		}
+
+		if (wake != null)
+			wake.run();
+		return entry;
+	}
+
+	/**
+	 * @return Milliseconds until the earliest timeout is due, 0 if one is due
+	 *         now or -1 if nothing is scheduled.
+	 */
+	public synchronized long nextDelay() {
+		if (pending == 0) {
+			wakeupTime = Long.MAX_VALUE;
+			return -1;
+		}
+
+		long earliest = Long.MAX_VALUE;
+		long stop = currentTick + wheel.length;
+
+		// Walk the buckets in the order they will expire, the first entry
+		// due within one turn of the wheel is the earliest one
+		for (long t = currentTick + 1; t <= stop && earliest > t; t++) {
+			for (Entry e = wheel[(int) (t & mask)]; e != null; e = e.next)
+				earliest = Math.min(earliest, e.deadlineTick);
+		}
+
+		wakeupTime = startTime + earliest * tick;
+		return Math.max(0, wakeupTime - now());
+	}
+
+	/**
+	 * Run all timeouts that are due, on the calling thread.
+	 */
+	public void expire() {
+		Entry expired = null;
+
+		synchronized (this) {
+			long target = (now() - startTime) / tick;
+			if (target <= currentTick)
+				return;
+
+			// Never visit a bucket more than once
+			long from = Math.max(currentTick + 1, target - mask);
+			for (long t = from; t <= target; t++) {
+				Entry e = wheel[(int) (t & mask)];
+				while (e != null) {
+					Entry next = e.next;
+					if (e.deadlineTick <= target) {
+						unlink(e);
+						pending--;
+						e.next = expired;
+						expired = e;
+					}
+					e = next;
+				}
+			}
+			currentTick = target;
+			wakeupTime = Long.MAX_VALUE;
+		}
+
+		while (expired != null) {
+			Entry next = expired.next;
+			expired.next = null;
+			try {
+				expired.task.run();
+			} catch (RuntimeException e) {
+				// Keep the timer alive for the other timeouts
+				e.printStackTrace();
+			}
+			expired = next;
+		}
+	}
+
+	/**
+	 * @return Number of timeouts that are waiting to run.
+	 */
+	public synchronized int pending() {
+		return pending;
+	}
+
+	/**
+	 * Drive the timer from a daemon thread of its own.
+	 */
+	public synchronized void start() {
+		if (worker != null)
+			return;
+
+		stopped = false;
+		worker = new Thread("MQTTTimer") {
+			@Override
+			public void run() {
+				while (true) {
+					synchronized (MQTTTimer.this) {
+						long delay = nextDelay();
+						if (stopped)
+							return;
+						if (delay != 0) {
+							try {
+								MQTTTimer.this.wait(delay < 0 ? 0 : delay);
+							} catch (InterruptedException e) {
+								return;
+							}
+							continue;
+						}
+					}
+					expire();
+				}
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stop the thread started by {@link #start()}, pending timeouts are kept.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		worker = null;
+		notifyAll();
+	}
+
+	private void link(Entry e) {
+		int bucket = (int) (e.deadlineTick & mask);
+		e.prev = null;
+		e.next = wheel[bucket];
+		if (e.next != null)
+			e.next.prev = e;
+		wheel[bucket] = e;
+		e.linked = true;
+	}
+
+	private void unlink(Entry e) {
+		if (e.prev != null)
+			e.prev.next = e.next;
+		else
+			wheel[(int) (e.deadlineTick & mask)] = e.next;
+		if (e.next != null)
+			e.next.prev = e.prev;
+		e.prev = null;
+		e.linked = false;
+	}
+
+	private class Entry implements Timeout {
+		final Runnable task;
+		long deadlineTick;
+		Entry prev;
+		Entry next;
+		boolean linked;
+
+		Entry(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (MQTTTimer.this) {
+				if (linked) {
+					unlink(this);
+					pending--;
+				}
+			}
+		}
+	}
+}
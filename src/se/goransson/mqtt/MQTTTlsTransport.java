@@ -0,0 +1,153 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Transport built on a blocking {@link SSLSocket}.
+ *
+ * The TCP connection is made as by {@link MQTTSocketTransport} and then
+ * wrapped in TLS. Sessions are cached by the {@link SSLSocketFactory}'s
+ * context, keyed by host and port, so when the same factory is used for
+ * every connection a reconnect resumes the last session with an
+ * abbreviated handshake instead of a full one.
+ *
+ * A handshake resumed a session if the session it ended with was already
+ * cached before it started. With TLS 1.2 that is the cached session itself,
+ * with TLS 1.3 a copy with the id of the ticket that was used.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTTlsTransport extends MQTTSocketTransport {
+
+	/** The client session cache of the last connection to each server */
+	private static final HashMap<String, SSLSessionContext> sContexts = new HashMap<String, SSLSessionContext>();
+
+	private final SSLSocketFactory factory;
+
+	private final String[] cipherSuites;
+
+	private final HostnameVerifier verifier;
+
+	private volatile long handshakeNanos;
+
+	private volatile boolean resumed;
+
+	/**
+	 * @param factory
+	 *            Creates the TLS sockets, the same one should be used for
+	 *            every connection to resume sessions
+	 * @param cipherSuites
+	 *            Cipher suites to enable, or null for the factory's defaults
+	 * @param verifier
+	 *            Checks that the server's certificate is for the host, or
+	 *            null to not check it
+	 * @param maxPacketSize
+	 *            The largest incoming message that will be accepted
+	 * @param maxBatchBytes
+	 *            Size of the buffer outgoing messages are batched in
+	 * @param lingerMillis
+	 *            How long outgoing messages may wait for more to batch with
+	 */
+	public MQTTTlsTransport(SSLSocketFactory factory, String[] cipherSuites,
+			HostnameVerifier verifier, int maxPacketSize, int maxBatchBytes,
+			long lingerMillis) {
+		super(maxPacketSize, maxBatchBytes, lingerMillis);
+		this.factory = factory;
+		this.cipherSuites = cipherSuites;
+		this.verifier = verifier;
+	}
+
+	/**
+	 * @return Time the TLS handshake took (ns), 0 until it is done.
+	 */
+	public long getHandshakeNanos() {
+		return handshakeNanos;
+	}
+
+	/**
+	 * @return Whether the handshake resumed an earlier session.
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	@Override
+	protected Socket opened(Socket socket, String host, int port, int timeout)
+			throws IOException {
+		SSLSocket ssl = (SSLSocket) factory.createSocket(socket, host, port,
+				true);
+		ssl.setUseClientMode(true);
+		if (cipherSuites != null)
+			ssl.setEnabledCipherSuites(cipherSuites);
+
+		// The handshake may take as long as the connect, no longer
+		ssl.setSoTimeout(timeout);
+		String server = host + ":" + port;
+		HashSet<ByteBuffer> cached = cachedSessions(server);
+		long start = System.nanoTime();
+		ssl.startHandshake();
+		handshakeNanos = System.nanoTime() - start;
+		ssl.setSoTimeout(0);
+
+		// A full handshake makes a session with a new id
+		SSLSession session = ssl.getSession();
+		resumed = cached.contains(ByteBuffer.wrap(session.getId()));
+		synchronized (sContexts) {
+			if (session.getSessionContext() != null)
+				sContexts.put(server, session.getSessionContext());
+		}
+
+		if (verifier != null && !verifier.verify(host, session))
+			throw new SSLPeerUnverifiedException("Certificate is not for "
+					+ host);
+
+		return ssl;
+	}
+
+	/**
+	 * @return Ids of the sessions cached where the last connection to the
+	 *         server cached its session, empty if there was none.
+	 */
+	private static HashSet<ByteBuffer> cachedSessions(String server) {
+		SSLSessionContext context;
+		synchronized (sContexts) {
+			context = sContexts.get(server);
+		}
+
+		HashSet<ByteBuffer> ids = new HashSet<ByteBuffer>();
+		if (context != null) {
+			for (Enumeration<byte[]> e = context.getIds(); e.hasMoreElements();)
+				ids.add(ByteBuffer.wrap(e.nextElement()));
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,223 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Remembers the topics of incoming messages, so that a topic that has been
+ * seen before is neither decoded nor allocated again.
+ *
+ * Topics are looked up by their raw UTF-8 bytes, and the same String is
+ * returned every time, which also makes later lookups by topic cheap since
+ * the String has its hash code cached and compares equal by identity. The
+ * cache holds a limited number of topics and forgets the one that was used
+ * least recently when it is full.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTTopicCache {
+
+	/** Default number of topics to remember */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final int capacity;
+
+	private final Entry[] table;
+
+	private final int mask;
+
+	/** Most recently used first */
+	private Entry head;
+
+	private Entry tail;
+
+	private int size;
+
+	private long hits;
+
+	private long misses;
+
+	public MQTTTopicCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            Number of topics to remember
+	 */
+	public MQTTTopicCache(int capacity) {
+		int length = 2;
+		while (length < capacity * 2)
+			length <<= 1;
+
+		this.capacity = capacity;
+		this.table = new Entry[length];
+		this.mask = length - 1;
+	}
+
+	/**
+	 * Get the topic held by a range of bytes.
+	 *
+	 * @param buffer
+	 *            Array holding the topic, UTF-8 encoded
+	 * @param offset
+	 *            Start of the topic
+	 * @param length
+	 *            Length of the topic in bytes
+	 * @return The topic, the same String for the same bytes as long as it is
+	 *         remembered.
+	 */
+	public synchronized String intern(byte[] buffer, int offset, int length) {
+		int hash = hash(buffer, offset, length);
+		int bucket = hash & mask;
+
+		for (Entry e = table[bucket]; e != null; e = e.next) {
+			if (e.hash == hash && equals(e.bytes, buffer, offset, length)) {
+				hits++;
+				moveToHead(e);
+				return e.topic;
+			}
+		}
+
+		misses++;
+
+		byte[] bytes = new byte[length];
+		System.arraycopy(buffer, offset, bytes, 0, length);
+		Entry e = new Entry(hash, bytes, MQTT.readUTF8(buffer, offset, length));
+
+		e.next = table[bucket];
+		table[bucket] = e;
+		linkHead(e);
+
+		if (++size > capacity)
+			evict(tail);
+
+		return e.topic;
+	}
+
+	/**
+	 * @return Number of topics remembered.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return Number of lookups that found the topic.
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * @return Number of lookups that had to decode the topic.
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized void clear() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = null;
+		head = tail = null;
+		size = 0;
+	}
+
+	private void evict(Entry e) {
+		int bucket = e.hash & mask;
+		if (table[bucket] == e) {
+			table[bucket] = e.next;
+		} else {
+			Entry prev = table[bucket];
+			while (prev.next != e)
+				prev = prev.next;
+			prev.next = e.next;
+		}
+
+		unlink(e);
+		size--;
+	}
+
+	private void moveToHead(Entry e) {
+		if (e == head)
+			return;
+		unlink(e);
+		linkHead(e);
+	}
+
+	private void linkHead(Entry e) {
+		e.before = null;
+		e.after = head;
+		if (head != null)
+			head.before = e;
+		head = e;
+		if (tail == null)
+			tail = e;
+	}
+
+	private void unlink(Entry e) {
+		if (e.before != null)
+			e.before.after = e.after;
+		else
+			head = e.after;
+		if (e.after != null)
+			e.after.before = e.before;
+		else
+			tail = e.before;
+		e.before = e.after = null;
+	}
+
+	private static int hash(byte[] buffer, int offset, int length) {
+		// FNV-1a
+		int h = 0x811c9dc5;
+		for (int i = offset; i < offset + length; i++) {
+			h ^= buffer[i];
+			h *= 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equals(byte[] bytes, byte[] buffer, int offset,
+			int length) {
+		if (bytes.length != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] != buffer[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static class Entry {
+		final int hash;
+		final byte[] bytes;
+		final String topic;
+
+		/** Next in the same bucket */
+		Entry next;
+
+		/** Neighbours in order of use */
+		Entry before;
+		Entry after;
+
+		Entry(int hash, byte[] bytes, String topic) {
+			this.hash = hash;
+			this.bytes = bytes;
+			this.topic = topic;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+/**
+ * Moves the bytes of an MQTT connection between the client and the server.
+ * 
+ * A transport is used for a single connection. All methods return at once,
+ * the outcome is reported to the {@link Callback} on a thread owned by the
+ * transport.
+ * 
+ * @author ksango
+ * 
+ */
+public interface MQTTTransport {
+
+	/** Receives everything that happens on the connection */
+	public interface Callback extends MQTTFrameDecoder.Listener {
+		/** The connection is established */
+		void onConnected();
+
+		/** The connection could not be established */
+		void onConnectFailed(IOException e);
+
+		/**
+		 * A batch of messages was written.
+		 * 
+		 * @param messages
+		 *            Number of messages in the batch
+		 * @param bytes
+		 *            Number of bytes in the batch
+		 */
+		void onWrite(int messages, int bytes);
+
+		/** The established connection broke, the transport is closed */
+		void onConnectionLost(IOException e);
+	}
+
+	/**
+	 * Start connecting to the server.
+	 * 
+	 * @param host
+	 *            Host name or address of the server
+	 * @param port
+	 *            Port of the server
+	 * @param timeout
+	 *            How long to wait for the connection (ms)
+	 * @param callback
+	 *            Receives the outcome and all incoming messages
+	 */
+	void connect(String host, int port, int timeout, Callback callback);
+
+	/**
+	 * Queue a complete message for writing, never blocks.
+	 * 
+	 * @param message
+	 *            The message, it must not be changed afterwards
+	 * @return True if it was queued, false if it was dropped because the
+	 *         connection can't take it, not yet or no longer.
+	 */
+	boolean send(byte[] message);
+
+	/**
+	 * Queue a message whose payload is written as it is read from its
+	 * source, never blocks. If the source ends early the connection is lost,
+	 * as the message can't be completed.
+	 * 
+	 * @param header
+	 *            The message up to its payload
+	 * @param payload
+	 *            The payload, closed once it is written or discarded
+	 * @return True if it was queued, false if it was dropped and the payload
+	 *         closed.
+	 */
+	boolean send(byte[] header, MQTTPayloadStream payload);
+
+	/**
+	 * Close the connection, nothing more is reported to the callback.
+	 */
+	void close();
+}
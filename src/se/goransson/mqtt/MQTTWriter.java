@@ -0,0 +1,276 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Gransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes outgoing messages to a stream from a thread of its own.
+ *
+ * Any thread can {@link #send(byte[])} without blocking. The writer drains
+ * everything that is queued into one batch buffer and writes the whole batch
+ * with a single call, so a burst of small messages costs one system call
+ * instead of one per message.
+ *
+ * With a linger time the writer waits a little for more messages before it
+ * writes a batch that isn't full, trading latency for fewer writes.
+ *
+ * Streamed payloads are read into the batch buffer a part at a time and
+ * written as they are read, so they are never held on the heap as a whole.
+ *
+ * @author ksango
+ *
+ */
+public class MQTTWriter extends Thread {
+
+	/** Default size of the batch buffer */
+	public static final int DEFAULT_MAX_BATCH_BYTES = 8192;
+
+	/** Receives the outcome of writes, called on the writer thread */
+	public interface Listener {
+		/**
+		 * A batch was written.
+		 *
+		 * @param messages
+		 *            Number of messages in the batch
+		 * @param bytes
+		 *            Number of bytes in the batch
+		 */
+		void onWrite(int messages, int bytes);
+
+		/**
+		 * Writing failed, the writer has stopped.
+		 */
+		void onWriteFailed(IOException e);
+	}
+
+	/** Complete messages, and streamed payloads with their headers */
+	private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+
+	private final OutputStream out;
+
+	private final Listener listener;
+
+	private final byte[] batch;
+
+	private final long lingerNanos;
+
+	/** Bytes in the batch buffer */
+	private int count;
+
+	/** Messages in the batch buffer */
+	private int messages;
+
+	/** When the first message was put in the batch buffer */
+	private long batchStart;
+
+	/** Set while the writer is parked waiting for messages */
+	private volatile boolean waiting;
+
+	private volatile boolean cancelled;
+
+	/**
+	 * @param out
+	 *            The stream to write to
+	 * @param maxBatchBytes
+	 *            Size of the batch buffer, larger messages are written on
+	 *            their own
+	 * @param lingerMillis
+	 *            How long to wait for more messages before a batch that
+	 *            isn't full is written, 0 to write as soon as the queue is
+	 *            empty
+	 * @param listener
+	 *            Receives the outcome of writes
+	 */
+	public MQTTWriter(OutputStream out, int maxBatchBytes, long lingerMillis,
+			Listener listener) {
+		super("MQTTWriter");
+		this.out = out;
+		this.batch = new byte[maxBatchBytes];
+		this.lingerNanos = lingerMillis * 1000000L;
+		this.listener = listener;
+	}
+
+	/**
+	 * Queue a message for writing, never blocks.
+	 *
+	 * @param message
+	 *            The complete message, it must not be changed afterwards
+	 * @return False if the writer is stopped and the message dropped.
+	 */
+	public boolean send(byte[] message) {
+		if (cancelled)
+			return false;
+		queue.offer(message);
+
+		if (waiting)
+			LockSupport.unpark(this);
+		return true;
+	}
+
+	/**
+	 * Queue a message with a streamed payload for writing, never blocks.
+	 *
+	 * @param header
+	 *            The message up to its payload
+	 * @param payload
+	 *            The payload, read on the writer thread
+	 * @return False if the writer is stopped and the payload closed.
+	 */
+	public boolean send(byte[] header, MQTTPayloadStream payload) {
+		if (cancelled) {
+			payload.close();
+			return false;
+		}
+		payload.header = header;
+		queue.offer(payload);
+
+		if (waiting)
+			LockSupport.unpark(this);
+		return true;
+	}
+
+	/**
+	 * Stop the writer, anything still queued is discarded.
+	 */
+	public void cancel() {
+		cancelled = true;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!cancelled) {
+				Object next = queue.poll();
+
+				if (next == null) {
+					if (count > 0) {
+						long wait = batchStart + lingerNanos - System.nanoTime();
+						if (wait > 0)
+							LockSupport.parkNanos(this, wait);
+						else
+							flush();
+						continue;
+					}
+
+					waiting = true;
+					if (queue.isEmpty() && !cancelled)
+						LockSupport.park(this);
+					waiting = false;
+					continue;
+				}
+
+				if (next instanceof MQTTPayloadStream) {
+					stream((MQTTPayloadStream) next);
+					continue;
+				}
+
+				byte[] message = (byte[]) next;
+				if (message.length > batch.length - count)
+					flush();
+
+				if (message.length > batch.length) {
+					// Too large for the batch, write it directly
+					out.write(message);
+					out.flush();
+					listener.onWrite(1, message.length);
+					continue;
+				}
+
+				if (count == 0)
+					batchStart = System.nanoTime();
+				System.arraycopy(message, 0, batch, count, message.length);
+				count += message.length;
+				messages++;
+			}
+		} catch (IOException e) {
+			if (!cancelled)
+				listener.onWriteFailed(e);
+		}
+
+		// Nothing more is written, release the sources of what is left
+		Object next;
+		while ((next = queue.poll()) != null)
+			if (next instanceof MQTTPayloadStream)
+				((MQTTPayloadStream) next).close();
+	}
+
+	/**
+	 * Write a header and then its payload as it is read, through the batch
+	 * buffer.
+	 */
+	private void stream(MQTTPayloadStream payload) throws IOException {
+		try {
+			flush();
+
+			byte[] header = payload.header;
+			int total = header.length + payload.length();
+			if (header.length > batch.length) {
+				out.write(header);
+			} else {
+				System.arraycopy(header, 0, batch, 0, header.length);
+				count = header.length;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			int remaining = payload.length();
+			while (remaining > 0) {
+				buffer.limit(Math.min(batch.length, count + remaining));
+				buffer.position(count);
+
+				int read = payload.read(buffer);
+				if (read < 0)
+					throw new EOFException("Payload ended "
+							+ remaining + " bytes early");
+
+				count += read;
+				remaining -= read;
+				if (count == batch.length || remaining == 0) {
+					out.write(batch, 0, count);
+					count = 0;
+				}
+			}
+			if (count > 0) {
+				// Only the header, the payload is empty
+				out.write(batch, 0, count);
+				count = 0;
+			}
+			out.flush();
+			listener.onWrite(1, total);
+		} finally {
+			payload.close();
+		}
+	}
+
+	private void flush() throws IOException {
+		if (count == 0)
+			return;
+
+		out.write(batch, 0, count);
+		out.flush();
+		listener.onWrite(messages, count);
+
+		count = 0;
+		messages = 0;
+	}
+}